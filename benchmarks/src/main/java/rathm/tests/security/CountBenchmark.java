@@ -0,0 +1,116 @@
+/*
+ * Count throughput per buffer strategy
+ * ------------------------------------
+ * 
+ * Counts a temporary file of random UTF-8 text (sizeMB * 2^20 characters, a few more bytes) with each of the
+ * ways Count can read it:
+ * 
+ *     bytewise   one InputStream.read() per byte, as the tutorial countChars did (on a BufferedInputStream,
+ *                unbuffered it is one system call per byte and too slow to measure on large files)
+ *     stream     Count.count(InputStream), large reads into a heap array
+ *     direct     Count.countDirect(FileChannel), large reads into a direct buffer
+ *     mapped     Count.countMapped(FileChannel), memory-mapped
+ * 
+ * The file is in the page cache after the first iteration, so this measures the counting and copying, not
+ * the disk.
+ * 
+ * Usage:
+ * gradle :benchmarks:jmh -PjmhArgs="CountBenchmark -p sizeMB=256"
+ */
+
+package rathm.tests.security;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CountBenchmark
+{
+	@Param({ "bytewise", "stream", "direct", "mapped" })
+	public String strategy;
+	
+	@Param({ "1", "64" })
+	public int sizeMB;
+	
+	private Path file;
+	
+	@Setup
+	public void setup() throws IOException
+	{
+		file = Files.createTempFile("count-benchmark", ".txt");
+		String alphabet = "abcdefghij klmnop\nqrstuvwxyz éè€\t";
+		Random random = new Random(1);
+		long size = sizeMB * 1024L * 1024;
+		try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8))
+		{
+			for (long written = 0; written < size; written++)
+				out.write(alphabet.charAt(random.nextInt(alphabet.length())));
+		}
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException
+	{
+		Files.deleteIfExists(file);
+	}
+	
+	@Benchmark
+	public long count() throws IOException
+	{
+		switch (strategy)
+		{
+			case "bytewise":
+				try (InputStream in = new BufferedInputStream(Files.newInputStream(file)))
+				{
+					long count = 0;
+					while (in.read() != -1)
+						count++;
+					return count;
+				}
+			case "stream":
+				try (InputStream in = Files.newInputStream(file))
+				{
+					return Count.count(in).chars;
+				}
+			case "direct":
+				try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+				{
+					return Count.countDirect(channel).chars;
+				}
+			case "mapped":
+				try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+				{
+					return Count.countMapped(channel).chars;
+				}
+			default:
+				throw new IllegalArgumentException("Unknown strategy: " + strategy);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Sign and verify throughput per signature algorithm and key size
+ * ----------------------------------------------------------------
+ * 
+ * JMH version of GenSig -bench (see SigBench). Signs, and verifies the signature of, a small message so the
+ * public key operation dominates. The algorithm parameter is SigAlgorithm:keysize; key sizes other than the
+ * default of the algorithm are only supported for the algorithms initialized with a key size (DSA, RSA_PSS).
+ * 
+ * Usage:
+ * gradle :benchmarks:jmh -PjmhArgs="SignatureBenchmark"
+ * gradle :benchmarks:jmh -PjmhArgs="SignatureBenchmark -p algorithm=RSA_PSS:2048,RSA_PSS:4096"
+ */
+
+package rathm.tests.security;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureBenchmark
+{
+	@Param({ "DSA:1024", "ED25519:255", "ECDSA_P256:256", "RSA_PSS:2048", "RSA_PSS:3072", "RSA_PSS:4096" })
+	public String algorithm;
+	
+	@Param({ "1024" })
+	public int messageSize;
+	
+	private byte[] message;
+	private byte[] signature;
+	private Signature signer;
+	private Signature verifier;
+	
+	@Setup
+	public void setup() throws GeneralSecurityException
+	{
+		String[] spec = algorithm.split(":");
+		SigAlgorithm sigAlgorithm = SigAlgorithm.forName(spec[0]);
+		SecureRandom random = new SecureRandom();
+		
+		KeyPair pair;
+		if (spec.length == 1 || sigAlgorithm == SigAlgorithm.ED25519 || sigAlgorithm == SigAlgorithm.ECDSA_P256)
+			pair = sigAlgorithm.generateKeyPair(random);
+		else
+		{
+			Provider provider = ProviderSelector.signatureProvider(sigAlgorithm);
+			KeyPairGenerator keyGen = sigAlgorithm.newKeyPairGenerator(provider);
+			keyGen.initialize(Integer.parseInt(spec[1]), random);
+			pair = keyGen.generateKeyPair();
+		}
+		
+		message = new byte[messageSize];
+		random.nextBytes(message);
+		
+		signer = sigAlgorithm.newSignature();
+		signer.initSign(pair.getPrivate());
+		signer.update(message);
+		signature = signer.sign();
+		
+		verifier = sigAlgorithm.newSignature();
+		verifier.initVerify(pair.getPublic());
+	}
+	
+	@Benchmark
+	public byte[] sign() throws GeneralSecurityException
+	{
+		signer.update(message);
+		return signer.sign();
+	}
+	
+	@Benchmark
+	public boolean verify() throws GeneralSecurityException
+	{
+		verifier.update(message);
+		if (!verifier.verify(signature))
+			throw new IllegalStateException("Signature does not verify");
+		return true;
+	}
+}
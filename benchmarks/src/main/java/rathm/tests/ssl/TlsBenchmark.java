@@ -0,0 +1,253 @@
+/*
+ * TLS handshake and bulk transfer latency on loopback
+ * ===================================================
+ * Runs against an in-process SSLServerSocket on 127.0.0.1, so it needs no network. It measures the blocking
+ * JSSE stack of SSLSocketHttpClient on both sides; the SSLEngine server of the load tests (NioHttpsServer) would
+ * measure a different server stack. The server answers GET /<n> with n bytes on kept-alive connections, one
+ * thread per connection.
+ * 
+ *     handshake   connect and do a full handshake on a new SSLSocket (the session is invalidated so it is not
+ *                 resumed by the next connection), then close
+ *     transfer    GET /<size> on a kept-alive connection and read the whole response
+ * 
+ * Both are measured per protocol version. Latencies are sampled so the percentiles are reported.
+ * 
+ * Usage examples
+ * --------------
+ * gradle :benchmarks:jmh -PjmhArgs="TlsBenchmark"
+ * gradle :benchmarks:jmh -PjmhArgs="TlsBenchmark.transfer -p protocol=TLSv1.3 -p size=16777216"
+ * 
+ * @author rathm
+ * 
+ */
+
+package rathm.tests.ssl;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsBenchmark
+{
+	@State(Scope.Benchmark)
+	public static class Server
+	{
+		@Param({ "TLSv1.3", "TLSv1.2" })
+		public String protocol;
+		
+		Path directory;
+		SSLServerSocket serverSocket;
+		SSLSocketFactory factory;
+		
+		@Setup
+		public void setup() throws IOException, GeneralSecurityException
+		{
+			directory = Files.createTempDirectory("tls-benchmark");
+			Path keyStoreFile = directory.resolve("server.p12");
+			LoopbackCertificates.generateKeyStore(keyStoreFile, "localhost", "-keyalg", "EC", "-groupname",
+					"secp256r1");
+			KeyStore keyStore = LoopbackCertificates.loadKeyStore(keyStoreFile);
+			serverSocket = (SSLServerSocket) LoopbackCertificates.serverContext(keyStore).getServerSocketFactory()
+					.createServerSocket(0, 128, InetAddress.getLoopbackAddress());
+			factory = LoopbackCertificates.clientContext(keyStore).getSocketFactory();
+			
+			Thread acceptThread = new Thread(this::acceptLoop, "benchmark-accept");
+			acceptThread.setDaemon(true);
+			acceptThread.start();
+		}
+		
+		@TearDown
+		public void tearDown() throws IOException
+		{
+			serverSocket.close();
+			LoopbackCertificates.deleteDirectory(directory);
+		}
+		
+		private void acceptLoop()
+		{
+			while (!serverSocket.isClosed())
+			{
+				try
+				{
+					Socket socket = serverSocket.accept();
+					socket.setTcpNoDelay(true);
+					Thread thread = new Thread(() -> serve(socket), "benchmark-connection");
+					thread.setDaemon(true);
+					thread.start();
+				}
+				catch (IOException e)
+				{
+					if (!serverSocket.isClosed())
+						e.printStackTrace();
+				}
+			}
+		}
+		
+		/**
+		 * Server side of a connection: answer each GET /<n> with n bytes, until the client closes.
+		 */
+		private static void serve(Socket socket)
+		{
+			try (Socket s = socket)
+			{
+				InputStream in = new BufferedInputStream(s.getInputStream());
+				OutputStream out = s.getOutputStream();
+				byte[] buffer = new byte[64 * 1024];
+				String requestLine;
+				while ((requestLine = readRequest(in)) != null)
+				{
+					String path = requestLine.split(" ")[1];
+					long length = Long.parseLong(path.substring(1));
+					out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\nContent-Length: " + length
+							+ "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+					for (long remaining = length; remaining > 0; remaining -= buffer.length)
+						out.write(buffer, 0, (int) Math.min(buffer.length, remaining));
+					out.flush();
+				}
+			}
+			catch (IOException | RuntimeException e)
+			{
+				// Handshake failed, client closed the connection, or not a GET /<n>
+			}
+		}
+		
+		/**
+		 * Read a request header, up to and including the empty line.
+		 * 
+		 * @return The request line, or null if the connection was closed before a request
+		 */
+		private static String readRequest(InputStream in) throws IOException
+		{
+			StringBuilder header = new StringBuilder();
+			int b;
+			while ((b = in.read()) >= 0)
+			{
+				header.append((char) b);
+				int n = header.length();
+				if (n >= 4 && header.charAt(n - 1) == '\n' && header.charAt(n - 2) == '\r'
+						&& header.charAt(n - 3) == '\n')
+					return header.substring(0, header.indexOf("\r"));
+			}
+			return null;
+		}
+		
+		SSLSocket connect() throws IOException
+		{
+			SSLSocket socket = (SSLSocket) factory.createSocket("localhost", serverSocket.getLocalPort());
+			socket.setEnabledProtocols(new String[] { protocol });
+			socket.startHandshake();
+			return socket;
+		}
+	}
+	
+	@State(Scope.Thread)
+	public static class Connection
+	{
+		@Param({ "1024", "1048576" })
+		public int size;
+		
+		SSLSocket socket;
+		InputStream in;
+		OutputStream out;
+		byte[] request;
+		byte[] buffer = new byte[64 * 1024];
+		
+		@Setup
+		public void setup(Server server) throws IOException
+		{
+			socket = server.connect();
+			in = new BufferedInputStream(socket.getInputStream(), buffer.length);
+			out = socket.getOutputStream();
+			request = ("GET /" + size + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+		}
+		
+		@TearDown
+		public void tearDown() throws IOException
+		{
+			socket.close();
+		}
+	}
+	
+	@Benchmark
+	public String handshake(Server server) throws IOException
+	{
+		try (SSLSocket socket = server.connect())
+		{
+			socket.getSession().invalidate();
+			return socket.getSession().getCipherSuite();
+		}
+	}
+	
+	@Benchmark
+	public long transfer(Connection connection) throws IOException
+	{
+		connection.out.write(connection.request);
+		connection.out.flush();
+		
+		long length = readContentLength(connection.in);
+		for (long remaining = length; remaining > 0;)
+		{
+			int n = connection.in.read(connection.buffer, 0, (int) Math.min(connection.buffer.length, remaining));
+			if (n < 0)
+				throw new IOException("Connection closed in response body");
+			remaining -= n;
+		}
+		return length;
+	}
+	
+	/**
+	 * Read a response header and return its Content-Length.
+	 */
+	static long readContentLength(InputStream in) throws IOException
+	{
+		StringBuilder header = new StringBuilder();
+		int b;
+		while ((b = in.read()) >= 0)
+		{
+			header.append((char) b);
+			int n = header.length();
+			if (n >= 4 && header.charAt(n - 1) == '\n' && header.charAt(n - 2) == '\r' && header.charAt(n - 3) == '\n')
+				break;
+		}
+		if (b < 0)
+			throw new IOException("Connection closed in response header");
+		String lower = header.toString().toLowerCase(Locale.ROOT);
+		int start = lower.indexOf("content-length:");
+		if (start < 0)
+			throw new IOException("No Content-Length in response: " + header);
+		start += "content-length:".length();
+		return Long.parseLong(lower.substring(start, lower.indexOf('\r', start)).trim());
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Sign all files in a directory tree
+ * ----------------------------------
+ * 
+ * Batch mode of GenSig. Instead of one JVM launch and one key-pair per signed file, a single key-pair is
+ * generated and every regular file found under the directory is signed with it.
+ * The files are hashed and signed by a pool of worker threads (one per core by default). Each worker
+ * keeps its own Signature object, initialized once with the private key, because Signature objects are
+ * not thread safe but can be reused after sign() completes.
+ * 
+ * As with GenSig, the signature of each file is written to the name of the file + ".sig" and the public
+ * key is written to "GenSig.key.pub" in the current directory.
+ * Existing ".sig" files in the tree are not signed.
+ * 
+ * At the end the aggregate throughput (files/s and MB/s) is written to console.
+ * 
+ * Usage:
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.GenSig -batch [-alg name] directory [threads]
+ */
+
+package rathm.tests.security;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+class BatchSigner
+{
+	private final SigAlgorithm algorithm;
+	private final PrivateKey privateKey;
+	
+	// Signature objects are not thread safe, so each worker thread gets its own, initialized for signing
+	private final ThreadLocal<Signature> signatures = ThreadLocal.withInitial(this::newSignature);
+	
+	private final AtomicLong signedFiles = new AtomicLong();
+	private final AtomicLong signedBytes = new AtomicLong();
+	private final AtomicLong failedFiles = new AtomicLong();
+	
+	BatchSigner(SigAlgorithm algorithm, PrivateKey privateKey)
+	{
+		this.algorithm = algorithm;
+		this.privateKey = privateKey;
+	}
+	
+	private Signature newSignature()
+	{
+		try
+		{
+			Signature sig = algorithm.newSignature();
+			sig.initSign(privateKey);
+			return sig;
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new IllegalStateException("Cannot create signature object", e);
+		}
+	}
+	
+	/**
+	 * Sign one file with the signature object of the current thread.
+	 * 
+	 * @param file
+	 *            File to sign
+	 * @return Whether the file was signed
+	 */
+	boolean signFile(Path file)
+	{
+		try
+		{
+			// Created on the first file of the thread, see newSignature
+			Signature sig = signatures.get();
+			long size = FileFeeder.update(sig, file);
+			
+			// sign() also resets the signature object so it is ready for the next file
+			byte[] realSig = sig.sign();
+			
+			new SignatureFile(algorithm, realSig).write(Paths.get(file + GenSig.SIGNATURE_FILE_SUFFIX));
+			
+			signedFiles.incrementAndGet();
+			signedBytes.addAndGet(size);
+			return true;
+		}
+		catch (IOException | GeneralSecurityException | IllegalStateException e)
+		{
+			// Data may have been fed to the signature object before the failure, start over with a new one
+			signatures.remove();
+			failedFiles.incrementAndGet();
+			System.err.println("[ERROR] Cannot sign file: [" + file + "] " + e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Sign all regular files under a directory.
+	 * 
+	 * @param root
+	 *            Directory to sign
+	 * @param threads
+	 *            Number of worker threads
+	 */
+	void signTree(Path root, int threads) throws IOException, InterruptedException
+	{
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		long start = System.nanoTime();
+		
+		try (Stream<Path> paths = Files.walk(root))
+		{
+			paths.filter(Files::isRegularFile)
+					.filter(path -> !SignatureFile.isSignatureFile(path))
+					.forEach(path -> workers.execute(() -> signFile(path)));
+		}
+		finally
+		{
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long files = signedFiles.get();
+		long bytes = signedBytes.get();
+		System.out.format("Signed %d files (%d bytes) with %d threads in %.3f s%n", files, bytes, threads, seconds);
+		System.out.format("Throughput: %.1f files/s, %.1f MB/s%n", files / seconds, bytes / seconds / (1024 * 1024));
+		if (failedFiles.get() > 0)
+			System.err.format("[ERROR] %d files could not be signed%n", failedFiles.get());
+	}
+	
+	/**
+	 * @param args
+	 *            Directory to sign, optionally followed by the number of worker threads, and -alg name
+	 */
+	public static void main(String[] args)
+	{
+		List<String> argList = new ArrayList<>(Arrays.asList(args));
+		SigningKeyStore keyStore = SigningKeyStore.removeOptions(argList);
+		SigAlgorithm algorithm;
+		try
+		{
+			algorithm = SigAlgorithm.removeOption(argList);
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println("[ERROR] " + e.getMessage());
+			return;
+		}
+		
+		int threads = Runtime.getRuntime().availableProcessors();
+		try
+		{
+			if (argList.size() == 2)
+				threads = Integer.parseInt(argList.get(1));
+		}
+		catch (NumberFormatException e)
+		{
+			System.err.println("[ERROR] Invalid number of threads: " + e.getMessage());
+			threads = 0;
+		}
+		
+		if (argList.size() < 1 || argList.size() > 2 || threads < 1)
+		{
+			System.err.println("Usage: GenSig -batch [-alg name] [-keystore file [-alias name] [-storepass pass]] "
+					+ "directory [threads]");
+			return;
+		}
+		
+		Path root = Paths.get(argList.get(0));
+		
+		try
+		{
+			KeyPair pair = GenSig.signingKeyPair(keyStore, algorithm);
+			GenSig.savePublicKey(pair.getPublic(), GenSig.PUBLIC_KEY_FILE_NAME);
+			
+			new BatchSigner(SigAlgorithm.forKey(pair.getPublic()), pair.getPrivate()).signTree(root, threads);
+		}
+		catch (GeneralSecurityException | IOException e)
+		{
+			e.printStackTrace();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			e.printStackTrace();
+		}
+	}
+}
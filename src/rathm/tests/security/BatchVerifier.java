@@ -0,0 +1,385 @@
+/*
+ * Verify the signatures of all files listed in a manifest
+ * -------------------------------------------------------
+ * 
+ * Manifest mode of VerSig. The manifest is a text file with one entry per line:
+ * 
+ *     signaturefile datafile
+ *     publickeyfile signaturefile datafile
+ * 
+ * Entries with two fields are verified with the key given by the -key option. Empty lines and lines
+ * starting with '#' are ignored. File names are separated by white space and are relative to the
+ * current directory.
+ * 
+ * The entries are verified in parallel on a ForkJoinPool (one thread per core by default).
+ * Public keys are decoded once per key file and shared by all workers; each worker keeps its own
+ * Signature object for each algorithm because Signature objects are not thread safe.
+ * 
+ * With -failfast no new verification is started once a signature does not verify or a file cannot be
+ * read.
+ * 
+ * With -cache the results are kept in a persistent cache (see VerifyCache), unchanged files verified by an
+ * earlier run are not read again.
+ * 
+ * At the end the number of verified / failed / skipped entries, the throughput, and percentiles of the
+ * per-file verification latency are written to console. The exit status is 1 if any entry did not verify.
+ * 
+ * Usage:
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.VerSig -manifest manifestfile [-key publickeyfile] [-failfast] [-threads n] [-cache cachefile]
+ */
+
+package rathm.tests.security;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class BatchVerifier
+{
+	// Result of the verification of a manifest entry
+	static final byte SKIPPED = 0;
+	static final byte VERIFIED = 1;
+	static final byte MISMATCH = 2;
+	static final byte ERROR = 3;
+	
+	/**
+	 * One line of the manifest
+	 */
+	static class Entry
+	{
+		final String publicKeyFile;
+		final String signatureFile;
+		final String dataFile;
+		
+		Entry(String publicKeyFile, String signatureFile, String dataFile)
+		{
+			this.publicKeyFile = publicKeyFile;
+			this.signatureFile = signatureFile;
+			this.dataFile = dataFile;
+		}
+	}
+	
+	private final Entry[] entries;
+	private final boolean failFast;
+	private final VerifyCache cache;
+	
+	private final byte[] results;
+	private final long[] latencies;
+	
+	// Decoded public keys, by algorithm and key file name. PublicKey objects are immutable and can be shared
+	// by threads.
+	private final ConcurrentHashMap<String, PublicKey> publicKeys = new ConcurrentHashMap<>();
+	
+	// Content of the public key files, by key file name, for the cache keys
+	private final ConcurrentHashMap<String, byte[]> encodedKeys = new ConcurrentHashMap<>();
+	
+	// Signature objects of the current thread, by algorithm
+	private final ThreadLocal<EnumMap<SigAlgorithm, Signature>> signatures = ThreadLocal
+			.withInitial(() -> new EnumMap<>(SigAlgorithm.class));
+	
+	private final AtomicBoolean stop = new AtomicBoolean();
+	
+	BatchVerifier(List<Entry> entries, boolean failFast, VerifyCache cache)
+	{
+		this.entries = entries.toArray(new Entry[0]);
+		this.failFast = failFast;
+		this.cache = cache;
+		this.results = new byte[this.entries.length];
+		this.latencies = new long[this.entries.length];
+	}
+	
+	/**
+	 * Read a manifest file.
+	 * 
+	 * @param manifest
+	 *            Manifest file
+	 * @param defaultPublicKeyFile
+	 *            Key file for the entries without one, may be null
+	 * @return The entries of the manifest
+	 */
+	static List<Entry> readManifest(Path manifest, String defaultPublicKeyFile) throws IOException
+	{
+		List<Entry> entries = new ArrayList<>();
+		int lineNumber = 0;
+		for (String line : Files.readAllLines(manifest))
+		{
+			lineNumber++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+			
+			String[] fields = line.split("\\s+");
+			if (fields.length == 2 && defaultPublicKeyFile != null)
+				entries.add(new Entry(defaultPublicKeyFile, fields[0], fields[1]));
+			else if (fields.length == 3)
+				entries.add(new Entry(fields[0], fields[1], fields[2]));
+			else
+				throw new IOException("Invalid manifest entry at " + manifest + ":" + lineNumber + ": [" + line + "]");
+		}
+		return entries;
+	}
+	
+	private PublicKey publicKey(String publicKeyFile, SigAlgorithm algorithm)
+	{
+		return publicKeys.computeIfAbsent(algorithm + ":" + publicKeyFile, key -> {
+			try
+			{
+				return VerSig.readPublicKey(publicKeyFile, algorithm);
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+			catch (GeneralSecurityException e)
+			{
+				throw new IllegalArgumentException("Invalid public key file: " + publicKeyFile, e);
+			}
+		});
+	}
+	
+	private byte[] encodedKey(String publicKeyFile)
+	{
+		return encodedKeys.computeIfAbsent(publicKeyFile, file -> {
+			try
+			{
+				return Files.readAllBytes(Paths.get(file));
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+	
+	/**
+	 * Verify the signature of a data file.
+	 */
+	private boolean verify(Entry entry, SignatureFile signature) throws IOException, GeneralSecurityException
+	{
+		PublicKey pubKey = publicKey(entry.publicKeyFile, signature.algorithm);
+		
+		Signature sig = signatures.get().get(signature.algorithm);
+		if (sig == null)
+		{
+			sig = signature.algorithm.newSignature();
+			signatures.get().put(signature.algorithm, sig);
+		}
+		sig.initVerify(pubKey);
+		FileFeeder.update(sig, Paths.get(entry.dataFile));
+		return sig.verify(signature.signature);
+	}
+	
+	/**
+	 * Verify one entry of the manifest, unless its result is cached, and record its result and latency.
+	 */
+	void verify(int index)
+	{
+		if (stop.get())
+			return;
+		
+		Entry entry = entries[index];
+		long start = System.nanoTime();
+		byte result;
+		try
+		{
+			byte[] content = Files.readAllBytes(Paths.get(entry.signatureFile));
+			SignatureFile signature = SignatureFile.decode(content);
+			
+			Boolean verifies = null;
+			String cacheKey = null;
+			if (cache != null)
+			{
+				cacheKey = VerifyCache.key(Paths.get(entry.dataFile), content, encodedKey(entry.publicKeyFile));
+				verifies = cache.get(cacheKey);
+			}
+			if (verifies == null)
+			{
+				verifies = verify(entry, signature);
+				if (cache != null)
+					cache.put(cacheKey, verifies);
+			}
+			result = verifies ? VERIFIED : MISMATCH;
+		}
+		catch (IOException | UncheckedIOException | GeneralSecurityException | IllegalArgumentException e)
+		{
+			System.err.println("[ERROR] Cannot verify file: [" + entry.dataFile + "] " + e);
+			result = ERROR;
+		}
+		latencies[index] = System.nanoTime() - start;
+		results[index] = result;
+		
+		if (result == MISMATCH)
+			System.out.println("Signature verified: false [" + entry.dataFile + "]");
+		if (result != VERIFIED && failFast)
+			stop.set(true);
+	}
+	
+	/**
+	 * Verifies a range of manifest entries, splitting it in halves until it is small enough
+	 */
+	private class VerifyTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private static final int THRESHOLD = 4;
+		
+		private final int from;
+		private final int to;
+		
+		VerifyTask(int from, int to)
+		{
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			if (to - from <= THRESHOLD)
+			{
+				for (int i = from; i < to; i++)
+					verify(i);
+			}
+			else
+			{
+				int middle = (from + to) >>> 1;
+				invokeAll(new VerifyTask(from, middle), new VerifyTask(middle, to));
+			}
+		}
+	}
+	
+	/**
+	 * Verify all entries of the manifest and write the summary to console.
+	 * 
+	 * @param threads
+	 *            Parallelism of the fork-join pool
+	 * @return true if all entries verified
+	 */
+	boolean verifyAll(int threads)
+	{
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		long start = System.nanoTime();
+		try
+		{
+			pool.invoke(new VerifyTask(0, entries.length));
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		
+		if (cache != null)
+		{
+			try
+			{
+				cache.save();
+			}
+			catch (IOException e)
+			{
+				System.err.println("[ERROR] Cannot save verification cache: " + e);
+			}
+		}
+		
+		int[] counts = new int[4];
+		long[] done = new long[entries.length];
+		int n = 0;
+		for (int i = 0; i < entries.length; i++)
+		{
+			counts[results[i]]++;
+			if (results[i] != SKIPPED)
+				done[n++] = latencies[i];
+		}
+		done = Arrays.copyOf(done, n);
+		Arrays.sort(done);
+		
+		System.out.format("Verified %d of %d files with %d threads in %.3f s (%.1f files/s)%n", counts[VERIFIED],
+				entries.length, threads, seconds, n / seconds);
+		System.out.format("Mismatch: %d, errors: %d, skipped: %d%n", counts[MISMATCH], counts[ERROR], counts[SKIPPED]);
+		if (cache != null)
+			System.out.format("Cache hits: %d, misses: %d%n", cache.hits(), cache.misses());
+		if (n > 0)
+		{
+			System.out.format("Latency per file (ms): p50 %.3f, p90 %.3f, p99 %.3f, p99.9 %.3f, max %.3f%n",
+					percentile(done, 50) / 1e6, percentile(done, 90) / 1e6, percentile(done, 99) / 1e6,
+					percentile(done, 99.9) / 1e6, done[n - 1] / 1e6);
+		}
+		
+		return counts[VERIFIED] == entries.length;
+	}
+	
+	/**
+	 * Nearest-rank percentile of sorted values
+	 */
+	static long percentile(long[] sorted, double percentile)
+	{
+		int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+		return sorted[Math.max(rank, 1) - 1];
+	}
+	
+	/**
+	 * @param args
+	 *            Manifest file, followed by the options: -key publickeyfile, -failfast, -threads n, -cache cachefile
+	 */
+	public static void main(String[] args)
+	{
+		String manifest = null;
+		String publicKeyFile = null;
+		boolean failFast = false;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String cacheFile = null;
+		boolean validArgs = true;
+		
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equals("-key") && i + 1 < args.length)
+				publicKeyFile = args[++i];
+			else if (args[i].equals("-failfast"))
+				failFast = true;
+			else if (args[i].equals("-threads") && i + 1 < args.length)
+				threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-cache") && i + 1 < args.length)
+				cacheFile = args[++i];
+			else if (manifest == null && !args[i].startsWith("-"))
+				manifest = args[i];
+			else
+				validArgs = false;
+		}
+		
+		if (manifest == null || !validArgs)
+		{
+			System.out.println(
+					"Usage: VerSig -manifest manifestfile [-key publickeyfile] [-failfast] [-threads n] [-cache cachefile]");
+			return;
+		}
+		
+		boolean verifies = false;
+		try
+		{
+			List<Entry> entries = readManifest(Paths.get(manifest), publicKeyFile);
+			VerifyCache cache = cacheFile == null ? null
+					: VerifyCache.open(Paths.get(cacheFile), VerifyCache.DEFAULT_MAX_ENTRIES);
+			verifies = new BatchVerifier(entries, failFast, cache).verifyAll(threads);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		
+		if (!verifies)
+			System.exit(1);
+	}
+}
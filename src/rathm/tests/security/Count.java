@@ -12,7 +12,7 @@
  * 
  * Package into a jar file:
  * cd /home/rathm/Learning/SecurityTutorial/Lesson_SigningCodeAndGrantingItPermissions
- * jar cvf Count.jar -C /home/rathm/workspace_tests/Tests/bin/ rathm/tests/security/Count.class
+ * jar cvf Count.jar -C /home/rathm/workspace_tests/Tests/bin/ rathm/tests/security/Count.class -C /home/rathm/workspace_tests/Tests/bin/ 'rathm/tests/security/Count$Counts.class'
  * 
  * Usage example 1: with no security manager
  * cd /home/rathm/Learning/SecurityTutorial/Lesson_SigningCodeAndGrantingItPermissions
@@ -22,6 +22,13 @@
  * cd /home/rathm/Learning/SecurityTutorial/Lesson_SigningCodeAndGrantingItPermissions
  * java -Djava.security.manager -Djava.security.policy=exampleraypolicy -cp sCount.jar rathm.tests.security.Count count_me
  * 
+ * The counting reads the file with large reads, or memory-maps it when it is large, instead of one read per byte,
+ * and counts bytes, UTF-8 characters, lines and words in a single pass (see Count.Counts).
+ * countChars(InputStream) still writes the number of bytes read from the stream, now using large reads.
+ * 
+ * Huge files, or many files, can be counted in parallel on all cores (see ParallelCount):
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.Count -parallel [-threads n] filename...
+ * 
  * ---------------------------------- Original copyright notice ----------------------------------
  * 
  * Copyright (c) 1995, 2008, Oracle and/or its affiliates. All rights reserved.
@@ -57,24 +64,201 @@
 package rathm.tests.security;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 public class Count
 {
-	public static void countChars(InputStream in) throws IOException
+	// Size of the reads from streams and channels
+	static final int BUFFER_SIZE = 256 * 1024;
+	
+	// Files of at least this size are memory-mapped, a window at a time
+	static final long MAP_THRESHOLD = 4L * 1024 * 1024;
+	static final long MAP_WINDOW = 256L * 1024 * 1024;
+	
+	/**
+	 * Number of bytes, UTF-8 characters (code points), lines and words, counted in a single pass.
+	 * 
+	 * Characters are counted as the bytes which are not UTF-8 continuation bytes (10xxxxxx), so each valid
+	 * UTF-8 sequence counts once. Lines are counted as '\n' bytes. Words are counted as the non white space
+	 * bytes that follow a white space byte (or the start of the data), as wc does.
+	 * The inner loops have no data dependent branches: the tests are turned into 0 / 1 values with shifts and
+	 * a lookup table.
+	 */
+	static final class Counts
 	{
-		int count = 0;
+		// 1 for the ASCII white space bytes, as isspace() in the C locale
+		private static final int[] SPACE = new int[256];
+		static
+		{
+			for (char c : new char[] { ' ', '\t', '\n', 0x0b, '\f', '\r' })
+				SPACE[c] = 1;
+		}
+		
+		long bytes;
+		long chars;
+		long lines;
+		long words;
+		
+		// 1 if the last byte counted (or the byte before the data) is white space
+		int previousSpace = 1;
 		
-		while (in.read() != -1)
-			count++;
+		/**
+		 * Set whether the byte preceding the data that will be counted is white space, e.g. for a segment that
+		 * does not start at the beginning of a file.
+		 */
+		void precededBy(byte b)
+		{
+			previousSpace = SPACE[b & 0xff];
+		}
+		
+		void add(byte[] buffer, int offset, int length)
+		{
+			long continuations = 0;
+			long newlines = 0;
+			long wordStarts = 0;
+			int space = previousSpace;
+			for (int i = offset, end = offset + length; i < end; i++)
+			{
+				int b = buffer[i];
+				// Signed continuation bytes are -128..-65, so b + 64 is negative only for them
+				continuations += (b + 64) >>> 31;
+				// (b ^ '\n') is 0 only for '\n', and 0 - 1 is the only negative result
+				newlines += (((b & 0xff) ^ '\n') - 1) >>> 31;
+				int s = SPACE[b & 0xff];
+				wordStarts += space & (s ^ 1);
+				space = s;
+			}
+			previousSpace = space;
+			bytes += length;
+			chars += length - continuations;
+			lines += newlines;
+			words += wordStarts;
+		}
+		
+		void add(ByteBuffer buffer)
+		{
+			if (buffer.hasArray())
+			{
+				add(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+				buffer.position(buffer.limit());
+				return;
+			}
+			
+			long continuations = 0;
+			long newlines = 0;
+			long wordStarts = 0;
+			int space = previousSpace;
+			int length = buffer.remaining();
+			for (int i = buffer.position(), end = buffer.limit(); i < end; i++)
+			{
+				int b = buffer.get(i);
+				continuations += (b + 64) >>> 31;
+				newlines += (((b & 0xff) ^ '\n') - 1) >>> 31;
+				int s = SPACE[b & 0xff];
+				wordStarts += space & (s ^ 1);
+				space = s;
+			}
+			previousSpace = space;
+			buffer.position(buffer.limit());
+			bytes += length;
+			chars += length - continuations;
+			lines += newlines;
+			words += wordStarts;
+		}
+		
+		/**
+		 * Add the counts of other data. The other data must have been counted with the right preceding byte
+		 * (see precededBy) for the word count to be exact.
+		 */
+		void add(Counts other)
+		{
+			bytes += other.bytes;
+			chars += other.chars;
+			lines += other.lines;
+			words += other.words;
+		}
+	}
+	
+	/**
+	 * Count the content of a stream, reading a large buffer at a time.
+	 */
+	static Counts count(InputStream in) throws IOException
+	{
+		Counts counts = new Counts();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int len;
+		while ((len = in.read(buffer)) >= 0)
+			counts.add(buffer, 0, len);
+		return counts;
+	}
+	
+	/**
+	 * Count the content of a file, memory-mapped if it is large, otherwise read with large reads into a direct
+	 * buffer.
+	 */
+	static Counts count(Path file) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			return channel.size() >= MAP_THRESHOLD ? countMapped(channel) : countDirect(channel);
+		}
+	}
+	
+	/**
+	 * Count the content of a channel, memory-mapped a window at a time.
+	 */
+	static Counts countMapped(FileChannel channel) throws IOException
+	{
+		Counts counts = new Counts();
+		long size = channel.size();
+		for (long position = 0; position < size; position += MAP_WINDOW)
+			counts.add(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position)));
+		return counts;
+	}
+	
+	/**
+	 * Count the content of a channel, read with large reads into a direct buffer.
+	 */
+	static Counts countDirect(FileChannel channel) throws IOException
+	{
+		Counts counts = new Counts();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		while (channel.read(buffer) >= 0)
+		{
+			buffer.flip();
+			counts.add(buffer);
+			buffer.clear();
+		}
+		return counts;
+	}
+	
+	public static void countChars(InputStream in) throws IOException
+	{
+		long count = count(in).bytes;
 		
 		System.out.println("Counted " + count + " chars.");
 	}
 	
 	public static void main(String[] args) throws Exception
 	{
-		if (args.length == 1)
-			countChars(new FileInputStream(args[0]));
+		if (args.length > 0 && args[0].equals("-parallel"))
+			ParallelCount.main(Arrays.copyOfRange(args, 1, args.length));
+		else if (args.length == 1)
+		{
+			Counts counts = count(Paths.get(args[0]));
+			System.out.println("Counted " + counts.bytes + " chars.");
+			System.out.println("Bytes: " + counts.bytes + ", UTF-8 characters: " + counts.chars + ", lines: " + counts.lines
+					+ ", words: " + counts.words);
+		}
 		else
+		{
 			System.err.println("Usage: Count filename");
+			System.err.println("       Count -parallel [-threads n] filename...");
+		}
 	}
 }
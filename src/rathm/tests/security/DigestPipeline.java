@@ -0,0 +1,262 @@
+/*
+ * Sign and checksum files in a single read
+ * ----------------------------------------
+ * 
+ * Running GenSig and then sha256sum, sha512sum, ... on a release set reads every file once per tool. Here each
+ * file is read once (see FileFeeder) and every buffer read is fanned out to all the MessageDigests and to the
+ * Signature. A buffer is handed to them CHUNK_SIZE bytes at a time, so the chunk is still in the processor
+ * cache for the second and later consumers, also for the 256 MB windows of the mapped files.
+ * 
+ * When the file has been read, all its outputs are written, each one atomically:
+ * 
+ *     file.sig          signature, as GenSig (the public key is written to GenSig.key.pub)
+ *     file.sha256       "hex  name" line of each digest, checkable with sha256sum -c, sha512sum -c, ...
+ *     file.sha512
+ *     file.sha3-256
+ * 
+ * The digests are chosen with -md, a comma separated list of MessageDigest algorithms, by default SHA-256,
+ * SHA-512 and SHA3-256; the fastest provider of each one is used (see ProviderSelector). Directories are signed
+ * recursively, skipping the outputs of a previous run. The files are processed by a pool of worker threads, one
+ * per core by default, each with its own digests and signature.
+ * 
+ * Usage:
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.GenSig -digests [-alg name] [-keystore file ...] [-md SHA-256,SHA-512,SHA3-256] [-threads n] fileOrDirectory...
+ */
+
+package rathm.tests.security;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+class DigestPipeline
+{
+	static final List<String> DEFAULT_DIGESTS = List.of("SHA-256", "SHA-512", "SHA3-256");
+	
+	// Part of a buffer handed to all the consumers before the next part, small enough to stay in the L2 cache
+	static final int CHUNK_SIZE = 256 * 1024;
+	
+	private final SigAlgorithm algorithm;
+	private final PrivateKey privateKey;
+	private final List<String> digestAlgorithms;
+	private final List<String> suffixes;
+	
+	// The consumers of a file, per worker thread
+	private final ThreadLocal<Consumers> consumers = ThreadLocal.withInitial(Consumers::new);
+	
+	private final AtomicLong files = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong failedFiles = new AtomicLong();
+	
+	/**
+	 * Digests and signature of a worker thread, fed with the same buffers.
+	 */
+	private class Consumers implements FileFeeder.Sink
+	{
+		final MessageDigest[] digests = new MessageDigest[digestAlgorithms.size()];
+		final Signature sig;
+		
+		Consumers()
+		{
+			try
+			{
+				for (int i = 0; i < digests.length; i++)
+					digests[i] = ProviderSelector.messageDigest(digestAlgorithms.get(i));
+				sig = algorithm.newSignature();
+				sig.initSign(privateKey);
+			}
+			catch (GeneralSecurityException e)
+			{
+				throw new IllegalStateException("Cannot create digest or signature object", e);
+			}
+		}
+		
+		@Override
+		public void update(ByteBuffer data) throws SignatureException
+		{
+			int end = data.limit();
+			for (int start = data.position(); start < end; start += CHUNK_SIZE)
+			{
+				int limit = Math.min(end, start + CHUNK_SIZE);
+				for (MessageDigest md : digests)
+				{
+					data.limit(limit).position(start);
+					md.update(data);
+				}
+				data.limit(limit).position(start);
+				sig.update(data);
+			}
+			data.limit(end).position(end);
+		}
+	}
+	
+	DigestPipeline(SigAlgorithm algorithm, PrivateKey privateKey, List<String> digestAlgorithms)
+	{
+		this.algorithm = algorithm;
+		this.privateKey = privateKey;
+		this.digestAlgorithms = digestAlgorithms;
+		this.suffixes = digestAlgorithms.stream().map(DigestPipeline::suffix).collect(Collectors.toList());
+	}
+	
+	/**
+	 * @return Suffix of the checksum files of a digest algorithm, e.g. ".sha256" for SHA-256, as the names of
+	 *         the sha256sum tools
+	 */
+	static String suffix(String digestAlgorithm)
+	{
+		return "." + digestAlgorithm.toLowerCase().replace("sha-", "sha").replace('/', '-');
+	}
+	
+	/**
+	 * @return Whether the file is an output of a previous run
+	 */
+	private boolean isOutput(Path file)
+	{
+		String name = file.getFileName().toString();
+		return SignatureFile.isSignatureFile(file) || name.equals(GenSig.PUBLIC_KEY_FILE_NAME)
+				|| suffixes.stream().anyMatch(name::endsWith);
+	}
+	
+	/**
+	 * Read a file once, then write its signature and checksum files.
+	 */
+	void process(Path file)
+	{
+		Consumers c = consumers.get();
+		try
+		{
+			long size = FileFeeder.feed(file, c);
+			
+			// digest() and sign() also reset the objects for the next file
+			String name = file.getFileName().toString();
+			byte[][] checksums = new byte[c.digests.length][];
+			for (int i = 0; i < c.digests.length; i++)
+			{
+				String line = HexFormat.of().formatHex(c.digests[i].digest()) + "  " + name + "\n";
+				checksums[i] = line.getBytes(StandardCharsets.UTF_8);
+			}
+			SignatureFile signature = new SignatureFile(algorithm, c.sig.sign());
+			
+			signature.write(Paths.get(file + GenSig.SIGNATURE_FILE_SUFFIX));
+			for (int i = 0; i < checksums.length; i++)
+				SignatureFile.writeAtomically(Paths.get(file + suffixes.get(i)), checksums[i]);
+			
+			files.incrementAndGet();
+			bytes.addAndGet(size);
+		}
+		catch (IOException | GeneralSecurityException e)
+		{
+			// Data may have been fed to the objects before the failure, start over with new ones
+			consumers.remove();
+			failedFiles.incrementAndGet();
+			System.err.println("[ERROR] Cannot sign file: [" + file + "] " + e);
+		}
+	}
+	
+	/**
+	 * Process the files, and the regular files under the directories.
+	 */
+	void processAll(List<Path> paths, int threads) throws IOException, InterruptedException
+	{
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		long start = System.nanoTime();
+		
+		try
+		{
+			for (Path path : paths)
+			{
+				try (Stream<Path> tree = Files.walk(path))
+				{
+					tree.filter(Files::isRegularFile)
+							.filter(file -> !isOutput(file))
+							.forEach(file -> workers.execute(() -> process(file)));
+				}
+			}
+		}
+		finally
+		{
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.format("Signed and hashed %d files (%d bytes) with %s and %s, %d threads in %.3f s%n", files.get(),
+				bytes.get(), algorithm, String.join(", ", digestAlgorithms), threads, seconds);
+		System.out.format("Throughput: %.1f files/s, %.1f MB/s read once for %d outputs%n", files.get() / seconds,
+				bytes.get() / seconds / (1024 * 1024), digestAlgorithms.size() + 1);
+		if (failedFiles.get() > 0)
+			System.err.format("[ERROR] %d files could not be signed%n", failedFiles.get());
+	}
+	
+	/**
+	 * @param args
+	 *            Files and directories, -md algorithms, -threads n, -alg name and -keystore options
+	 */
+	static void main(String[] args)
+	{
+		List<String> argList = new ArrayList<>(Arrays.asList(args));
+		SigningKeyStore keyStore = SigningKeyStore.removeOptions(argList);
+		try
+		{
+			SigAlgorithm algorithm = SigAlgorithm.removeOption(argList);
+			List<String> digestAlgorithms = DEFAULT_DIGESTS;
+			int threads = Runtime.getRuntime().availableProcessors();
+			int i = argList.indexOf("-md");
+			if (i >= 0 && i + 1 < argList.size())
+			{
+				digestAlgorithms = Arrays.asList(argList.get(i + 1).split(","));
+				argList.subList(i, i + 2).clear();
+			}
+			i = argList.indexOf("-threads");
+			if (i >= 0 && i + 1 < argList.size())
+			{
+				threads = Integer.parseInt(argList.get(i + 1));
+				argList.subList(i, i + 2).clear();
+			}
+			if (argList.isEmpty() || threads < 1)
+			{
+				System.err.println("Usage: GenSig -digests [-alg name] [-keystore file [-alias name] "
+						+ "[-storepass pass]] [-md SHA-256,SHA-512,SHA3-256] [-threads n] fileOrDirectory...");
+				return;
+			}
+			
+			// Fail before reading any file if an algorithm is not available
+			for (String digestAlgorithm : digestAlgorithms)
+				ProviderSelector.messageDigest(digestAlgorithm);
+			
+			KeyPair pair = GenSig.signingKeyPair(keyStore, algorithm);
+			GenSig.savePublicKey(pair.getPublic(), GenSig.PUBLIC_KEY_FILE_NAME);
+			
+			List<Path> paths = argList.stream().map(Paths::get).collect(Collectors.toList());
+			new DigestPipeline(SigAlgorithm.forKey(pair.getPublic()), pair.getPrivate(), digestAlgorithms)
+					.processAll(paths, threads);
+		}
+		catch (GeneralSecurityException | IOException | IllegalArgumentException e)
+		{
+			System.err.println("[ERROR] " + e);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
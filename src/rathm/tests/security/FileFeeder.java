@@ -0,0 +1,135 @@
+/*
+ * Feed the content of a file to a Signature (or any other ByteBuffer consumer)
+ * ----------------------------------------------------------------------------
+ * 
+ * I/O engine shared by GenSig and VerSig.
+ * The tutorial code reads the data file through a BufferedInputStream into a 1 KB byte[] and calls
+ * Signature.update for every buffer. That is one copy and (at best) one read syscall per 8 KB, so on
+ * large files the run is limited by the I/O calls and not by the digest.
+ * 
+ * Here the data is handed to Signature.update(ByteBuffer) without going through a Java heap byte[]:
+ * 
+ *     - Files of at least MAP_THRESHOLD bytes are memory-mapped with FileChannel.map, a window of
+ *       MAP_WINDOW bytes at a time (a single mapping is limited to 2 GB).
+ *     - Smaller files, and files that cannot be mapped (pipes, devices, /proc entries, ...), are read with
+ *       FileChannel.read into a large direct buffer. The direct buffer is reused per thread.
+ */
+
+package rathm.tests.security;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.Signature;
+import java.security.SignatureException;
+
+class FileFeeder
+{
+	// Below this size the mmap/munmap calls cost more than reading the file into a buffer
+	static final long MAP_THRESHOLD = 4L * 1024 * 1024;
+	
+	static final long MAP_WINDOW = 256L * 1024 * 1024;
+	
+	static final int DIRECT_BUFFER_SIZE = 1024 * 1024;
+	
+	private static final ThreadLocal<ByteBuffer> directBuffers = ThreadLocal
+			.withInitial(() -> ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE));
+	
+	/**
+	 * Consumer of the file content, e.g. Signature::update
+	 */
+	interface Sink
+	{
+		void update(ByteBuffer data) throws SignatureException;
+	}
+	
+	/**
+	 * Supply the Signature object with the content of a file.
+	 * 
+	 * @param sig
+	 *            Signature initialized for signing or verifying
+	 * @param file
+	 *            File to read
+	 * @return Number of bytes supplied to the signature
+	 */
+	static long update(Signature sig, Path file) throws IOException, SignatureException
+	{
+		return feed(file, sig::update);
+	}
+	
+	/**
+	 * Supply the sink with the content of a file, memory-mapped or read in large blocks depending on the
+	 * file size.
+	 * 
+	 * @param file
+	 *            File to read
+	 * @param sink
+	 *            Consumer of the file content
+	 * @return Number of bytes supplied to the sink
+	 */
+	static long feed(Path file, Sink sink) throws IOException, SignatureException
+	{
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			if (size >= MAP_THRESHOLD)
+			{
+				long fed = feedMapped(channel, size, sink);
+				if (fed >= 0)
+					return fed;
+			}
+			// Small or not a mappable file
+			return feedDirect(channel, sink);
+		}
+	}
+	
+	/**
+	 * Supply the sink with the content of a channel, a mapped window at a time.
+	 * 
+	 * @return Number of bytes supplied to the sink, or -1 if the channel cannot be mapped
+	 */
+	static long feedMapped(FileChannel channel, long size, Sink sink) throws IOException, SignatureException
+	{
+		long position = 0;
+		while (position < size)
+		{
+			long length = Math.min(MAP_WINDOW, size - position);
+			MappedByteBuffer window;
+			try
+			{
+				window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+			}
+			catch (UnsupportedOperationException | IOException e)
+			{
+				// Only safe to fall back to reading if nothing was supplied to the sink yet
+				if (position > 0)
+					throw e;
+				return -1;
+			}
+			sink.update(window);
+			position += length;
+		}
+		return size;
+	}
+	
+	/**
+	 * Supply the sink with the content of a channel, read into the direct buffer of the current thread.
+	 */
+	static long feedDirect(FileChannel channel, Sink sink) throws IOException, SignatureException
+	{
+		ByteBuffer buffer = directBuffers.get();
+		long total = 0;
+		buffer.clear();
+		while (channel.read(buffer) >= 0)
+		{
+			buffer.flip();
+			total += buffer.remaining();
+			sink.update(buffer);
+			buffer.clear();
+		}
+		return total;
+	}
+}
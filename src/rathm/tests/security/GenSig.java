@@ -9,23 +9,52 @@
  * 
  * The signature is written to a file whose name is the name of the signed file + ".sig"
  * 
- * The program also generates a key-pair used to sign and verify the file.
+ * The program also generates a key-pair used to sign and verify the file, or reads it from a PKCS12 keystore
+ * with -keystore (see SigningKeyStore).
  * The public key is written to a file named "GenSig.key.pub"
  * 
+ * The signature algorithm is chosen with -alg (see SigAlgorithm): DSA (the original 1024 bit SHA1withDSA),
+ * ED25519, ECDSA_P256 (default) or RSA_PSS. The algorithm is recorded in the header of the signature file.
+ * 
  * Usage:
- * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.GenSig nameOfFileToSign
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.GenSig [-alg name] [-keystore file [-alias name] [-storepass pass]] nameOfFileToSign
+ * 
+ * Batch mode, signs every file in a directory tree with a single key-pair (see BatchSigner):
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.GenSig -batch [-alg name] [-keystore file ...] directory [threads]
+ * 
+ * Watch mode, keeps running and re-signs the files of a directory tree as they change (see WatchSigner):
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.GenSig -watch [-alg name] [-keystore file ...] directory [threads]
+ * 
+ * Digests mode, reads each file once to write its signature and checksums (SHA-256, SHA-512, SHA3-256 by
+ * default) together (see DigestPipeline):
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.GenSig -digests [-alg name] [-keystore file ...] [-md SHA-256,...] [-threads n] fileOrDirectory...
+ * 
+ * Merkle mode, signs the root of a tree of chunk hashes so the file can be hashed and verified in parallel,
+ * or partially (see MerkleSig):
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.GenSig -merkle [-alg name] [-keystore file ...] nameOfFileToSign [chunkSize]
+ * 
+ * Ephemeral mode, signs each file with its own key-pair, generated ahead of time in background threads (see
+ * KeyPairPool):
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.GenSig -ephemeral [-alg name] [-pool threads] fileToSign...
+ * 
+ * Daemon mode, keeps the keys and code warm and serves GenSig and VerSig requests on a Unix-domain socket,
+ * sent with SigClient (see SigDaemon):
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.GenSig -daemon [-socket path] [-threads n] [-alg name] [-keystore file ...]
+ * 
+ * Benchmark mode, writes the sign and verify throughput of each algorithm (see SigBench):
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.GenSig -bench [seconds] [algorithm...]
  */
 
 package rathm.tests.security;
 
-import java.io.BufferedInputStream;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
@@ -33,112 +62,206 @@ import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 class GenSig
 {
+	static final String PUBLIC_KEY_FILE_NAME = "GenSig.key.pub";
+	static final String SIGNATURE_FILE_SUFFIX = ".sig";
+	
+	/**
+	 * Generate the key-pair used to sign and verify files.
+	 * 
+	 * @param algorithm
+	 *            Signature algorithm the keys are used with
+	 * @return New key-pair
+	 */
+	static KeyPair generateKeyPair(SigAlgorithm algorithm)
+			throws NoSuchAlgorithmException, NoSuchProviderException, InvalidAlgorithmParameterException
+	{
+		/*
+		 * Get a cryptographically strong random number generator (RNG)
+		 * ------------------------------------------------------------
+		 * Starting from JDK 8 Java distributions include a list of known strong SecureRandom
+		 * implementations in the securerandom.strongAlgorithms property.
+		 * You can use code like the below to show which algorithms and providers are available in your Java environment.
+		 *     System.out.println(Security.getProperty("securerandom.strongAlgorithms"));
+		 * Example output for openjdk version "1.8.0_40"
+		 *     NativePRNGBlocking:SUN
+		 * 
+		 * Using this example, you could get a random number generator like so:
+		 *     SecureRandom random = SecureRandom.getInstance("NativePRNGBlocking", "SUN");
+		 * 
+		 * Alternatively, you can use the SecureRandom.getInstanceStrong() method, available from Java 8.
+		 * This method returns a SecureRandom object that was selected by using the algorithms/providers specified
+		 * in the above mentioned securerandom.strongAlgorithms Security property.
+		 * Example:
+		 *     SecureRandom random = SecureRandom.getInstanceStrong();
+		 */
+		
+		// Get a cryptographically strong random number generator (RNG) which uses the SHA1PRNG
+		// algorithm, as provided by the built-in SUN provider.
+		// I use the algorithm and provider from the Java tutorial example
+		// http://docs.oracle.com/javase/tutorial/security/apisign/step2.html
+		SecureRandom random = SecureRandom.getInstance("SHA1PRNG", "SUN");
+		
+		// Get a key-pair generator for the algorithm, initialize it with the key size or parameters of the
+		// algorithm (e.g. 1024 bits for DSA, the P-256 curve for ECDSA) and a source of randomness, and
+		// generate the key pair.
+		return algorithm.generateKeyPair(random);
+	}
+	
+	/**
+	 * Get the key-pair to sign with: read from the keystore given with -keystore, else generated.
+	 * 
+	 * @param keyStore
+	 *            Keystore of the options, or null
+	 * @param algorithm
+	 *            Algorithm of the -alg option, see SigningKeyStore.getKeyPair
+	 * @return The key-pair, use SigAlgorithm.forKey for its algorithm
+	 */
+	static KeyPair signingKeyPair(SigningKeyStore keyStore, SigAlgorithm algorithm)
+			throws IOException, GeneralSecurityException
+	{
+		return keyStore != null ? keyStore.getKeyPair(algorithm) : generateKeyPair(algorithm);
+	}
+	
+	/**
+	 * Save the encoded public key in a file.
+	 * 
+	 * @param pub
+	 *            Public key to save
+	 * @param fileName
+	 *            Name of the public key file
+	 */
+	static void savePublicKey(PublicKey pub, String fileName) throws IOException
+	{
+		byte[] key = pub.getEncoded();
+		FileOutputStream keyfos = new FileOutputStream(fileName);
+		keyfos.write(key);
+		keyfos.close();
+		System.out.println("Created public key in file: " + fileName);
+	}
 	
 	/**
 	 * @param args
-	 *            File to sign
+	 *            File to sign, or -batch / -watch / -digests / -merkle / -ephemeral / -daemon / -bench followed by the
+	 *            arguments of the mode.
+	 *            The signature algorithm can be chosen with -alg name, the key read from a keystore with
+	 *            -keystore file.
 	 */
 	public static void main(String[] args)
 	{
-		final String PUBLIC_KEY_FILE_NAME = "GenSig.key.pub";
-		final String SIGNATURE_FILE_SUFFIX = ".sig";
+		if (args.length > 0 && args[0].equals("-bench"))
+		{
+			SigBench.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-batch"))
+		{
+			BatchSigner.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-watch"))
+		{
+			WatchSigner.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-digests"))
+		{
+			DigestPipeline.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-merkle"))
+		{
+			MerkleSig.mainSign(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-ephemeral"))
+		{
+			KeyPairPool.mainEphemeral(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-daemon"))
+		{
+			SigDaemon.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
 		
 		String fileName = null;
+		List<String> argList = new ArrayList<>(Arrays.asList(args));
+		SigningKeyStore keyStore = SigningKeyStore.removeOptions(argList);
+		SigAlgorithm algorithm;
+		try
+		{
+			algorithm = SigAlgorithm.removeOption(argList);
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println("[ERROR] " + e.getMessage());
+			return;
+		}
 		
-		if (args.length != 1)
+		if (argList.size() != 1)
 		{
-			System.err.println("Usage: GenSig nameOfFileToSign");
+			System.err.println("Usage: GenSig [-alg name] [-keystore file [-alias name] [-storepass pass]] "
+					+ "nameOfFileToSign");
+			System.err.println("       GenSig -batch [-alg name] [-keystore file ...] directory [threads]");
+			System.err.println("       GenSig -watch [-alg name] [-keystore file ...] directory [threads]");
+			System.err.println("       GenSig -digests [-alg name] [-keystore file ...] [-md SHA-256,...] [-threads n] "
+					+ "fileOrDirectory...");
+			System.err.println("       GenSig -merkle [-alg name] [-keystore file ...] nameOfFileToSign [chunkSize]");
+			System.err.println("       GenSig -ephemeral [-alg name] [-pool threads] fileToSign...");
+			System.err.println("       GenSig -daemon [-socket path] [-threads n] [-alg name] [-keystore file ...]");
+			System.err.println("       GenSig -bench [seconds] [algorithm...]");
+			System.err.println("Algorithms: " + Arrays.toString(SigAlgorithm.values()) + ", default " + SigAlgorithm.DEFAULT);
 		}
 		else
 		{
 			try
 			{
-				fileName = args[0];
+				fileName = argList.get(0);
 				
-				// Get a key-pair generator for the Digital Signature Algorithm (DSA), as provided by the
-				// built-in SUN provider
-				KeyPairGenerator keyGen = KeyPairGenerator.getInstance("DSA", "SUN");
-				
-				/*
-				 * Get a cryptographically strong random number generator (RNG)
-				 * ------------------------------------------------------------
-				 * Starting from JDK 8 Java distributions include a list of known strong SecureRandom
-				 * implementations in the securerandom.strongAlgorithms property.
-				 * You can use code like the below to show which algorithms and providers are available in your Java environment.
-				 *     System.out.println(Security.getProperty("securerandom.strongAlgorithms"));
-				 * Example output for openjdk version "1.8.0_40"
-				 *     NativePRNGBlocking:SUN
-				 *     
-				 * Using this example, you could get a random number generator like so:
-				 *     SecureRandom random = SecureRandom.getInstance("NativePRNGBlocking", "SUN");
-				 *     
-				 * Alternatively, you can use the SecureRandom.getInstanceStrong() method, available from Java 8.
-				 * This method returns a SecureRandom object that was selected by using the algorithms/providers specified 
-				 * in the above mentioned securerandom.strongAlgorithms Security property.
-				 * Example:
-				 *     SecureRandom random = SecureRandom.getInstanceStrong();
-				 */
-				
-				// Get a cryptographically strong random number generator (RNG) which uses the SHA1PRNG
-				// algorithm, as provided by the built-in SUN provider.
-				// I use the algorithm and provider from the Java tutorial example
-				// http://docs.oracle.com/javase/tutorial/security/apisign/step2.html
-				SecureRandom random = SecureRandom.getInstance("SHA1PRNG", "SUN");
-				
-				// Initialize the key-pair generator with a key size and a source of randomness.
-				keyGen.initialize(1024, random);
-				
-				// Generate the key pair
-				KeyPair pair = keyGen.generateKeyPair();
+				// Generate the key pair, or read it from the keystore
+				KeyPair pair = signingKeyPair(keyStore, algorithm);
+				algorithm = SigAlgorithm.forKey(pair.getPublic());
 				PrivateKey priv = pair.getPrivate();
 				PublicKey pub = pair.getPublic();
 				
 				// Save the public key in a file
-				byte[] key = pub.getEncoded();
-				FileOutputStream keyfos = new FileOutputStream("GenSig.key.pub");
-				keyfos.write(key);
-				keyfos.close();
-				System.out.println("Created public key in file: " + PUBLIC_KEY_FILE_NAME );
+				savePublicKey(pub, PUBLIC_KEY_FILE_NAME);
 				
-				// Get a Signature Object for generating signatures using the DSA algorithm, the same
-				// algorithm I used to generate the keys.
+				// Get a Signature Object for generating signatures using the same algorithm I used to generate
+				// the keys.
 				// Note: When specifying the signature algorithm name, you should also include the name of the
 				// message digest algorithm used by the signature algorithm.
 				// SHA1withDSA is a way of specifying the DSA signature algorithm, using the SHA-1 message
 				// digest algorithm.
-				Signature dsa = Signature.getInstance("SHA1withDSA", "SUN");
+				Signature sig = algorithm.newSignature();
 				
 				// Before a Signature object can be used for signing or verifying, it must be initialized.
 				// The initialization method for signing requires a private key.
-				dsa.initSign(priv);
+				sig.initSign(priv);
 				
 				// Supply the Signature Object the data to be signed.
-				// Read the file, a buffer at a time, and supply it to the Signature object by calling the
-				// update method.
-				FileInputStream fis = new FileInputStream(fileName);
-				BufferedInputStream bufin = new BufferedInputStream(fis);
-				byte[] buffer = new byte[1024];
-				int len;
-				while ((len = bufin.read(buffer)) >= 0)
-				{
-					dsa.update(buffer, 0, len);
-				}
-				bufin.close();
+				// The file is memory-mapped, or read a large buffer at a time, and supplied to the Signature
+				// object by calling the update method (see FileFeeder).
+				FileFeeder.update(sig, Paths.get(fileName));
 				
 				// Generate the digital signature of the data provided to the Signature object.
-				byte[] realSig = dsa.sign();
+				byte[] realSig = sig.sign();
 				
 				// Save the signature in a file whose name is the name of the signed file + ".sig"
+				// The file header records the algorithm, for VerSig (see SignatureFile).
 				String signatureFileName = fileName + SIGNATURE_FILE_SUFFIX;
 				FileOutputStream sigfos = new FileOutputStream(signatureFileName);
-				sigfos.write(realSig);
+				sigfos.write(new SignatureFile(algorithm, realSig).encode());
 				sigfos.close();
 				System.out.println("Created signature in file: " + signatureFileName);
 			}
-			catch (NoSuchAlgorithmException | NoSuchProviderException e)
+			catch (NoSuchAlgorithmException | NoSuchProviderException | InvalidAlgorithmParameterException e)
 			{
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -163,6 +286,10 @@ class GenSig
 				// TODO Auto-generated catch block
 				e.printStackTrace();
 			}
+			catch (GeneralSecurityException | IllegalArgumentException e)
+			{
+				System.err.println("[ERROR] Cannot get the signing key: " + e.getMessage());
+			}
 		}
 	}
 }
\ No newline at end of file
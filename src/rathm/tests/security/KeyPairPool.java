@@ -0,0 +1,197 @@
+/*
+ * Key-pairs generated ahead of time
+ * ---------------------------------
+ * 
+ * For workflows that sign with a new key-pair each time (ephemeral keys), the key generation is on the critical
+ * path of every signature: tens of milliseconds for RSA_PSS, more than hashing a small file. A KeyPairPool
+ * generates the key-pairs in background threads, at minimum priority so they run on the spare cores, and keeps
+ * up to capacity of them ready: take() then only waits when the signing is faster than the generation.
+ * 
+ * Each generator thread has its own SecureRandom (the default algorithm, seeded from the operating system)
+ * rather than sharing one, which would serialize the threads.
+ * 
+ * GenSig -ephemeral signs each file with its own key-pair from a pool. The public key is written next to the
+ * signature, to verify with VerSig file.pub file.sig file:
+ * 
+ *     file.sig    signature
+ *     file.pub    public key of the signature
+ * 
+ * -pool sets the number of generator threads, by default one less than the number of processors (at least one).
+ * 
+ * Usage:
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.GenSig -ephemeral [-alg name] [-pool threads] fileToSign...
+ */
+
+package rathm.tests.security;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+class KeyPairPool implements AutoCloseable
+{
+	static final String PUBLIC_KEY_FILE_SUFFIX = ".pub";
+	
+	private final SigAlgorithm algorithm;
+	private final BlockingQueue<KeyPair> pairs;
+	private final List<Thread> generators = new ArrayList<>();
+	
+	// First generation error, given to take() once the pool is empty
+	private volatile GeneralSecurityException failure;
+	
+	/**
+	 * Start generating key-pairs.
+	 * 
+	 * @param capacity
+	 *            Number of key-pairs kept ready
+	 * @param threads
+	 *            Number of generator threads
+	 */
+	KeyPairPool(SigAlgorithm algorithm, int capacity, int threads)
+	{
+		this.algorithm = algorithm;
+		this.pairs = new ArrayBlockingQueue<>(capacity);
+		for (int i = 0; i < threads; i++)
+		{
+			Thread generator = new Thread(this::generate, "keypair-" + algorithm + "-" + i);
+			generator.setDaemon(true);
+			generator.setPriority(Thread.MIN_PRIORITY);
+			generators.add(generator);
+			generator.start();
+		}
+	}
+	
+	private void generate()
+	{
+		SecureRandom random = new SecureRandom();
+		try
+		{
+			while (!Thread.currentThread().isInterrupted())
+				pairs.put(algorithm.generateKeyPair(random));
+		}
+		catch (GeneralSecurityException e)
+		{
+			if (failure == null)
+				failure = e;
+		}
+		catch (InterruptedException e)
+		{
+			// Closed
+		}
+	}
+	
+	/**
+	 * Get a new key-pair, waiting for one if none is ready.
+	 */
+	KeyPair take() throws InterruptedException, GeneralSecurityException
+	{
+		while (true)
+		{
+			KeyPair pair = pairs.poll(100, TimeUnit.MILLISECONDS);
+			if (pair != null)
+				return pair;
+			if (failure != null)
+				throw failure;
+		}
+	}
+	
+	/**
+	 * Stop the generator threads.
+	 */
+	@Override
+	public void close()
+	{
+		for (Thread generator : generators)
+			generator.interrupt();
+	}
+	
+	/**
+	 * GenSig -ephemeral: sign each file with a new key-pair.
+	 * 
+	 * @param args
+	 *            Files to sign, and -alg name / -pool threads
+	 */
+	static void mainEphemeral(String[] args)
+	{
+		List<String> argList = new ArrayList<>(Arrays.asList(args));
+		SigAlgorithm algorithm;
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+		try
+		{
+			algorithm = SigAlgorithm.removeOption(argList);
+			int i = argList.indexOf("-pool");
+			if (i >= 0 && i + 1 < argList.size())
+			{
+				threads = Integer.parseInt(argList.get(i + 1));
+				argList.subList(i, i + 2).clear();
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			System.err.println("[ERROR] Invalid number of threads: " + e.getMessage());
+			algorithm = null;
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println("[ERROR] " + e.getMessage());
+			algorithm = null;
+		}
+		if (algorithm == null || argList.isEmpty() || threads < 1)
+		{
+			System.err.println("Usage: GenSig -ephemeral [-alg name] [-pool threads] fileToSign...");
+			return;
+		}
+		
+		long start = System.nanoTime();
+		long waitNanos = 0;
+		int signed = 0;
+		try (KeyPairPool pool = new KeyPairPool(algorithm, 2 * threads, threads))
+		{
+			Signature sig = algorithm.newSignature();
+			for (String fileName : argList)
+			{
+				Path file = Paths.get(fileName);
+				long wait = System.nanoTime();
+				KeyPair pair = pool.take();
+				waitNanos += System.nanoTime() - wait;
+				try
+				{
+					// initSign also resets the signature object after a failure
+					sig.initSign(pair.getPrivate());
+					FileFeeder.update(sig, file);
+					byte[] signature = sig.sign();
+					new SignatureFile(algorithm, signature).write(Paths.get(fileName + GenSig.SIGNATURE_FILE_SUFFIX));
+					Files.write(Paths.get(fileName + PUBLIC_KEY_FILE_SUFFIX), pair.getPublic().getEncoded());
+					signed++;
+				}
+				catch (IOException | GeneralSecurityException e)
+				{
+					System.err.println("[ERROR] Cannot sign file: [" + file + "] " + e);
+				}
+			}
+		}
+		catch (GeneralSecurityException e)
+		{
+			System.err.println("[ERROR] Cannot generate " + algorithm + " key-pairs: " + e);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return;
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.format("Signed %d files with %s ephemeral keys in %.3f s, %.3f s waiting for keys (%d generator "
+				+ "threads)%n", signed, algorithm, seconds, waitNanos / 1e9, threads);
+	}
+}
@@ -0,0 +1,519 @@
+/*
+ * Chunked Merkle-tree signature of a file
+ * ---------------------------------------
+ * 
+ * GenSig produces one signature over the whole file stream, so hashing a huge file uses a single core and
+ * verifying any part of the file means reading all of it.
+ * With this format the file is split into fixed-size chunks which are hashed (SHA-256) in parallel. The chunk
+ * hashes are the leaves of a binary Merkle tree and only the root of the tree is signed.
+ * 
+ *     leaf = SHA-256(0x00 || chunk)
+ *     node = SHA-256(0x01 || left || right)
+ * 
+ * When a level has an odd number of nodes, the last node is promoted unchanged to the next level.
+ * 
+ * The signature file (name of the signed file + ".msig") contains:
+ * 
+ *     header      magic "MSIG", format version, chunk size, file length, number of leaves
+ *     tree        all the nodes, level by level from the leaves to the root
+ *     signature   length and bytes of the signature of header || root, in the format of SignatureFile
+ * 
+ * The signature covers the header so chunk size and file length cannot be changed.
+ * The stored tree nodes are not trusted: a verifier only uses them as siblings when it recomputes the root,
+ * and then checks the signature against the recomputed root.
+ * 
+ * This allows:
+ *     - verification of the full file, hashing the chunks in parallel on all cores.
+ *     - verification of a byte range, reading only the chunks of the range and the sibling nodes on the
+ *       path from these chunks to the root.
+ * 
+ * Usage:
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.GenSig -merkle [-alg name] nameOfFileToSign [chunkSize]
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.VerSig -merkle publickeyfile signaturefile datafile [offset length]
+ */
+
+package rathm.tests.security;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+class MerkleSig
+{
+	static final String SIGNATURE_FILE_SUFFIX = ".msig";
+	
+	static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+	
+	private static final int MAGIC = 0x4d534947; // "MSIG"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 24;
+	private static final int HASH_SIZE = 32;
+	
+	private static final byte LEAF_PREFIX = 0;
+	private static final byte NODE_PREFIX = 1;
+	
+	private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+		try
+		{
+			return ProviderSelector.messageDigest("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	});
+	
+	final int chunkSize;
+	final long fileLength;
+	final int leafCount;
+	
+	MerkleSig(int chunkSize, long fileLength)
+	{
+		if (chunkSize <= 0)
+			throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+		this.chunkSize = chunkSize;
+		this.fileLength = fileLength;
+		// An empty file has one (empty) chunk
+		long leaves = Math.max(1, (fileLength + chunkSize - 1) / chunkSize);
+		if (leaves > Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException("Too many chunks (" + leaves + ") of " + chunkSize + " bytes, use a "
+					+ "larger chunk size");
+		}
+		this.leafCount = (int) leaves;
+	}
+	
+	/**
+	 * Header of the signature file, this is also the start of the signed data.
+	 */
+	byte[] header()
+	{
+		return ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).putInt(chunkSize).putLong(fileLength)
+				.putInt(leafCount).array();
+	}
+	
+	/**
+	 * Parse the header of a signature file.
+	 */
+	static MerkleSig parseHeader(ByteBuffer header) throws IOException
+	{
+		if (header.getInt() != MAGIC || header.getInt() != VERSION)
+			throw new IOException("Not a Merkle signature file");
+		int chunkSize = header.getInt();
+		long fileLength = header.getLong();
+		MerkleSig merkle = new MerkleSig(chunkSize, fileLength);
+		if (header.getInt() != merkle.leafCount)
+			throw new IOException("Invalid Merkle signature header");
+		return merkle;
+	}
+	
+	/**
+	 * Number of nodes in each level of the tree, from the leaves to the root.
+	 */
+	int[] levelSizes()
+	{
+		List<Integer> sizes = new ArrayList<>();
+		int size = leafCount;
+		sizes.add(size);
+		while (size > 1)
+		{
+			size = (size + 1) / 2;
+			sizes.add(size);
+		}
+		return sizes.stream().mapToInt(Integer::intValue).toArray();
+	}
+	
+	/**
+	 * Position in the signature file of a tree node.
+	 */
+	long nodePosition(int[] levelSizes, int level, int index)
+	{
+		long position = HEADER_SIZE;
+		for (int l = 0; l < level; l++)
+			position += (long) levelSizes[l] * HASH_SIZE;
+		return position + (long) index * HASH_SIZE;
+	}
+	
+	static byte[] hashNode(byte[] left, byte[] right)
+	{
+		MessageDigest md = digests.get();
+		md.update(NODE_PREFIX);
+		md.update(left);
+		md.update(right);
+		return md.digest();
+	}
+	
+	/**
+	 * Read a chunk of the file and hash it.
+	 */
+	byte[] hashLeaf(FileChannel channel, int index, ByteBuffer buffer) throws IOException
+	{
+		long position = (long) index * chunkSize;
+		int length = (int) Math.min(chunkSize, fileLength - position);
+		
+		buffer.clear().limit(length);
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException("File is shorter than its signed length");
+		}
+		buffer.flip();
+		
+		MessageDigest md = digests.get();
+		md.update(LEAF_PREFIX);
+		md.update(buffer);
+		return md.digest();
+	}
+	
+	/**
+	 * Hash all the chunks of a file in parallel.
+	 */
+	byte[][] hashLeaves(Path file) throws IOException
+	{
+		byte[][] leaves = new byte[leafCount][];
+		ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(chunkSize));
+		
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			if (channel.size() != fileLength)
+				throw new IOException("File length " + channel.size() + " does not match signed length " + fileLength);
+			
+			IntStream.range(0, leafCount).parallel().forEach(i -> {
+				try
+				{
+					leaves[i] = hashLeaf(channel, i, buffers.get());
+				}
+				catch (IOException e)
+				{
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+		catch (UncheckedIOException e)
+		{
+			throw e.getCause();
+		}
+		return leaves;
+	}
+	
+	/**
+	 * Build all levels of the tree from the leaves.
+	 * 
+	 * @return The levels, from the leaves to the root
+	 */
+	static List<byte[][]> buildTree(byte[][] leaves)
+	{
+		List<byte[][]> levels = new ArrayList<>();
+		byte[][] level = leaves;
+		levels.add(level);
+		while (level.length > 1)
+		{
+			byte[][] below = level;
+			byte[][] above = new byte[(below.length + 1) / 2][];
+			IntStream.range(0, above.length).parallel().forEach(i -> {
+				int left = 2 * i;
+				above[i] = left + 1 < below.length ? hashNode(below[left], below[left + 1]) : below[left];
+			});
+			level = above;
+			levels.add(level);
+		}
+		return levels;
+	}
+	
+	static byte[] root(List<byte[][]> levels)
+	{
+		return levels.get(levels.size() - 1)[0];
+	}
+	
+	/**
+	 * Sign a file and write its Merkle signature file.
+	 * 
+	 * @param file
+	 *            File to sign
+	 * @param chunkSize
+	 *            Size of the hashed chunks
+	 * @param algorithm
+	 *            Signature algorithm
+	 * @param priv
+	 *            Key used to sign the root of the tree
+	 * @return Name of the signature file
+	 */
+	static Path sign(Path file, int chunkSize, SigAlgorithm algorithm, PrivateKey priv)
+			throws IOException, GeneralSecurityException
+	{
+		MerkleSig merkle = new MerkleSig(chunkSize, Files.size(file));
+		List<byte[][]> levels = buildTree(merkle.hashLeaves(file));
+		
+		Signature sig = algorithm.newSignature();
+		sig.initSign(priv);
+		byte[] header = merkle.header();
+		sig.update(header);
+		sig.update(root(levels));
+		byte[] realSig = new SignatureFile(algorithm, sig.sign()).encode();
+		
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(content))
+		{
+			out.write(header);
+			for (byte[][] level : levels)
+				for (byte[] node : level)
+					out.write(node);
+			out.writeInt(realSig.length);
+			out.write(realSig);
+		}
+		Path signatureFile = Paths.get(file + SIGNATURE_FILE_SUFFIX);
+		SignatureFile.writeAtomically(signatureFile, content.toByteArray());
+		return signatureFile;
+	}
+	
+	/**
+	 * Check the signature of the root against the public key.
+	 */
+	private boolean verifyRoot(PublicKey pubKey, byte[] root, SignatureFile signature) throws GeneralSecurityException
+	{
+		Signature sig = signature.algorithm.newSignature();
+		sig.initVerify(pubKey);
+		sig.update(header());
+		sig.update(root);
+		return sig.verify(signature.signature);
+	}
+	
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException("Truncated Merkle signature file");
+		}
+		buffer.flip();
+	}
+	
+	private SignatureFile readSignature(FileChannel sigChannel, int[] levelSizes) throws IOException
+	{
+		long position = nodePosition(levelSizes, levelSizes.length, 0);
+		ByteBuffer length = ByteBuffer.allocate(4);
+		readFully(sigChannel, length, position);
+		int n = length.getInt();
+		if (n <= 0 || n > sigChannel.size() - position - 4)
+			throw new IOException("Invalid signature length in Merkle signature file: " + n);
+		ByteBuffer sig = ByteBuffer.allocate(n);
+		readFully(sigChannel, sig, position + 4);
+		return SignatureFile.decode(sig.array());
+	}
+	
+	/**
+	 * Read the signature of the root, e.g. to find the algorithm of the public key.
+	 */
+	static SignatureFile readSignature(Path signatureFile) throws IOException
+	{
+		try (FileChannel sigChannel = FileChannel.open(signatureFile, StandardOpenOption.READ))
+		{
+			MerkleSig merkle = readHeader(sigChannel);
+			return merkle.readSignature(sigChannel, merkle.levelSizes());
+		}
+	}
+	
+	private byte[] readNode(FileChannel sigChannel, int[] levelSizes, int level, int index) throws IOException
+	{
+		ByteBuffer node = ByteBuffer.allocate(HASH_SIZE);
+		readFully(sigChannel, node, nodePosition(levelSizes, level, index));
+		return node.array();
+	}
+	
+	private static MerkleSig readHeader(FileChannel sigChannel) throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(sigChannel, header, 0);
+		return parseHeader(header);
+	}
+	
+	/**
+	 * Verify the full file: all chunks are hashed in parallel and the recomputed root is verified.
+	 * 
+	 * @return true if the signature verifies
+	 */
+	static boolean verify(PublicKey pubKey, Path signatureFile, Path dataFile)
+			throws IOException, GeneralSecurityException
+	{
+		try (FileChannel sigChannel = FileChannel.open(signatureFile, StandardOpenOption.READ))
+		{
+			MerkleSig merkle = readHeader(sigChannel);
+			SignatureFile signature = merkle.readSignature(sigChannel, merkle.levelSizes());
+			byte[] root = root(buildTree(merkle.hashLeaves(dataFile)));
+			return merkle.verifyRoot(pubKey, root, signature);
+		}
+	}
+	
+	/**
+	 * Verify a byte range of the file. Only the chunks overlapping the range are read and hashed, the other
+	 * nodes needed to recompute the root (the proof path) are read from the signature file.
+	 * 
+	 * @return true if the signature verifies
+	 */
+	static boolean verifyRange(PublicKey pubKey, Path signatureFile, Path dataFile, long offset, long length)
+			throws IOException, GeneralSecurityException
+	{
+		try (FileChannel sigChannel = FileChannel.open(signatureFile, StandardOpenOption.READ);
+				FileChannel dataChannel = FileChannel.open(dataFile, StandardOpenOption.READ))
+		{
+			MerkleSig merkle = readHeader(sigChannel);
+			if (offset < 0 || length <= 0 || offset + length > merkle.fileLength)
+				throw new IllegalArgumentException("Range is outside of the signed file");
+			
+			int[] levelSizes = merkle.levelSizes();
+			int first = (int) (offset / merkle.chunkSize);
+			int last = (int) ((offset + length - 1) / merkle.chunkSize);
+			
+			// Hash the chunks of the range
+			ByteBuffer buffer = ByteBuffer.allocateDirect(merkle.chunkSize);
+			byte[][] nodes = new byte[last - first + 1][];
+			for (int i = first; i <= last; i++)
+				nodes[i - first] = merkle.hashLeaf(dataChannel, i, buffer);
+			
+			// Walk up the tree. At each level nodes holds the nodes first..last of the level, the siblings
+			// outside of this range come from the signature file.
+			for (int level = 0; level < levelSizes.length - 1; level++)
+			{
+				int size = levelSizes[level];
+				int from = first - (first & 1);
+				int to = Math.min(last | 1, size - 1);
+				
+				byte[][] span = new byte[to - from + 1][];
+				System.arraycopy(nodes, 0, span, first - from, nodes.length);
+				if (from < first)
+					span[0] = merkle.readNode(sigChannel, levelSizes, level, from);
+				if (to > last)
+					span[span.length - 1] = merkle.readNode(sigChannel, levelSizes, level, to);
+				
+				byte[][] above = new byte[(span.length + 1) / 2][];
+				for (int i = 0; i < above.length; i++)
+				{
+					int left = 2 * i;
+					above[i] = left + 1 < span.length ? hashNode(span[left], span[left + 1]) : span[left];
+				}
+				
+				nodes = above;
+				first = from / 2;
+				last = to / 2;
+			}
+			
+			SignatureFile signature = merkle.readSignature(sigChannel, levelSizes);
+			return merkle.verifyRoot(pubKey, nodes[0], signature);
+		}
+	}
+	
+	/**
+	 * GenSig -merkle: generate a key-pair and the Merkle signature of a file.
+	 * 
+	 * @param args
+	 *            File to sign, optionally followed by the chunk size, and -alg name
+	 */
+	static void mainSign(String[] args)
+	{
+		List<String> argList = new ArrayList<>(Arrays.asList(args));
+		SigningKeyStore keyStore = SigningKeyStore.removeOptions(argList);
+		SigAlgorithm algorithm;
+		try
+		{
+			algorithm = SigAlgorithm.removeOption(argList);
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println("[ERROR] " + e.getMessage());
+			return;
+		}
+		
+		if (argList.size() < 1 || argList.size() > 2)
+		{
+			System.err.println("Usage: GenSig -merkle [-alg name] [-keystore file [-alias name] [-storepass pass]] "
+					+ "nameOfFileToSign [chunkSize]");
+			return;
+		}
+		
+		try
+		{
+			Path file = Paths.get(argList.get(0));
+			int chunkSize = argList.size() == 2 ? Integer.parseInt(argList.get(1)) : DEFAULT_CHUNK_SIZE;
+			
+			KeyPair pair = GenSig.signingKeyPair(keyStore, algorithm);
+			GenSig.savePublicKey(pair.getPublic(), GenSig.PUBLIC_KEY_FILE_NAME);
+			
+			long start = System.nanoTime();
+			Path signatureFile = sign(file, chunkSize, SigAlgorithm.forKey(pair.getPublic()), pair.getPrivate());
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println("Created signature in file: " + signatureFile);
+			System.out.format("Hashed %d bytes in %.3f s (%.1f MB/s)%n", Files.size(file), seconds,
+					Files.size(file) / seconds / (1024 * 1024));
+		}
+		catch (IOException | GeneralSecurityException e)
+		{
+			e.printStackTrace();
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println("[ERROR] " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * VerSig -merkle: verify the Merkle signature of a file, or of a byte range of the file.
+	 * 
+	 * @param args
+	 *            Public key file, signature file, data file, optionally followed by offset and length of the
+	 *            range to verify
+	 */
+	static void mainVerify(String[] args)
+	{
+		if (args.length != 3 && args.length != 5)
+		{
+			System.out.println("Usage: VerSig -merkle publickeyfile signaturefile datafile [offset length]");
+			return;
+		}
+		
+		try
+		{
+			Path signatureFile = Paths.get(args[1]);
+			Path dataFile = Paths.get(args[2]);
+			PublicKey pubKey = VerSig.readPublicKey(args[0], readSignature(signatureFile).algorithm);
+			
+			boolean verifies;
+			if (args.length == 5)
+				verifies = verifyRange(pubKey, signatureFile, dataFile, Long.parseLong(args[3]), Long.parseLong(args[4]));
+			else
+				verifies = verify(pubKey, signatureFile, dataFile);
+			
+			System.out.println("Signature verified: " + verifies);
+		}
+		catch (IOException | GeneralSecurityException e)
+		{
+			e.printStackTrace();
+		}
+		catch (NumberFormatException e)
+		{
+			System.err.println("[ERROR] Invalid offset or length: " + e.getMessage());
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println("[ERROR] " + e.getMessage());
+		}
+	}
+}
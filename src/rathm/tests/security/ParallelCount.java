@@ -0,0 +1,196 @@
+/*
+ * Count bytes, characters, lines and words of huge files in parallel
+ * ------------------------------------------------------------------
+ * 
+ * Parallel mode of Count, similar to wc. Each file is split into segments of at most SEGMENT_SIZE bytes
+ * which are memory-mapped and counted on a ForkJoinPool (one thread per core by default). Several files are
+ * counted concurrently in the same pool.
+ * 
+ * Segments do not need to start on a line or character boundary:
+ *     - characters are counted as the bytes that are not UTF-8 continuation bytes, so a UTF-8 sequence split
+ *       by a segment boundary is counted once, in the segment holding its first byte.
+ *     - lines are counted as '\n' bytes.
+ *     - a word split by a segment boundary is counted once, because each segment is counted knowing whether
+ *       the byte just before it is white space (see Count.Counts.precededBy).
+ * So the totals are the same as when the file is counted sequentially.
+ * 
+ * Writes the counts of each file, the total, and the throughput to console.
+ * 
+ * Usage:
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.Count -parallel [-threads n] filename...
+ */
+
+package rathm.tests.security;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import rathm.tests.security.Count.Counts;
+
+class ParallelCount
+{
+	// Large enough to amortize the mapping, small enough to keep all cores busy on a single file
+	static final long SEGMENT_SIZE = 32L * 1024 * 1024;
+	
+	/**
+	 * Counts a range of a file, splitting it in halves until it is no larger than a segment
+	 */
+	static class SegmentTask extends RecursiveTask<Counts>
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final FileChannel channel;
+		private final long start;
+		private final long end;
+		
+		SegmentTask(FileChannel channel, long start, long end)
+		{
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		protected Counts compute()
+		{
+			if (end - start > SEGMENT_SIZE)
+			{
+				long middle = start + (end - start) / 2;
+				SegmentTask right = new SegmentTask(channel, middle, end);
+				right.fork();
+				Counts counts = new SegmentTask(channel, start, middle).compute();
+				counts.add(right.join());
+				return counts;
+			}
+			
+			try
+			{
+				Counts counts = new Counts();
+				if (start > 0)
+				{
+					ByteBuffer previous = ByteBuffer.allocate(1);
+					channel.read(previous, start - 1);
+					counts.precededBy(previous.get(0));
+				}
+				if (end > start)
+					counts.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+				return counts;
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Counts one file
+	 */
+	static class FileTask extends RecursiveTask<Counts>
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final Path file;
+		
+		FileTask(Path file)
+		{
+			this.file = file;
+		}
+		
+		@Override
+		protected Counts compute()
+		{
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+			{
+				return new SegmentTask(channel, 0, channel.size()).compute();
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+	
+	static void print(Counts counts, String name)
+	{
+		System.out.format("%12d %12d %12d %14d %s%n", counts.lines, counts.words, counts.chars, counts.bytes, name);
+	}
+	
+	/**
+	 * @param args
+	 *            Files to count, optionally preceded by -threads n
+	 */
+	public static void main(String[] args)
+	{
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<Path> files = new ArrayList<>();
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equals("-threads") && i + 1 < args.length)
+				threads = Integer.parseInt(args[++i]);
+			else
+				files.add(Paths.get(args[i]));
+		}
+		if (files.isEmpty())
+		{
+			System.err.println("Usage: Count -parallel [-threads n] filename...");
+			return;
+		}
+		
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		long start = System.nanoTime();
+		List<FileTask> tasks = new ArrayList<>();
+		for (Path file : files)
+			tasks.add(new FileTask(file));
+		try
+		{
+			// Forked and joined one by one: invokeAll would cancel the other files when one cannot be read
+			for (FileTask task : tasks)
+				pool.execute(task);
+			for (FileTask task : tasks)
+			{
+				try
+				{
+					task.join();
+				}
+				catch (UncheckedIOException e)
+				{
+					// Reported per file below
+				}
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		
+		System.out.format("%12s %12s %12s %14s%n", "lines", "words", "chars", "bytes");
+		Counts total = new Counts();
+		for (int i = 0; i < tasks.size(); i++)
+		{
+			FileTask task = tasks.get(i);
+			if (task.isCompletedNormally())
+			{
+				print(task.join(), files.get(i).toString());
+				total.add(task.join());
+			}
+			else
+				System.err.println("[ERROR] Cannot count file: [" + files.get(i) + "] " + task.getException());
+		}
+		if (files.size() > 1)
+			print(total, "total");
+		
+		System.out.format("Counted %d bytes with %d threads in %.3f s (%.1f MB/s)%n", total.bytes, threads, seconds,
+				total.bytes / seconds / (1024 * 1024));
+	}
+}
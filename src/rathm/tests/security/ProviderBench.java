@@ -0,0 +1,637 @@
+/*
+ * Throughput of the services of the installed security providers
+ * ---------------------------------------------------------------
+ * 
+ * For every MessageDigest, Mac, Cipher, Signature and SecureRandom service of every installed provider,
+ * measures the cost of getInstance and the throughput of the service once warmed up:
+ * 
+ *     MessageDigest   digest of a 64 KB message                                  MB/s
+ *     Mac             MAC of a 64 KB message                                     MB/s
+ *     Cipher          init with a fresh IV and encryption of a 64 KB message     MB/s
+ *                     (public key ciphers: decryption of a 32 byte message)      ops/s
+ *     Signature       sign and verify of a 32 byte message                       ops/s
+ *     SecureRandom    nextBytes of 4 KB                                          MB/s
+ * 
+ * Each measurement loops for the given time after a warm-up run of the same duration (as SigBench does).
+ * "first us" is the time of the first getInstance of the service, including the loading of its classes, and
+ * "new us" the median time of the next ones.
+ * 
+ * A Cipher is initialized again for each message as an AEAD mode (GCM, ChaCha20-Poly1305) does not allow a
+ * key and IV to be used twice. The keys are generated with the default provider of the key algorithm: RSA and
+ * DSA keys are 2048 bit (1024 bit for SHA1withDSA and NONEwithDSA, which sign a SHA-1 digest), EC keys on
+ * P-256, the other key algorithms use the default size of their generator. Services that cannot be measured
+ * this way (e.g. DESedeWrap, which only wraps keys) are listed at the end with the error.
+ * 
+ * The services are measured by -threads threads in parallel, by default one per two processors: each measure
+ * is single-threaded, so with hyper-threading this keeps them on distinct cores. Use -threads 1 for the most
+ * stable results. The SecureRandom services are measured one at a time after the others, as several of them
+ * share the same native source and lock (NativePRNG reading /dev/urandom).
+ * 
+ * The results are written to console sorted by type, algorithm and provider preference, and optionally as CSV
+ * and JSON (an array with one object per line) to compare machines or JDK versions.
+ * 
+ * Usage:
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.ShowSecurityServices -bench [-seconds s]
+ *         [-threads n] [-type T]... [-provider P]... [-csv file|-] [-json file|-]
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.ShowSecurityServices -bench -type MessageDigest -type Mac -csv digests.csv
+ */
+
+package rathm.tests.security;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Provider.Service;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PSSParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.PBEParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+class ProviderBench
+{
+	static final List<String> TYPES = List.of("MessageDigest", "Mac", "Cipher", "Signature", "SecureRandom");
+	
+	private static final int BULK_SIZE = 64 * 1024;
+	
+	// Small enough for the NONEwith signatures, which expect a digest
+	private static final int MESSAGE_SIZE = 32;
+	
+	private static final int RANDOM_SIZE = 4 * 1024;
+	
+	// Number of getInstance calls for the median instantiation time
+	private static final int INSTANCES = 101;
+	
+	private static final int MAX_ERROR_LENGTH = 100;
+	
+	/**
+	 * One measure of a service, or the error that prevented it.
+	 */
+	static class Result
+	{
+		final String type;
+		final String algorithm;
+		final String provider;
+		// Index of the provider in the preference order
+		final int rank;
+		final String operation;
+		final double throughput;
+		final String unit;
+		final double firstMicros;
+		final double newMicros;
+		final String error;
+		
+		Result(Service service, int rank, String operation, double throughput, String unit, double firstMicros,
+				double newMicros, String error)
+		{
+			this.type = service.getType();
+			this.algorithm = service.getAlgorithm();
+			this.provider = service.getProvider().getName();
+			this.rank = rank;
+			this.operation = operation;
+			this.throughput = throughput;
+			this.unit = unit;
+			this.firstMicros = firstMicros;
+			this.newMicros = newMicros;
+			this.error = error;
+		}
+	}
+	
+	/**
+	 * An operation measured in a loop, e.g. the digest of one message
+	 */
+	interface Operation
+	{
+		void run() throws GeneralSecurityException;
+	}
+	
+	/**
+	 * Run the operation in a loop for the given time.
+	 * 
+	 * @return Number of operations per second
+	 */
+	static double opsPerSecond(Operation operation, long nanos) throws GeneralSecurityException
+	{
+		long ops = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do
+		{
+			operation.run();
+			ops++;
+			elapsed = System.nanoTime() - start;
+		}
+		while (elapsed < nanos);
+		return ops / (elapsed / 1e9);
+	}
+	
+	/**
+	 * Run the operation once for the warm-up, then measure it.
+	 * 
+	 * @return Number of operations per second
+	 */
+	static double warmOpsPerSecond(Operation operation, long nanos) throws GeneralSecurityException
+	{
+		opsPerSecond(operation, nanos);
+		return opsPerSecond(operation, nanos);
+	}
+	
+	/**
+	 * Create a new instance of the service with the getInstance method of its type.
+	 */
+	static Object newInstance(Service service) throws GeneralSecurityException
+	{
+		String algorithm = service.getAlgorithm();
+		Provider provider = service.getProvider();
+		switch (service.getType())
+		{
+			case "MessageDigest":
+				return MessageDigest.getInstance(algorithm, provider);
+			case "Mac":
+				return Mac.getInstance(algorithm, provider);
+			case "Cipher":
+				return Cipher.getInstance(algorithm, provider);
+			case "Signature":
+				return Signature.getInstance(algorithm, provider);
+			case "SecureRandom":
+				return SecureRandom.getInstance(algorithm, provider);
+			default:
+				throw new NoSuchAlgorithmException("Service type not measured: " + service.getType());
+		}
+	}
+	
+	/**
+	 * Measure the instantiation and the throughput of a service.
+	 * 
+	 * @param rank
+	 *            Index of the provider of the service in the preference order
+	 * @param nanos
+	 *            Duration of each measure (and of its warm-up)
+	 * @return The results of the operations of the service (two for a Signature), or a single result with the
+	 *         error
+	 */
+	static List<Result> measure(Service service, int rank, long nanos)
+	{
+		double firstMicros = Double.NaN;
+		double newMicros = Double.NaN;
+		try
+		{
+			long start = System.nanoTime();
+			Object instance = newInstance(service);
+			firstMicros = (System.nanoTime() - start) / 1e3;
+			long[] times = new long[INSTANCES];
+			for (int i = 0; i < INSTANCES; i++)
+			{
+				start = System.nanoTime();
+				newInstance(service);
+				times[i] = System.nanoTime() - start;
+			}
+			Arrays.sort(times);
+			newMicros = times[INSTANCES / 2] / 1e3;
+			
+			SecureRandom random = new SecureRandom();
+			List<Result> results = new ArrayList<>(2);
+			switch (service.getType())
+			{
+				case "MessageDigest":
+				{
+					MessageDigest md = (MessageDigest) instance;
+					byte[] data = randomBytes(random, BULK_SIZE);
+					double ops = warmOpsPerSecond(() -> md.digest(data), nanos);
+					results.add(new Result(service, rank, "digest", megabytes(ops, BULK_SIZE), "MB/s", firstMicros,
+							newMicros, null));
+					break;
+				}
+				case "Mac":
+				{
+					Mac mac = (Mac) instance;
+					initMac(mac, random);
+					byte[] data = randomBytes(random, BULK_SIZE);
+					double ops = warmOpsPerSecond(() -> mac.doFinal(data), nanos);
+					results.add(new Result(service, rank, "mac", megabytes(ops, BULK_SIZE), "MB/s", firstMicros,
+							newMicros, null));
+					break;
+				}
+				case "Cipher":
+					results.add(measureCipher(service, rank, (Cipher) instance, random, nanos, firstMicros, newMicros));
+					break;
+				case "Signature":
+				{
+					Signature sig = (Signature) instance;
+					String algorithm = service.getAlgorithm();
+					String keyAlgorithm = signatureKeyAlgorithm(algorithm);
+					boolean sha1 = keyAlgorithm.equals("DSA")
+							&& (algorithm.startsWith("SHA1") || algorithm.startsWith("NONE"));
+					KeyPair pair = sha1 ? keyPair(keyAlgorithm, 1024, random) : keyPair(keyAlgorithm, random);
+					if (algorithm.equals("RSASSA-PSS"))
+						sig.setParameter(new PSSParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA256, 32, 1));
+					// NONEwithDSA signs a SHA-1 digest
+					byte[] message = randomBytes(random, sha1 ? 20 : MESSAGE_SIZE);
+					sig.initSign(pair.getPrivate(), random);
+					double signOps = warmOpsPerSecond(() -> {
+						sig.update(message);
+						sig.sign();
+					}, nanos);
+					sig.update(message);
+					byte[] signature = sig.sign();
+					sig.initVerify(pair.getPublic());
+					double verifyOps = warmOpsPerSecond(() -> {
+						sig.update(message);
+						if (!sig.verify(signature))
+							throw new IllegalStateException("Signature does not verify");
+					}, nanos);
+					results.add(new Result(service, rank, "sign", signOps, "ops/s", firstMicros, newMicros, null));
+					results.add(new Result(service, rank, "verify", verifyOps, "ops/s", firstMicros, newMicros, null));
+					break;
+				}
+				case "SecureRandom":
+				{
+					SecureRandom measured = (SecureRandom) instance;
+					byte[] bytes = new byte[RANDOM_SIZE];
+					double ops = warmOpsPerSecond(() -> measured.nextBytes(bytes), nanos);
+					results.add(new Result(service, rank, "nextBytes", megabytes(ops, RANDOM_SIZE), "MB/s",
+							firstMicros, newMicros, null));
+					break;
+				}
+			}
+			return results;
+		}
+		catch (GeneralSecurityException | RuntimeException e)
+		{
+			String error = e.toString();
+			if (error.length() > MAX_ERROR_LENGTH)
+				error = error.substring(0, MAX_ERROR_LENGTH) + "...";
+			return List.of(new Result(service, rank, null, Double.NaN, null, firstMicros, newMicros, error));
+		}
+	}
+	
+	private static Result measureCipher(Service service, int rank, Cipher cipher, SecureRandom random, long nanos,
+			double firstMicros, double newMicros) throws GeneralSecurityException
+	{
+		String algorithm = service.getAlgorithm();
+		if (algorithm.regionMatches(true, 0, "PBE", 0, 3))
+		{
+			// The salt and iteration count are generated by init
+			Key key = new SecretKeySpec("password".getBytes(StandardCharsets.US_ASCII), algorithm);
+			return measureSecretCipher(service, rank, cipher, key, random, nanos, firstMicros, newMicros);
+		}
+		
+		// e.g. AES_128/GCM/NoPadding, AESWrap, ChaCha20-Poly1305, DESede, RSA
+		String keyAlgorithm = algorithm.split("/")[0];
+		int keySize = -1;
+		int size = keyAlgorithm.lastIndexOf('_');
+		if (size > 0)
+		{
+			keySize = Integer.parseInt(keyAlgorithm.substring(size + 1));
+			keyAlgorithm = keyAlgorithm.substring(0, size);
+		}
+		if (keyAlgorithm.endsWith("Wrap"))
+			keyAlgorithm = keyAlgorithm.substring(0, keyAlgorithm.length() - "Wrap".length());
+		if (keyAlgorithm.startsWith("ChaCha20"))
+			keyAlgorithm = "ChaCha20";
+		
+		KeyGenerator keyGen;
+		try
+		{
+			keyGen = KeyGenerator.getInstance(keyAlgorithm);
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			// Public key cipher: decryption with the private key is the expensive side
+			KeyPair pair = keyPair(keyAlgorithm, random);
+			cipher.init(Cipher.ENCRYPT_MODE, pair.getPublic(), random);
+			byte[] encrypted = cipher.doFinal(randomBytes(random, MESSAGE_SIZE));
+			cipher.init(Cipher.DECRYPT_MODE, pair.getPrivate(), random);
+			double ops = warmOpsPerSecond(() -> cipher.doFinal(encrypted), nanos);
+			return new Result(service, rank, "decrypt", ops, "ops/s", firstMicros, newMicros, null);
+		}
+		if (keySize > 0)
+			keyGen.init(keySize, random);
+		return measureSecretCipher(service, rank, cipher, keyGen.generateKey(), random, nanos, firstMicros,
+				newMicros);
+	}
+	
+	private static Result measureSecretCipher(Service service, int rank, Cipher cipher, Key key, SecureRandom random,
+			long nanos, double firstMicros, double newMicros) throws GeneralSecurityException
+	{
+		byte[] data = randomBytes(random, BULK_SIZE);
+		cipher.init(Cipher.ENCRYPT_MODE, key, random);
+		byte[] output = new byte[cipher.getOutputSize(BULK_SIZE)];
+		double ops = warmOpsPerSecond(() -> {
+			cipher.init(Cipher.ENCRYPT_MODE, key, random);
+			cipher.doFinal(data, 0, BULK_SIZE, output);
+		}, nanos);
+		return new Result(service, rank, "encrypt", megabytes(ops, BULK_SIZE), "MB/s", firstMicros, newMicros, null);
+	}
+	
+	private static void initMac(Mac mac, SecureRandom random) throws GeneralSecurityException
+	{
+		String algorithm = mac.getAlgorithm();
+		if (algorithm.contains("PBE"))
+		{
+			SecretKey key = new SecretKeySpec("password".getBytes(StandardCharsets.US_ASCII), "PBE");
+			mac.init(key, new PBEParameterSpec(randomBytes(random, 16), 1000));
+		}
+		else
+		{
+			mac.init(new SecretKeySpec(randomBytes(random, 32), algorithm));
+		}
+	}
+	
+	/**
+	 * @return The key algorithm of a signature algorithm, e.g. EC for SHA256withECDSAinP1363Format
+	 */
+	static String signatureKeyAlgorithm(String algorithm)
+	{
+		int with = algorithm.toLowerCase(Locale.ROOT).lastIndexOf("with");
+		String keyAlgorithm = with < 0 ? algorithm : algorithm.substring(with + "with".length());
+		keyAlgorithm = keyAlgorithm.replace("inP1363Format", "");
+		return keyAlgorithm.equals("ECDSA") ? "EC" : keyAlgorithm;
+	}
+	
+	/**
+	 * Generate a key-pair with the default provider of the key algorithm.
+	 */
+	static KeyPair keyPair(String keyAlgorithm, SecureRandom random) throws GeneralSecurityException
+	{
+		switch (keyAlgorithm)
+		{
+			case "RSA":
+			case "RSASSA-PSS":
+			case "DSA":
+				return keyPair(keyAlgorithm, 2048, random);
+			case "EC":
+				KeyPairGenerator keyGen = KeyPairGenerator.getInstance(keyAlgorithm);
+				keyGen.initialize(new ECGenParameterSpec("secp256r1"), random);
+				return keyGen.generateKeyPair();
+			default:
+				return KeyPairGenerator.getInstance(keyAlgorithm).generateKeyPair();
+		}
+	}
+	
+	/**
+	 * Generate a key-pair of the given size with the default provider of the key algorithm.
+	 */
+	static KeyPair keyPair(String keyAlgorithm, int keySize, SecureRandom random) throws GeneralSecurityException
+	{
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance(keyAlgorithm);
+		keyGen.initialize(keySize, random);
+		return keyGen.generateKeyPair();
+	}
+	
+	private static byte[] randomBytes(SecureRandom random, int size)
+	{
+		byte[] bytes = new byte[size];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+	
+	private static double megabytes(double opsPerSecond, int bytesPerOp)
+	{
+		return opsPerSecond * bytesPerOp / (1024 * 1024);
+	}
+	
+	private static void printTable(List<Result> results)
+	{
+		System.out.format("%-13s %-36s %-10s %-9s %12s %-5s %10s %8s%n", "Type", "Algorithm", "Provider", "Operation",
+				"Throughput", "", "First us", "New us");
+		List<Result> failed = new ArrayList<>();
+		for (Result result : results)
+		{
+			if (result.error != null)
+			{
+				failed.add(result);
+				continue;
+			}
+			System.out.format(Locale.ROOT, "%-13s %-36s %-10s %-9s %12.1f %-5s %10.1f %8.2f%n", result.type,
+					result.algorithm, result.provider, result.operation, result.throughput, result.unit,
+					result.firstMicros, result.newMicros);
+		}
+		if (!failed.isEmpty())
+		{
+			System.out.println();
+			System.out.println("Not measured:");
+			for (Result result : failed)
+			{
+				System.out.format("%-13s %-36s %-10s %s%n", result.type, result.algorithm, result.provider,
+						result.error);
+			}
+		}
+	}
+	
+	private static void writeCsv(List<Result> results, PrintWriter out)
+	{
+		out.println("type,algorithm,provider,operation,throughput,unit,first_us,new_us,error");
+		for (Result result : results)
+		{
+			out.format(Locale.ROOT, "%s,%s,%s,%s,%s,%s,%s,%s,%s%n", csv(result.type), csv(result.algorithm),
+					csv(result.provider), csv(result.operation), number(result.throughput, "%.3f"), csv(result.unit),
+					number(result.firstMicros, "%.3f"), number(result.newMicros, "%.3f"), csv(result.error));
+		}
+	}
+	
+	private static void writeJson(List<Result> results, PrintWriter out)
+	{
+		out.println("[");
+		for (int i = 0; i < results.size(); i++)
+		{
+			Result result = results.get(i);
+			out.format(Locale.ROOT,
+					"{\"type\":%s,\"algorithm\":%s,\"provider\":%s,\"operation\":%s,\"throughput\":%s,\"unit\":%s,"
+							+ "\"first_us\":%s,\"new_us\":%s,\"error\":%s}%s%n",
+					json(result.type), json(result.algorithm), json(result.provider), json(result.operation),
+					jsonNumber(result.throughput), json(result.unit), jsonNumber(result.firstMicros),
+					jsonNumber(result.newMicros), json(result.error), i + 1 < results.size() ? "," : "");
+		}
+		out.println("]");
+	}
+	
+	private static String number(double value, String format)
+	{
+		return Double.isNaN(value) ? "" : String.format(Locale.ROOT, format, value);
+	}
+	
+	private static String jsonNumber(double value)
+	{
+		return Double.isNaN(value) ? "null" : String.format(Locale.ROOT, "%.3f", value);
+	}
+	
+	private static String csv(String text)
+	{
+		if (text == null)
+			return "";
+		if (text.indexOf(',') < 0 && text.indexOf('"') < 0 && text.indexOf('\n') < 0)
+			return text;
+		return '"' + text.replace("\"", "\"\"") + '"';
+	}
+	
+	private static String json(String text)
+	{
+		if (text == null)
+			return "null";
+		StringBuilder quoted = new StringBuilder(text.length() + 2).append('"');
+		for (int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			if (c == '"' || c == '\\')
+				quoted.append('\\').append(c);
+			else if (c < 0x20)
+				quoted.append(String.format("\\u%04x", (int) c));
+			else
+				quoted.append(c);
+		}
+		return quoted.append('"').toString();
+	}
+	
+	/**
+	 * Write the results to a file, or to the standard output for "-".
+	 */
+	private static void write(String file, List<Result> results, boolean csv) throws IOException
+	{
+		PrintWriter out = file.equals("-") ? new PrintWriter(System.out)
+				: new PrintWriter(Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8));
+		if (csv)
+			writeCsv(results, out);
+		else
+			writeJson(results, out);
+		if (file.equals("-"))
+			out.flush();
+		else
+			out.close();
+	}
+	
+	/**
+	 * @param args
+	 *            Options, see the header comment
+	 */
+	public static void main(String[] args)
+	{
+		double seconds = 0.5;
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		List<String> types = new ArrayList<>();
+		List<String> providers = new ArrayList<>();
+		String csvFile = null;
+		String jsonFile = null;
+		try
+		{
+			for (int i = 0; i < args.length; i++)
+			{
+				if (args[i].equals("-seconds") && i + 1 < args.length)
+					seconds = Double.parseDouble(args[++i]);
+				else if (args[i].equals("-threads") && i + 1 < args.length)
+					threads = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-type") && i + 1 < args.length)
+				{
+					if (!TYPES.contains(args[++i]))
+						throw new IllegalArgumentException("Unknown service type: " + args[i]);
+					types.add(args[i]);
+				}
+				else if (args[i].equals("-provider") && i + 1 < args.length)
+					providers.add(args[++i]);
+				else if (args[i].equals("-csv") && i + 1 < args.length)
+					csvFile = args[++i];
+				else if (args[i].equals("-json") && i + 1 < args.length)
+					jsonFile = args[++i];
+				else
+					throw new IllegalArgumentException("Unknown option: " + args[i]);
+			}
+			if (threads < 1)
+				throw new IllegalArgumentException("-threads must be at least 1");
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println("Usage: ShowSecurityServices -bench [-seconds s] [-threads n] [-type T]... "
+					+ "[-provider P]... [-csv file|-] [-json file|-]");
+			System.err.println("Types: " + TYPES);
+			System.err.println(e.getMessage());
+			return;
+		}
+		if (types.isEmpty())
+			types.addAll(TYPES);
+		long nanos = (long) (seconds * 1e9);
+		
+		List<Future<List<Result>>> parallel = new ArrayList<>();
+		List<Service> alone = new ArrayList<>();
+		List<Integer> aloneRanks = new ArrayList<>();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		Provider[] installed = Security.getProviders();
+		for (int rank = 0; rank < installed.length; rank++)
+		{
+			if (!providers.isEmpty() && !providers.contains(installed[rank].getName()))
+				continue;
+			for (Service service : installed[rank].getServices())
+			{
+				if (!types.contains(service.getType()))
+					continue;
+				if (service.getType().equals("SecureRandom"))
+				{
+					alone.add(service);
+					aloneRanks.add(rank);
+				}
+				else
+				{
+					int serviceRank = rank;
+					parallel.add(executor.submit(() -> measure(service, serviceRank, nanos)));
+				}
+			}
+		}
+		executor.shutdown();
+		
+		List<Result> results = new ArrayList<>();
+		try
+		{
+			for (Future<List<Result>> future : parallel)
+				results.addAll(future.get());
+		}
+		catch (InterruptedException | ExecutionException e)
+		{
+			System.err.println("[ERROR] " + e);
+			executor.shutdownNow();
+			return;
+		}
+		for (int i = 0; i < alone.size(); i++)
+			results.addAll(measure(alone.get(i), aloneRanks.get(i), nanos));
+		
+		results.sort(Comparator.<Result> comparingInt(result -> TYPES.indexOf(result.type))
+				.thenComparing(result -> result.algorithm, String.CASE_INSENSITIVE_ORDER)
+				.thenComparingInt(result -> result.rank));
+		printTable(results);
+		try
+		{
+			if (csvFile != null)
+				write(csvFile, results, true);
+			if (jsonFile != null)
+				write(jsonFile, results, false);
+		}
+		catch (IOException e)
+		{
+			System.err.println("[ERROR] " + e);
+		}
+	}
+}
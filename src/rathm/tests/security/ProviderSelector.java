@@ -0,0 +1,395 @@
+/*
+ * Choice of the fastest provider of an algorithm
+ * ----------------------------------------------
+ * 
+ * SigAlgorithm used to pin the provider of each algorithm (SUN for DSA, SunEC, SunRsaSign), so another
+ * installed provider implementing the same algorithm faster was never used. Here the candidates are the
+ * installed providers with a service for the algorithm, in preference order (as ShowSecurityServices lists
+ * them).
+ * 
+ * The first time an algorithm is used, each candidate is checked against the first one, the provider Java
+ * would choose: its signatures must verify with the first provider and the reverse, its digests must be
+ * equal. The conforming candidates are all warmed up, then measured ROUNDS times for CALIBRATION_MILLIS in turn
+ * (see ProviderBench), and the fastest wins if it is at least MIN_GAIN times faster than the first:
+ * 
+ *     Signature       one sign and one verify of a small message, with a key-pair generated by the candidate
+ *     MessageDigest   digest of a 64 KB message
+ * 
+ * When a single provider implements the algorithm nothing is measured.
+ * 
+ * The winners are saved in a cache file, so later runs skip the calibration:
+ * 
+ *     ~/.rathm-tests/providers.properties, or the file given by -Drathm.providers.cache=file
+ * 
+ * The cache is only used with the same JVM, CPU architecture and count, and installed providers (with their
+ * versions) as when it was written: installing a provider or a new JDK calibrates again. Delete the file to
+ * force a new calibration. Processes calibrating at the same time both save their result, the last one wins.
+ */
+
+package rathm.tests.security;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+class ProviderSelector
+{
+	static final String CACHE_PROPERTY = "rathm.providers.cache";
+	
+	private static final long CALIBRATION_MILLIS = 100;
+	
+	private static final int ROUNDS = 3;
+	
+	// Speed-up needed to prefer another provider to the first one, as a short calibration is noisy
+	private static final double MIN_GAIN = 1.1;
+	
+	private static final int DIGEST_SIZE = 64 * 1024;
+	
+	private static final int MESSAGE_SIZE = 1024;
+	
+	private static final String FINGERPRINT = "fingerprint";
+	
+	// Provider chosen per "type.algorithm", for this process
+	private static final Map<String, Provider> chosen = new ConcurrentHashMap<>();
+	
+	/**
+	 * Checks and measures the candidates of one algorithm.
+	 */
+	private interface Calibration
+	{
+		/**
+		 * Check that the candidate gives the same results as the reference provider.
+		 * 
+		 * @throws GeneralSecurityException
+		 *             If it does not, or cannot be used
+		 */
+		void check(Provider candidate, Provider reference) throws GeneralSecurityException;
+		
+		/**
+		 * @return The operation measured, for ProviderBench.opsPerSecond
+		 */
+		ProviderBench.Operation operation(Provider candidate) throws GeneralSecurityException;
+	}
+	
+	/**
+	 * @return The fastest conforming provider of the signature algorithm
+	 */
+	static Provider signatureProvider(SigAlgorithm algorithm) throws NoSuchAlgorithmException
+	{
+		return select("Signature", algorithm.signatureAlgorithm, () -> new Calibration()
+		{
+			private final SecureRandom random = new SecureRandom();
+			private final byte[] message = randomBytes(random, MESSAGE_SIZE);
+			
+			@Override
+			public void check(Provider candidate, Provider reference) throws GeneralSecurityException
+			{
+				KeyPair pair = algorithm.generateKeyPair(reference, random);
+				Signature signer = algorithm.newSignature(candidate);
+				Signature verifier = algorithm.newSignature(reference);
+				for (int i = 0; i < 2; i++)
+				{
+					signer.initSign(pair.getPrivate());
+					signer.update(message);
+					byte[] signature = signer.sign();
+					verifier.initVerify(pair.getPublic());
+					verifier.update(message);
+					if (!verifier.verify(signature))
+					{
+						throw new GeneralSecurityException("Signature of " + signer.getProvider().getName()
+								+ " does not verify with " + verifier.getProvider().getName());
+					}
+					Signature swap = signer;
+					signer = verifier;
+					verifier = swap;
+				}
+			}
+			
+			@Override
+			public ProviderBench.Operation operation(Provider candidate) throws GeneralSecurityException
+			{
+				KeyPair pair = algorithm.generateKeyPair(candidate, random);
+				Signature signer = algorithm.newSignature(candidate);
+				Signature verifier = algorithm.newSignature(candidate);
+				signer.initSign(pair.getPrivate());
+				verifier.initVerify(pair.getPublic());
+				return () -> {
+					signer.update(message);
+					byte[] signature = signer.sign();
+					verifier.update(message);
+					if (!verifier.verify(signature))
+						throw new GeneralSecurityException("Signature does not verify");
+				};
+			}
+		});
+	}
+	
+	/**
+	 * @return The fastest conforming provider of the digest algorithm
+	 */
+	static Provider digestProvider(String algorithm) throws NoSuchAlgorithmException
+	{
+		return select("MessageDigest", algorithm, () -> new Calibration()
+		{
+			private final byte[] data = randomBytes(new SecureRandom(), DIGEST_SIZE);
+			
+			@Override
+			public void check(Provider candidate, Provider reference) throws GeneralSecurityException
+			{
+				if (!Arrays.equals(MessageDigest.getInstance(algorithm, candidate).digest(data),
+						MessageDigest.getInstance(algorithm, reference).digest(data)))
+				{
+					throw new GeneralSecurityException("Digest differs from the one of " + reference.getName());
+				}
+			}
+			
+			@Override
+			public ProviderBench.Operation operation(Provider candidate) throws GeneralSecurityException
+			{
+				MessageDigest md = MessageDigest.getInstance(algorithm, candidate);
+				return () -> md.digest(data);
+			}
+		});
+	}
+	
+	/**
+	 * @return A MessageDigest of the fastest conforming provider of the algorithm
+	 */
+	static MessageDigest messageDigest(String algorithm) throws NoSuchAlgorithmException
+	{
+		return MessageDigest.getInstance(algorithm, digestProvider(algorithm));
+	}
+	
+	private static Provider select(String type, String algorithm, Supplier<Calibration> calibration)
+			throws NoSuchAlgorithmException
+	{
+		String key = type + "." + algorithm;
+		Provider provider = chosen.get(key);
+		if (provider != null)
+			return provider;
+		
+		synchronized (ProviderSelector.class)
+		{
+			provider = chosen.get(key);
+			if (provider != null)
+				return provider;
+			
+			List<Provider> candidates = new ArrayList<>();
+			for (Provider candidate : Security.getProviders())
+			{
+				if (candidate.getService(type, algorithm) != null)
+					candidates.add(candidate);
+			}
+			if (candidates.isEmpty())
+				throw new NoSuchAlgorithmException("No provider of " + type + " " + algorithm);
+			
+			if (candidates.size() == 1)
+				provider = candidates.get(0);
+			else
+			{
+				Properties cache = loadCache();
+				String cached = cache.getProperty(key);
+				for (Provider candidate : candidates)
+				{
+					if (candidate.getName().equals(cached))
+						provider = candidate;
+				}
+				if (provider == null)
+				{
+					provider = calibrate(type, algorithm, candidates, calibration.get());
+					cache.setProperty(key, provider.getName());
+					saveCache(cache);
+				}
+			}
+			chosen.put(key, provider);
+			return provider;
+		}
+	}
+	
+	/**
+	 * Measure the conforming candidates.
+	 * 
+	 * @return The fastest, or the first candidate if none could be measured
+	 */
+	private static Provider calibrate(String type, String algorithm, List<Provider> candidates,
+			Calibration calibration)
+	{
+		long nanos = CALIBRATION_MILLIS * 1_000_000;
+		Provider reference = candidates.get(0);
+		StringBuilder report = new StringBuilder("Calibrated ").append(type).append(' ').append(algorithm).append(':');
+		
+		// Warm up all the candidates before measuring any: they often share code (e.g. a provider wrapping
+		// another one), which would otherwise be compiled by the JIT while measuring the first candidates
+		Map<Provider, ProviderBench.Operation> operations = new LinkedHashMap<>();
+		for (Provider candidate : candidates)
+		{
+			try
+			{
+				if (candidate != reference)
+					calibration.check(candidate, reference);
+				ProviderBench.Operation operation = calibration.operation(candidate);
+				ProviderBench.opsPerSecond(operation, nanos);
+				operations.put(candidate, operation);
+			}
+			catch (GeneralSecurityException | RuntimeException e)
+			{
+				report.append(' ').append(candidate.getName()).append(" not conforming (").append(e).append("),");
+			}
+		}
+		
+		// Best of ROUNDS interleaved measures, so a pause (JIT compilation, GC, another process) slows down a
+		// single measure of a candidate and not all of them
+		Map<Provider, Double> results = new LinkedHashMap<>();
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			Iterator<Map.Entry<Provider, ProviderBench.Operation>> i = operations.entrySet().iterator();
+			while (i.hasNext())
+			{
+				Map.Entry<Provider, ProviderBench.Operation> entry = i.next();
+				Provider candidate = entry.getKey();
+				try
+				{
+					double ops = ProviderBench.opsPerSecond(entry.getValue(), nanos);
+					results.merge(candidate, ops, Math::max);
+				}
+				catch (GeneralSecurityException | RuntimeException e)
+				{
+					report.append(' ').append(candidate.getName()).append(" failed (").append(e).append("),");
+					i.remove();
+					results.remove(candidate);
+				}
+			}
+		}
+		
+		Provider best = reference;
+		double bestScore = 0;
+		for (Map.Entry<Provider, Double> result : results.entrySet())
+		{
+			Provider candidate = result.getKey();
+			double ops = result.getValue();
+			report.append(String.format(Locale.ROOT, " %s %.1f ops/s,", candidate.getName(), ops));
+			double score = candidate == reference ? ops : ops / MIN_GAIN;
+			if (score > bestScore)
+			{
+				best = candidate;
+				bestScore = score;
+			}
+		}
+		System.err.println(report.append(" using ").append(best.getName()));
+		return best;
+	}
+	
+	private static Path cacheFile()
+	{
+		String file = System.getProperty(CACHE_PROPERTY);
+		return file != null ? Paths.get(file) : Paths.get(System.getProperty("user.home"), ".rathm-tests",
+				"providers.properties");
+	}
+	
+	/**
+	 * @return Identification of the JVM, CPU and providers the calibration depends on
+	 */
+	private static String fingerprint()
+	{
+		StringBuilder fingerprint = new StringBuilder();
+		fingerprint.append(System.getProperty("java.vm.name")).append(' ');
+		fingerprint.append(System.getProperty("java.vm.version")).append(' ');
+		fingerprint.append(System.getProperty("os.arch")).append('x');
+		fingerprint.append(Runtime.getRuntime().availableProcessors());
+		for (Provider provider : Security.getProviders())
+			fingerprint.append(' ').append(provider.getName()).append('/').append(provider.getVersionStr());
+		return fingerprint.toString();
+	}
+	
+	/**
+	 * @return The cached choices, empty if there are none for this JVM and providers
+	 */
+	private static Properties loadCache()
+	{
+		Properties cache = new Properties();
+		try (Reader reader = Files.newBufferedReader(cacheFile(), StandardCharsets.UTF_8))
+		{
+			cache.load(reader);
+		}
+		catch (NoSuchFileException e)
+		{
+			// First run
+		}
+		catch (IOException | IllegalArgumentException e)
+		{
+			System.err.println("[ERROR] Cannot read provider cache: " + e);
+			cache.clear();
+		}
+		String fingerprint = fingerprint();
+		if (!fingerprint.equals(cache.getProperty(FINGERPRINT)))
+		{
+			cache.clear();
+			cache.setProperty(FINGERPRINT, fingerprint);
+		}
+		return cache;
+	}
+	
+	private static void saveCache(Properties cache)
+	{
+		Path file = cacheFile().toAbsolutePath();
+		Path temp = null;
+		try
+		{
+			Files.createDirectories(file.getParent());
+			// A temporary file of its own, as other processes may save at the same time
+			temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+			try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8))
+			{
+				cache.store(out, "Fastest provider per algorithm, see ProviderSelector");
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e)
+		{
+			System.err.println("[ERROR] Cannot save provider cache: " + e);
+		}
+		finally
+		{
+			try
+			{
+				if (temp != null)
+					Files.deleteIfExists(temp);
+			}
+			catch (IOException e)
+			{
+				// Left behind
+			}
+		}
+	}
+	
+	private static byte[] randomBytes(SecureRandom random, int size)
+	{
+		byte[] bytes = new byte[size];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+}
@@ -1,8 +1,12 @@
 /*
  * List the security providers and services available in this Java environment 
  * 
+ * With -bench, measures the throughput of the MessageDigest, Mac, Cipher, Signature and SecureRandom services
+ * instead (see ProviderBench).
+ * 
  * Usage:
  * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.ShowSecurityServices | less
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.ShowSecurityServices -bench [-seconds s] [-threads n] [-type T]... [-provider P]... [-csv file|-] [-json file|-]
  */
 
 package rathm.tests.security;
@@ -10,6 +14,7 @@ package rathm.tests.security;
 import java.security.Provider;
 import java.security.Security;
 import java.security.Provider.Service;
+import java.util.Arrays;
 import java.util.Set;
 
 public class ShowSecurityServices
@@ -17,10 +22,16 @@ public class ShowSecurityServices
 	
 	/**
 	 * @param args
-	 *            none
+	 *            none, or -bench followed by the options of ProviderBench
 	 */
 	public static void main(String[] args)
 	{
+		if (args.length > 0 && args[0].equals("-bench"))
+		{
+			ProviderBench.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		
 		Provider[] providers = Security.getProviders();
 		
 		System.out.println("Installed providers ordered by preference, and their services");
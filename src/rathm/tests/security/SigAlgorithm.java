@@ -0,0 +1,233 @@
+/*
+ * Signature algorithms supported by GenSig and VerSig
+ * ---------------------------------------------------
+ * 
+ * The tutorial code hard-codes 1024 bit DSA keys and SHA1withDSA. That is kept as the DSA entry so the
+ * signatures created by earlier versions still verify, but new signatures should use one of the other
+ * algorithms:
+ * 
+ *     ED25519      EdDSA over Curve25519 (RFC 8032)
+ *     ECDSA_P256   ECDSA over NIST P-256 (secp256r1) with SHA-256
+ *     RSA_PSS      3072 bit RSA, PSS padding with SHA-256, MGF1 with SHA-256 and 32 byte salt
+ * 
+ * Each entry knows how to create and initialize the key-pair generator, the Signature and the KeyFactory
+ * of the algorithm. The name of the algorithm is written in the header of the signature file (see
+ * SignatureFile) so VerSig can pick the right one automatically.
+ * 
+ * The provider is not pinned: the fastest installed provider of the signature algorithm is used (see
+ * ProviderSelector), and the key-pair generator and KeyFactory of that provider when it has them.
+ * 
+ * Use GenSig -bench to compare the sign and verify throughput of the algorithms (see SigBench).
+ */
+
+package rathm.tests.security;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.interfaces.EdECKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PSSParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+enum SigAlgorithm
+{
+	DSA("DSA", "SHA1withDSA", "-keysize", "1024")
+	{
+		@Override
+		void initialize(KeyPairGenerator keyGen, SecureRandom random)
+		{
+			keyGen.initialize(1024, random);
+		}
+	},
+	
+	ED25519("Ed25519", "Ed25519")
+	{
+		@Override
+		void initialize(KeyPairGenerator keyGen, SecureRandom random)
+		{
+			keyGen.initialize(255, random);
+		}
+	},
+	
+	ECDSA_P256("EC", "SHA256withECDSA", "-groupname", "secp256r1")
+	{
+		@Override
+		void initialize(KeyPairGenerator keyGen, SecureRandom random) throws InvalidAlgorithmParameterException
+		{
+			keyGen.initialize(new ECGenParameterSpec("secp256r1"), random);
+		}
+	},
+	
+	RSA_PSS("RSASSA-PSS", "RSASSA-PSS", "-keysize", "3072")
+	{
+		@Override
+		void initialize(KeyPairGenerator keyGen, SecureRandom random)
+		{
+			keyGen.initialize(3072, random);
+		}
+		
+		@Override
+		Signature newSignature(Provider provider) throws NoSuchAlgorithmException
+		{
+			Signature sig = super.newSignature(provider);
+			try
+			{
+				sig.setParameter(new PSSParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA256, 32, 1));
+			}
+			catch (InvalidAlgorithmParameterException e)
+			{
+				throw new IllegalStateException("PSS parameters not supported", e);
+			}
+			return sig;
+		}
+	};
+	
+	// Algorithm used by GenSig when none is given with -alg
+	static final SigAlgorithm DEFAULT = ECDSA_P256;
+	
+	final String keyAlgorithm;
+	final String signatureAlgorithm;
+	// Options of keytool -genkeypair generating the same keys as initialize (see SigningKeyStore)
+	final List<String> keytoolOptions;
+	
+	SigAlgorithm(String keyAlgorithm, String signatureAlgorithm, String... keySizeOptions)
+	{
+		this.keyAlgorithm = keyAlgorithm;
+		this.signatureAlgorithm = signatureAlgorithm;
+		List<String> options = new ArrayList<>(List.of("-keyalg", keyAlgorithm));
+		options.addAll(Arrays.asList(keySizeOptions));
+		this.keytoolOptions = List.copyOf(options);
+	}
+	
+	/**
+	 * Initialize the key-pair generator with the key size or parameters of the algorithm.
+	 */
+	abstract void initialize(KeyPairGenerator keyGen, SecureRandom random) throws InvalidAlgorithmParameterException;
+	
+	/**
+	 * Get a key-pair generator of the given provider, or of the first provider that has one if it has none.
+	 * The generator is not initialized.
+	 */
+	KeyPairGenerator newKeyPairGenerator(Provider provider) throws NoSuchAlgorithmException
+	{
+		if (provider.getService("KeyPairGenerator", keyAlgorithm) != null)
+			return KeyPairGenerator.getInstance(keyAlgorithm, provider);
+		return KeyPairGenerator.getInstance(keyAlgorithm);
+	}
+	
+	/**
+	 * Generate a new key-pair for this algorithm.
+	 */
+	KeyPair generateKeyPair(SecureRandom random) throws NoSuchAlgorithmException, InvalidAlgorithmParameterException
+	{
+		return generateKeyPair(ProviderSelector.signatureProvider(this), random);
+	}
+	
+	/**
+	 * Generate a new key-pair for this algorithm, for use by the Signature of the given provider.
+	 */
+	KeyPair generateKeyPair(Provider provider, SecureRandom random)
+			throws NoSuchAlgorithmException, InvalidAlgorithmParameterException
+	{
+		KeyPairGenerator keyGen = newKeyPairGenerator(provider);
+		initialize(keyGen, random);
+		return keyGen.generateKeyPair();
+	}
+	
+	/**
+	 * Create a Signature object for this algorithm, not initialized for signing or verifying.
+	 */
+	Signature newSignature() throws NoSuchAlgorithmException
+	{
+		return newSignature(ProviderSelector.signatureProvider(this));
+	}
+	
+	/**
+	 * Create a Signature object of the given provider for this algorithm.
+	 */
+	Signature newSignature(Provider provider) throws NoSuchAlgorithmException
+	{
+		return Signature.getInstance(signatureAlgorithm, provider);
+	}
+	
+	/**
+	 * Build a public key from its X.509 encoding, as written by GenSig.
+	 */
+	PublicKey decodePublicKey(byte[] encKey) throws NoSuchAlgorithmException, InvalidKeySpecException
+	{
+		Provider provider = ProviderSelector.signatureProvider(this);
+		KeyFactory keyFactory = provider.getService("KeyFactory", keyAlgorithm) != null
+				? KeyFactory.getInstance(keyAlgorithm, provider)
+				: KeyFactory.getInstance(keyAlgorithm);
+		return keyFactory.generatePublic(new X509EncodedKeySpec(encKey));
+	}
+	
+	/**
+	 * Get an algorithm by name, ignoring case and '-' (e.g. ecdsa-p256, Ed25519, rsa-pss).
+	 */
+	static SigAlgorithm forName(String name)
+	{
+		for (SigAlgorithm algorithm : values())
+		{
+			if (algorithm.name().replace("_", "").equalsIgnoreCase(name.replace("-", "").replace("_", "")))
+				return algorithm;
+		}
+		throw new IllegalArgumentException("Unknown signature algorithm: " + name + ", use one of " + List.of(values()));
+	}
+	
+	/**
+	 * Get the algorithm using a key, e.g. read from a keystore.
+	 */
+	static SigAlgorithm forKey(Key key)
+	{
+		if (key instanceof EdECKey)
+		{
+			if (((EdECKey) key).getParams().getName().equals("Ed25519"))
+				return ED25519;
+		}
+		else
+		{
+			for (SigAlgorithm algorithm : values())
+			{
+				if (algorithm.keyAlgorithm.equals(key.getAlgorithm()))
+					return algorithm;
+			}
+		}
+		throw new IllegalArgumentException("No signature algorithm for " + key.getAlgorithm() + " keys, use one of "
+				+ List.of(values()));
+	}
+	
+	/**
+	 * Remove the option "-alg name" from command line arguments.
+	 * 
+	 * @param args
+	 *            Command line arguments, the option is removed from the list
+	 * @return The algorithm given by the option, or the default algorithm
+	 * @throws IllegalArgumentException
+	 *             If the name is missing or unknown
+	 */
+	static SigAlgorithm removeOption(List<String> args)
+	{
+		int i = args.indexOf("-alg");
+		if (i < 0)
+			return DEFAULT;
+		if (i + 1 >= args.size())
+			throw new IllegalArgumentException("Missing algorithm name after -alg, use one of " + List.of(values()));
+		SigAlgorithm algorithm = forName(args.get(i + 1));
+		args.subList(i, i + 2).clear();
+		return algorithm;
+	}
+}
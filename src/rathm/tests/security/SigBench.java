@@ -0,0 +1,142 @@
+/*
+ * Compare the throughput of the signature algorithms
+ * --------------------------------------------------
+ * 
+ * For each SigAlgorithm (or the ones given on the command line), generates a key-pair and then signs and
+ * verifies a small message in a loop for a fixed time. A warm-up run of the same duration is done first
+ * so the JIT has compiled the code being measured.
+ * 
+ * Writes to console, per algorithm: key generation time, sign ops/s, verify ops/s and signature size.
+ * With a small message this measures the cost of the public key operations, which dominates when many
+ * small files are signed or verified. Hashing cost for large files is the same for all algorithms using
+ * SHA-256 (see FileFeeder).
+ * 
+ * Usage:
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.GenSig -bench [seconds] [algorithm...]
+ */
+
+package rathm.tests.security;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+class SigBench
+{
+	private static final int MESSAGE_SIZE = 1024;
+	
+	/**
+	 * Sign the message in a loop for the given time.
+	 * 
+	 * @return Number of signatures per second
+	 */
+	static double signOpsPerSecond(Signature sig, KeyPair pair, byte[] message, long nanos)
+			throws GeneralSecurityException
+	{
+		sig.initSign(pair.getPrivate());
+		long ops = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do
+		{
+			sig.update(message);
+			sig.sign();
+			ops++;
+			elapsed = System.nanoTime() - start;
+		}
+		while (elapsed < nanos);
+		return ops / (elapsed / 1e9);
+	}
+	
+	/**
+	 * Verify the signature of the message in a loop for the given time.
+	 * 
+	 * @return Number of verifications per second
+	 */
+	static double verifyOpsPerSecond(Signature sig, KeyPair pair, byte[] message, byte[] signature, long nanos)
+			throws GeneralSecurityException
+	{
+		sig.initVerify(pair.getPublic());
+		long ops = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do
+		{
+			sig.update(message);
+			if (!sig.verify(signature))
+				throw new IllegalStateException("Signature does not verify");
+			ops++;
+			elapsed = System.nanoTime() - start;
+		}
+		while (elapsed < nanos);
+		return ops / (elapsed / 1e9);
+	}
+	
+	/**
+	 * @param args
+	 *            Optional seconds per measurement, followed by optional algorithm names
+	 */
+	public static void main(String[] args)
+	{
+		double seconds = 2;
+		List<SigAlgorithm> algorithms = new ArrayList<>();
+		try
+		{
+			for (String arg : args)
+			{
+				if (Character.isDigit(arg.charAt(0)))
+					seconds = Double.parseDouble(arg);
+				else
+					algorithms.add(SigAlgorithm.forName(arg));
+			}
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println("Usage: GenSig -bench [seconds] [algorithm...]");
+			System.err.println(e.getMessage());
+			return;
+		}
+		if (algorithms.isEmpty())
+			algorithms.addAll(Arrays.asList(SigAlgorithm.values()));
+		
+		long nanos = (long) (seconds * 1e9);
+		byte[] message = new byte[MESSAGE_SIZE];
+		SecureRandom random = new SecureRandom();
+		random.nextBytes(message);
+		
+		System.out.format("%-12s %14s %14s %14s %10s%n", "Algorithm", "Keygen (ms)", "Sign (ops/s)", "Verify (ops/s)",
+				"Sig bytes");
+		for (SigAlgorithm algorithm : algorithms)
+		{
+			try
+			{
+				long start = System.nanoTime();
+				KeyPair pair = algorithm.generateKeyPair(random);
+				double keygenMillis = (System.nanoTime() - start) / 1e6;
+				
+				Signature sig = algorithm.newSignature();
+				sig.initSign(pair.getPrivate());
+				sig.update(message);
+				byte[] signature = sig.sign();
+				
+				// Warm-up
+				signOpsPerSecond(sig, pair, message, nanos);
+				verifyOpsPerSecond(sig, pair, message, signature, nanos);
+				
+				double signOps = signOpsPerSecond(sig, pair, message, nanos);
+				double verifyOps = verifyOpsPerSecond(sig, pair, message, signature, nanos);
+				
+				System.out.format("%-12s %14.1f %14.1f %14.1f %10d%n", algorithm, keygenMillis, signOps, verifyOps,
+						signature.length);
+			}
+			catch (GeneralSecurityException e)
+			{
+				System.err.println("[ERROR] " + algorithm + ": " + e);
+			}
+		}
+	}
+}
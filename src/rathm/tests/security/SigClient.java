@@ -0,0 +1,188 @@
+/*
+ * Client of the signing daemon
+ * ----------------------------
+ * 
+ * Sends GenSig and VerSig command lines to a daemon started with GenSig -daemon (see SigDaemon), which runs them
+ * with warm keys and code instead of starting a JVM for each. The relative paths are resolved against the current
+ * directory of the client.
+ * 
+ * With "-" the command lines are read from the standard input, one per line (the arguments separated by tabs if
+ * the line has any, else by spaces), and streamed to the daemon on a single connection without waiting for the
+ * responses. The responses are written as they come, not in order: "line <tab> status <tab> message", line being
+ * the number of the request line. A summary is written to the standard error at the end.
+ * 
+ * The exit code is 0 if all the requests succeeded, 1 if a signature does not verify, 2 on errors.
+ * 
+ * Usage:
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.SigClient [-socket path] GenSig [-alg name] [-keystore file ...] nameOfFileToSign
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.SigClient [-socket path] VerSig publickeyfile signaturefile datafile
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.SigClient [-socket path] - < requests.txt
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.SigClient [-socket path] -stop
+ */
+
+package rathm.tests.security;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class SigClient
+{
+	// Size of the requests sent at once when streaming
+	private static final int BATCH_SIZE = 64 * 1024;
+	
+	private final AtomicInteger ok = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicInteger errors = new AtomicInteger();
+	private final AtomicInteger responses = new AtomicInteger();
+	
+	/**
+	 * Print the responses until the daemon closes the connection.
+	 * 
+	 * @param verbose
+	 *            Print the ids of the responses, else only the messages
+	 */
+	private void receive(SocketChannel channel, boolean verbose)
+	{
+		try (BufferedReader in = SigDaemon.reader(channel))
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				String[] fields = line.split("\t", 3);
+				String status = fields.length > 1 ? fields[1] : SigDaemon.ERROR;
+				String message = fields.length > 2 ? fields[2] : line;
+				if (status.equals(SigDaemon.OK))
+					ok.incrementAndGet();
+				else if (status.equals(SigDaemon.FAIL))
+					failed.incrementAndGet();
+				else
+					errors.incrementAndGet();
+				responses.incrementAndGet();
+				
+				if (verbose)
+					System.out.println(line);
+				else if (status.equals(SigDaemon.ERROR))
+					System.err.println("[ERROR] " + message);
+				else
+					System.out.println(message);
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println("[ERROR] Connection to the daemon lost: " + e);
+		}
+	}
+	
+	/**
+	 * @return Request line for a command line
+	 */
+	private static String request(int id, String cwd, List<String> args)
+	{
+		return id + "\t" + cwd + "\t" + String.join("\t", args) + "\n";
+	}
+	
+	/**
+	 * @param args
+	 *            [-socket path] followed by a GenSig or VerSig command line, "-" or "-stop"
+	 */
+	public static void main(String[] args)
+	{
+		List<String> argList = new ArrayList<>(Arrays.asList(args));
+		Path socketPath = null;
+		int i = argList.indexOf("-socket");
+		if (i >= 0 && i + 1 < argList.size())
+		{
+			socketPath = Paths.get(argList.get(i + 1));
+			argList.subList(i, i + 2).clear();
+		}
+		if (argList.isEmpty())
+		{
+			System.err.println("Usage: SigClient [-socket path] GenSig|VerSig arguments...");
+			System.err.println("       SigClient [-socket path] -      (command lines read from the standard input)");
+			System.err.println("       SigClient [-socket path] -stop");
+			System.exit(2);
+		}
+		
+		String cwd = Paths.get("").toAbsolutePath().toString();
+		boolean stream = argList.size() == 1 && argList.get(0).equals("-");
+		SigClient client = new SigClient();
+		int requests = 0;
+		long start = System.nanoTime();
+		try
+		{
+			if (socketPath == null)
+				socketPath = SigDaemon.defaultSocketPath();
+		}
+		catch (IOException e)
+		{
+			System.err.println("[ERROR] " + e.getMessage());
+			System.exit(2);
+		}
+		try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath)))
+		{
+			Thread receiver = new Thread(() -> client.receive(channel, stream), "sigclient-receiver");
+			receiver.start();
+			
+			if (stream)
+			{
+				BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+				StringBuilder batch = new StringBuilder();
+				String line;
+				int lineNumber = 0;
+				while ((line = in.readLine()) != null)
+				{
+					lineNumber++;
+					if (line.isBlank())
+						continue;
+					String[] words = line.contains("\t") ? line.split("\t") : line.trim().split("\\s+");
+					batch.append(request(lineNumber, cwd, Arrays.asList(words)));
+					requests++;
+					// Send when the batch is full, or before waiting for more input
+					if (batch.length() >= BATCH_SIZE || !in.ready())
+					{
+						SigDaemon.write(channel, batch.toString());
+						batch.setLength(0);
+					}
+				}
+				SigDaemon.write(channel, batch.toString());
+			}
+			else
+			{
+				SigDaemon.write(channel, request(1, cwd, argList));
+				requests++;
+			}
+			// The daemon closes the connection once it has answered all the requests
+			channel.shutdownOutput();
+			receiver.join();
+		}
+		catch (IOException e)
+		{
+			System.err.println("[ERROR] Cannot reach the daemon on " + socketPath + ": " + e.getMessage());
+			System.exit(2);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		
+		if (stream)
+		{
+			System.err.format("%d requests in %.3f s: %d OK, %d FAIL, %d ERROR%n", requests,
+					(System.nanoTime() - start) / 1e9, client.ok.get(), client.failed.get(), client.errors.get());
+		}
+		if (client.errors.get() > 0 || client.responses.get() < requests)
+			System.exit(2);
+		if (client.failed.get() > 0)
+			System.exit(1);
+	}
+}
@@ -0,0 +1,568 @@
+/*
+ * Signing and verification daemon
+ * -------------------------------
+ * 
+ * A build calling GenSig and VerSig for each artifact spends most of its time starting the JVM, loading the
+ * classes, initializing the providers and running cold code. The daemon does that once: it keeps the signing
+ * keys, the chosen providers (see ProviderSelector) and a Signature object per worker thread and algorithm
+ * resident, warmed up by the previous requests, and serves the requests on a Unix-domain socket.
+ * 
+ * A request is one line, the fields separated by tabs: an id chosen by the client, the working directory the
+ * relative paths are resolved against, then the command line of GenSig or VerSig. The single file modes are
+ * supported:
+ * 
+ *     id  cwd  GenSig  [-alg name] [-keystore file [-alias name] [-storepass pass]]  fileToSign
+ *     id  cwd  VerSig  publickeyfile  signaturefile  datafile
+ *     id  cwd  -stop
+ * 
+ * A GenSig request without -keystore signs with the key of the daemon, given by its own -keystore options. The
+ * public key of the signing key is written to GenSig.key.pub in the working directory, as GenSig does.
+ * 
+ * The response is one line "id <tab> status <tab> message", the status being OK, FAIL (the signature does not
+ * verify) or ERROR. A client can send any number of requests without waiting for the responses (pipelining):
+ * they are processed concurrently by the worker threads, and answered as they complete, so not in order. At
+ * most MAX_IN_FLIGHT requests of a connection are queued or waiting to be written, the daemon then stops reading
+ * the connection. The responses of a connection are written by a thread of its own, so a client that does not
+ * read its responses only blocks that thread, not the workers.
+ * 
+ * The socket file is only accessible to its owner, as anyone able to connect can sign with the keys of the
+ * daemon. It is bound in a new private directory and made rw------- there, then renamed to its path: it is
+ * never connectable with the umask permissions. The default path is gensig.sock in $XDG_RUNTIME_DIR, else in
+ * the gensig-<user> directory of java.io.tmpdir, which must be owned by the user and rwx------ so that another
+ * user cannot create it first. SigClient is the thin client, with the command line syntax of GenSig and VerSig.
+ * 
+ * Usage:
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.GenSig -daemon [-socket path] [-threads n] [-alg name] [-keystore file [-alias name] [-storepass pass]]
+ */
+
+package rathm.tests.security;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+class SigDaemon implements AutoCloseable
+{
+	static final int MAX_IN_FLIGHT = 1024;
+	
+	static final String SOCKET_FILE_NAME = "gensig.sock";
+	
+	static final String OK = "OK";
+	static final String FAIL = "FAIL";
+	static final String ERROR = "ERROR";
+	
+	private final Path socketPath;
+	private final ServerSocketChannel server;
+	private final ExecutorService workers;
+	
+	// Key of the daemon, for the GenSig requests without -keystore, or null
+	private final KeyPair defaultKeyPair;
+	
+	// Key-pairs read from keystores, by keystore file, modification time, alias, password and algorithm
+	private final Map<String, KeyPair> keyPairs = new ConcurrentHashMap<>();
+	
+	// Public keys read by VerSig requests, by file, modification time, size and algorithm
+	private final Map<String, PublicKey> publicKeys = new ConcurrentHashMap<>();
+	
+	// Public key files written, by directory and key
+	private final Set<String> publicKeyFiles = ConcurrentHashMap.newKeySet();
+	
+	// Signature objects of the worker thread, one for signing and one for verifying per algorithm
+	private final ThreadLocal<Map<SigAlgorithm, Signature>> signers = ThreadLocal
+			.withInitial(() -> new EnumMap<>(SigAlgorithm.class));
+	private final ThreadLocal<Map<SigAlgorithm, Signature>> verifiers = ThreadLocal
+			.withInitial(() -> new EnumMap<>(SigAlgorithm.class));
+	
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	
+	/**
+	 * Status and message of a response.
+	 */
+	private static class Response
+	{
+		final String status;
+		final String message;
+		
+		Response(String status, String message)
+		{
+			this.status = status;
+			this.message = message;
+		}
+	}
+	
+	/**
+	 * Responses of a connection, written by a thread of its own. The in-flight permit of a request is released
+	 * once its response is written, or dropped if the connection is broken.
+	 */
+	private static class ResponseWriter implements Runnable
+	{
+		private final SocketChannel channel;
+		private final Semaphore inFlight;
+		private final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+		
+		ResponseWriter(SocketChannel channel, Semaphore inFlight)
+		{
+			this.channel = channel;
+			this.inFlight = inFlight;
+		}
+		
+		/**
+		 * Queue the response of a request, never blocks.
+		 */
+		void send(String id, Response response)
+		{
+			lines.add(id + "\t" + response.status + "\t" + response.message.replace('\n', ' ') + "\n");
+		}
+		
+		@Override
+		public void run()
+		{
+			boolean broken = false;
+			List<String> taken = new ArrayList<>();
+			try
+			{
+				while (true)
+				{
+					taken.add(lines.take());
+					lines.drainTo(taken);
+					if (!broken)
+					{
+						try
+						{
+							write(channel, String.join("", taken));
+						}
+						catch (IOException e)
+						{
+							// Closed by the client, its next responses are dropped
+							broken = true;
+						}
+					}
+					inFlight.release(taken.size());
+					taken.clear();
+				}
+			}
+			catch (InterruptedException e)
+			{
+				// Connection closed
+			}
+		}
+	}
+	
+	/**
+	 * Bind the socket, replacing the socket file of a daemon that is no longer running.
+	 */
+	SigDaemon(Path socketPath, int threads, KeyPair defaultKeyPair) throws IOException
+	{
+		this.socketPath = socketPath;
+		this.defaultKeyPair = defaultKeyPair;
+		if (Files.exists(socketPath, LinkOption.NOFOLLOW_LINKS))
+		{
+			if (isRunning(socketPath))
+				throw new IOException("A daemon is already running on " + socketPath);
+			Files.delete(socketPath);
+		}
+		
+		// Bound where nobody else can connect, and moved to its path once only accessible to its owner
+		Path dir = Files.createTempDirectory(socketPath.toAbsolutePath().getParent(), ".gensig",
+				PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+		ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		try
+		{
+			Path bound = dir.resolve("socket");
+			channel.bind(UnixDomainSocketAddress.of(bound));
+			Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString("rw-------"));
+			Files.move(bound, socketPath, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+		finally
+		{
+			Files.deleteIfExists(dir.resolve("socket"));
+			Files.delete(dir);
+		}
+		server = channel;
+		workers = Executors.newFixedThreadPool(threads);
+	}
+	
+	/**
+	 * @return Whether a daemon accepts connections on the socket
+	 */
+	private static boolean isRunning(Path socketPath)
+	{
+		try
+		{
+			SocketChannel.open(UnixDomainSocketAddress.of(socketPath)).close();
+			return true;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+	
+	/**
+	 * Accept the connections until the daemon is stopped.
+	 */
+	void serve() throws IOException
+	{
+		try
+		{
+			while (true)
+			{
+				SocketChannel channel = server.accept();
+				Thread reader = new Thread(() -> serve(channel), "sigdaemon-connection");
+				reader.setDaemon(true);
+				reader.start();
+			}
+		}
+		catch (ClosedChannelException e)
+		{
+			// Stopped
+		}
+	}
+	
+	/**
+	 * Read the requests of a connection and queue them to the workers.
+	 */
+	private void serve(SocketChannel channel)
+	{
+		Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+		ResponseWriter out = new ResponseWriter(channel, inFlight);
+		Thread writer = new Thread(out, "sigdaemon-responses");
+		writer.setDaemon(true);
+		writer.start();
+		try (channel; BufferedReader in = reader(channel))
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				List<String> fields = Arrays.asList(line.split("\t"));
+				String id = fields.get(0);
+				inFlight.acquire();
+				if (fields.size() < 3)
+				{
+					out.send(id, new Response(ERROR, "Expected: id <tab> cwd <tab> command line"));
+					continue;
+				}
+				Path cwd = Paths.get(fields.get(1));
+				List<String> args = new ArrayList<>(fields.subList(2, fields.size()));
+				if (args.get(0).equals("-stop"))
+				{
+					// Answer the pending requests of the connection first
+					inFlight.acquire(MAX_IN_FLIGHT - 1);
+					write(channel, id + "\t" + OK + "\tStopping after " + requests.get() + " requests\n");
+					close();
+					return;
+				}
+				try
+				{
+					workers.execute(() -> out.send(id, handle(cwd, args)));
+				}
+				catch (RejectedExecutionException e)
+				{
+					out.send(id, new Response(ERROR, "The daemon is stopping"));
+				}
+			}
+			// Wait for the responses before closing the connection
+			inFlight.acquire(MAX_IN_FLIGHT);
+		}
+		catch (IOException e)
+		{
+			// Connection closed
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			writer.interrupt();
+		}
+	}
+	
+	/**
+	 * Write text to a socket channel, while another thread may be reading it.
+	 */
+	static void write(SocketChannel channel, String text) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+		synchronized (channel)
+		{
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+	}
+	
+	/**
+	 * Reader of the lines sent on a socket channel. Channels.newInputStream is not used as it holds the blocking
+	 * lock of the channel while reading, which blocks the writes of the responses.
+	 */
+	static BufferedReader reader(SocketChannel channel)
+	{
+		InputStream in = new InputStream()
+		{
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException
+			{
+				return len == 0 ? 0 : channel.read(ByteBuffer.wrap(b, off, len));
+			}
+			
+			@Override
+			public int read() throws IOException
+			{
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+			}
+		};
+		return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 64 * 1024);
+	}
+	
+	/**
+	 * Run the command line of a request.
+	 */
+	private Response handle(Path cwd, List<String> args)
+	{
+		requests.incrementAndGet();
+		try
+		{
+			String program = args.remove(0);
+			if (program.equals("GenSig"))
+				return sign(cwd, args);
+			if (program.equals("VerSig"))
+				return verify(cwd, args);
+			throw new IllegalArgumentException("Unknown program " + program + ", expected GenSig or VerSig");
+		}
+		catch (IOException | GeneralSecurityException | RuntimeException e)
+		{
+			errors.incrementAndGet();
+			return new Response(ERROR, e.toString());
+		}
+	}
+	
+	private Response sign(Path cwd, List<String> args) throws IOException, GeneralSecurityException
+	{
+		SigningKeyStore keyStore = SigningKeyStore.removeOptions(args);
+		SigAlgorithm algorithm = SigAlgorithm.removeOption(args);
+		if (args.size() != 1)
+		{
+			throw new IllegalArgumentException("Usage: GenSig [-alg name] [-keystore file [-alias name] "
+					+ "[-storepass pass]] nameOfFileToSign");
+		}
+		
+		KeyPair pair;
+		if (keyStore != null)
+			pair = keyPair(keyStore.resolve(cwd), algorithm);
+		else if (defaultKeyPair != null)
+			pair = defaultKeyPair;
+		else
+			throw new IllegalArgumentException("No signing key, use -keystore or start the daemon with -keystore");
+		algorithm = SigAlgorithm.forKey(pair.getPublic());
+		
+		Path file = cwd.resolve(args.get(0));
+		Signature sig = signers.get().get(algorithm);
+		if (sig == null)
+		{
+			sig = algorithm.newSignature();
+			signers.get().put(algorithm, sig);
+		}
+		// initSign also resets the signature object after a failed request
+		sig.initSign(pair.getPrivate());
+		FileFeeder.update(sig, file);
+		Path signatureFile = Paths.get(file + GenSig.SIGNATURE_FILE_SUFFIX);
+		new SignatureFile(algorithm, sig.sign()).write(signatureFile);
+		
+		Path publicKeyFile = cwd.resolve(GenSig.PUBLIC_KEY_FILE_NAME);
+		if (publicKeyFiles.add(publicKeyFile + "|" + Arrays.hashCode(pair.getPublic().getEncoded())))
+		{
+			Path temp = Paths.get(publicKeyFile + ".tmp" + Thread.currentThread().getId());
+			Files.write(temp, pair.getPublic().getEncoded());
+			Files.move(temp, publicKeyFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		return new Response(OK, "Created signature in file: " + signatureFile);
+	}
+	
+	/**
+	 * @return The key-pair of the keystore, read once per keystore modification
+	 */
+	private KeyPair keyPair(SigningKeyStore keyStore, SigAlgorithm algorithm)
+			throws IOException, GeneralSecurityException
+	{
+		if (Files.exists(keyStore.file))
+		{
+			KeyPair pair = keyPairs.get(keyStore.cacheKey() + "|" + algorithm);
+			if (pair != null)
+				return pair;
+		}
+		// Serialized, so concurrent requests do not all run keytool to create the same key
+		synchronized (keyPairs)
+		{
+			KeyPair pair = keyStore.getKeyPair(algorithm);
+			keyPairs.put(keyStore.cacheKey() + "|" + algorithm, pair);
+			return pair;
+		}
+	}
+	
+	private Response verify(Path cwd, List<String> args) throws IOException, GeneralSecurityException
+	{
+		if (args.size() != 3)
+			throw new IllegalArgumentException("Usage: VerSig publickeyfile signaturefile datafile");
+		Path publicKeyFile = cwd.resolve(args.get(0));
+		SignatureFile signature = SignatureFile.read(cwd.resolve(args.get(1)));
+		
+		BasicFileAttributes attributes = Files.readAttributes(publicKeyFile, BasicFileAttributes.class);
+		String key = publicKeyFile + "|" + attributes.lastModifiedTime() + "|" + attributes.size() + "|"
+				+ signature.algorithm;
+		PublicKey publicKey = publicKeys.get(key);
+		if (publicKey == null)
+		{
+			publicKey = VerSig.readPublicKey(publicKeyFile.toString(), signature.algorithm);
+			publicKeys.put(key, publicKey);
+		}
+		
+		Signature sig = verifiers.get().get(signature.algorithm);
+		if (sig == null)
+		{
+			sig = signature.algorithm.newSignature();
+			verifiers.get().put(signature.algorithm, sig);
+		}
+		sig.initVerify(publicKey);
+		FileFeeder.update(sig, cwd.resolve(args.get(2)));
+		boolean verifies = sig.verify(signature.signature);
+		return new Response(verifies ? OK : FAIL, "Signature verified: " + verifies);
+	}
+	
+	/**
+	 * Stop accepting connections and remove the socket file. The queued requests are still processed.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		server.close();
+		workers.shutdown();
+		Files.deleteIfExists(socketPath);
+	}
+	
+	/**
+	 * @return Default socket path, in a directory only accessible to the user
+	 * @throws IOException
+	 *             If the directory in the temporary directory exists but is not private to the user
+	 */
+	static Path defaultSocketPath() throws IOException
+	{
+		String runtimeDir = System.getenv("XDG_RUNTIME_DIR");
+		if (runtimeDir != null && !runtimeDir.isEmpty())
+			return Paths.get(runtimeDir, SOCKET_FILE_NAME);
+		
+		String user = System.getProperty("user.name");
+		Path dir = Paths.get(System.getProperty("java.io.tmpdir"), "gensig-" + user);
+		Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rwx------");
+		try
+		{
+			Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(permissions));
+		}
+		catch (FileAlreadyExistsException e)
+		{
+			// Created by a previous run, or by another user: checked below
+		}
+		PosixFileAttributes attributes = Files.readAttributes(dir, PosixFileAttributes.class,
+				LinkOption.NOFOLLOW_LINKS);
+		if (!attributes.isDirectory() || !attributes.owner().getName().equals(user)
+				|| !attributes.permissions().equals(permissions))
+			throw new IOException(dir + " is not a directory owned by " + user + " with permissions rwx------");
+		return dir.resolve(SOCKET_FILE_NAME);
+	}
+	
+	/**
+	 * GenSig -daemon: serve the requests until stopped.
+	 * 
+	 * @param args
+	 *            -socket path, -threads n, and the -alg / -keystore options of the daemon key
+	 */
+	static void main(String[] args)
+	{
+		List<String> argList = new ArrayList<>(Arrays.asList(args));
+		SigningKeyStore keyStore = SigningKeyStore.removeOptions(argList);
+		SigAlgorithm algorithm;
+		Path socketPath = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		try
+		{
+			algorithm = SigAlgorithm.removeOption(argList);
+			for (int i = 0; i < argList.size(); i++)
+			{
+				if (argList.get(i).equals("-socket") && i + 1 < argList.size())
+					socketPath = Paths.get(argList.get(++i));
+				else if (argList.get(i).equals("-threads") && i + 1 < argList.size())
+					threads = Integer.parseInt(argList.get(++i));
+				else
+					throw new IllegalArgumentException("Unknown option: " + argList.get(i));
+			}
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println("Usage: GenSig -daemon [-socket path] [-threads n] [-alg name] "
+					+ "[-keystore file [-alias name] [-storepass pass]]");
+			System.err.println(e.getMessage());
+			return;
+		}
+		
+		try
+		{
+			if (socketPath == null)
+				socketPath = defaultSocketPath();
+			KeyPair pair = keyStore == null ? null : keyStore.getKeyPair(algorithm);
+			try (SigDaemon daemon = new SigDaemon(socketPath, threads, pair))
+			{
+				System.out.println("Serving on " + socketPath + " with " + threads + " threads"
+						+ (pair == null ? "" : ", default key " + keyStore.alias + " of " + keyStore.file));
+				daemon.serve();
+				System.out.println("Stopped after " + daemon.requests.get() + " requests, " + daemon.errors.get()
+						+ " errors");
+			}
+		}
+		catch (IOException | GeneralSecurityException | IllegalArgumentException e)
+		{
+			System.err.println("[ERROR] " + e.getMessage());
+		}
+	}
+}
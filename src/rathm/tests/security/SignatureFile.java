@@ -0,0 +1,127 @@
+/*
+ * Content of a signature file
+ * ---------------------------
+ * 
+ * A signature file starts with a header that names the signature algorithm, followed by the signature bytes:
+ * 
+ *     "RSIG"           magic, 4 bytes
+ *     version          1 byte
+ *     name length      1 byte
+ *     algorithm name   ASCII, the name of a SigAlgorithm constant (e.g. ECDSA_P256)
+ *     signature        the rest of the file
+ * 
+ * Signature files written before the header was introduced contain only the DER encoded SHA1withDSA
+ * signature. A DER sequence starts with 0x30 so these files are recognized and read as DSA signatures.
+ * 
+ * A signature file is written to a temporary file in the same directory, then renamed: a reader never sees a
+ * partial file, and a failed write leaves the previous signature.
+ */
+
+package rathm.tests.security;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+class SignatureFile
+{
+	private static final byte[] MAGIC = { 'R', 'S', 'I', 'G' };
+	private static final byte VERSION = 1;
+	
+	private static final String TEMP_SUFFIX = ".sig.tmp";
+	
+	final SigAlgorithm algorithm;
+	final byte[] signature;
+	
+	SignatureFile(SigAlgorithm algorithm, byte[] signature)
+	{
+		this.algorithm = algorithm;
+		this.signature = signature;
+	}
+	
+	/**
+	 * Encode the header and signature.
+	 */
+	byte[] encode()
+	{
+		byte[] name = algorithm.name().getBytes(StandardCharsets.US_ASCII);
+		return ByteBuffer.allocate(MAGIC.length + 2 + name.length + signature.length).put(MAGIC).put(VERSION)
+				.put((byte) name.length).put(name).put(signature).array();
+	}
+	
+	/**
+	 * Decode the content of a signature file.
+	 * 
+	 * @param content
+	 *            Bytes of the signature file
+	 * @return The algorithm and signature, DSA for files without header
+	 */
+	static SignatureFile decode(byte[] content) throws IOException
+	{
+		if (content.length < MAGIC.length || !Arrays.equals(content, 0, MAGIC.length, MAGIC, 0, MAGIC.length))
+			return new SignatureFile(SigAlgorithm.DSA, content);
+		
+		ByteBuffer in = ByteBuffer.wrap(content, MAGIC.length, content.length - MAGIC.length);
+		try
+		{
+			if (in.get() != VERSION)
+				throw new IOException("Unsupported signature file version");
+			byte[] name = new byte[in.get() & 0xff];
+			in.get(name);
+			SigAlgorithm algorithm = SigAlgorithm.forName(new String(name, StandardCharsets.US_ASCII));
+			byte[] signature = new byte[in.remaining()];
+			in.get(signature);
+			return new SignatureFile(algorithm, signature);
+		}
+		catch (RuntimeException e)
+		{
+			throw new IOException("Invalid signature file header", e);
+		}
+	}
+	
+	static SignatureFile read(Path file) throws IOException
+	{
+		return decode(Files.readAllBytes(file));
+	}
+	
+	/**
+	 * Write the signature file atomically.
+	 */
+	void write(Path file) throws IOException
+	{
+		writeAtomically(file, encode());
+	}
+	
+	/**
+	 * Write a file through a temporary file renamed over it, also used for the other outputs next to the
+	 * signature files (e.g. checksums).
+	 */
+	static void writeAtomically(Path file, byte[] content) throws IOException
+	{
+		Path temp = file.resolveSibling("." + file.getFileName() + "." + Thread.currentThread().getId() + "."
+				+ System.nanoTime() + TEMP_SUFFIX);
+		try
+		{
+			Files.write(temp, content, StandardOpenOption.CREATE_NEW);
+			Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally
+		{
+			Files.deleteIfExists(temp);
+		}
+	}
+	
+	/**
+	 * @return Whether the file is a signature file, or a temporary file of one being written
+	 */
+	static boolean isSignatureFile(Path file)
+	{
+		String name = file.getFileName().toString();
+		return name.endsWith(GenSig.SIGNATURE_FILE_SUFFIX) || name.startsWith(".") && name.endsWith(TEMP_SUFFIX);
+	}
+}
@@ -0,0 +1,190 @@
+/*
+ * Signing key kept in a PKCS12 keystore
+ * -------------------------------------
+ * 
+ * Without a keystore GenSig generates a new key-pair on every run, writes its public key to GenSig.key.pub and
+ * throws the private key away: each run pays for the key generation, and nobody can sign again with the same
+ * identity. With -keystore the key-pair is read from a PKCS12 keystore, which takes milliseconds:
+ * 
+ *     -keystore file    PKCS12 keystore of the signing key
+ *     -alias name       entry of the key, default "gensig"
+ *     -storepass pass   password of the keystore and key, default the GENSIG_STOREPASS environment variable,
+ *                       else "changeit"
+ * 
+ * If the keystore has no entry for the alias, keytool of the running JDK generates the key-pair of the -alg
+ * algorithm (see SigAlgorithm.keytoolOptions) with a self-signed certificate, as PKCS12 only stores a private
+ * key with its certificate. The password is passed to keytool in its environment so it does not show in the
+ * process list.
+ * 
+ * When the entry exists the signature algorithm is the one of its key: -alg is then only checked against it.
+ * 
+ * Usage:
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.GenSig -keystore signing.p12 [-alias name] [-storepass pass] [-alg name] nameOfFileToSign
+ */
+
+package rathm.tests.security;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+class SigningKeyStore
+{
+	static final String DEFAULT_ALIAS = "gensig";
+	
+	static final String PASSWORD_VARIABLE = "GENSIG_STOREPASS";
+	
+	private static final String DEFAULT_PASSWORD = "changeit";
+	
+	final Path file;
+	final String alias;
+	private final char[] password;
+	// -alg was given on the command line, so it must match the algorithm of an existing key
+	private final boolean algorithmGiven;
+	
+	SigningKeyStore(Path file, String alias, char[] password, boolean algorithmGiven)
+	{
+		this.file = file;
+		this.alias = alias;
+		this.password = password;
+		this.algorithmGiven = algorithmGiven;
+	}
+	
+	/**
+	 * Remove the options "-keystore file", "-alias name" and "-storepass pass" from command line arguments.
+	 * Must be called before SigAlgorithm.removeOption, to know whether -alg was given.
+	 * 
+	 * @param args
+	 *            Command line arguments, the options are removed from the list
+	 * @return The keystore given by the options, or null without -keystore
+	 */
+	static SigningKeyStore removeOptions(List<String> args)
+	{
+		String file = removeOption(args, "-keystore");
+		String alias = removeOption(args, "-alias");
+		String password = removeOption(args, "-storepass");
+		if (file == null)
+			return null;
+		if (password == null)
+			password = System.getenv(PASSWORD_VARIABLE);
+		if (password == null)
+			password = DEFAULT_PASSWORD;
+		return new SigningKeyStore(Paths.get(file), alias == null ? DEFAULT_ALIAS : alias, password.toCharArray(),
+				args.contains("-alg"));
+	}
+	
+	/**
+	 * @param dir
+	 *            Directory a relative keystore file is resolved against, instead of the current directory
+	 * @return The same keystore, with an absolute file
+	 */
+	SigningKeyStore resolve(Path dir)
+	{
+		return new SigningKeyStore(dir.resolve(file), alias, password, algorithmGiven);
+	}
+	
+	/**
+	 * @return Key identifying the entry and its current content, to cache the key-pair read from it
+	 */
+	String cacheKey() throws IOException
+	{
+		return file + "|" + Files.getLastModifiedTime(file) + "|" + alias + "|" + Arrays.hashCode(password);
+	}
+	
+	private static String removeOption(List<String> args, String option)
+	{
+		int i = args.indexOf(option);
+		if (i < 0 || i + 1 >= args.size())
+			return null;
+		String value = args.get(i + 1);
+		args.subList(i, i + 2).clear();
+		return value;
+	}
+	
+	/**
+	 * Read the key-pair of the alias, generating it first if the keystore does not have it.
+	 * 
+	 * @param algorithm
+	 *            Algorithm of the key-pair to generate, and of the existing key if -alg was given
+	 * @return The key-pair, use SigAlgorithm.forKey for its algorithm
+	 */
+	KeyPair getKeyPair(SigAlgorithm algorithm) throws IOException, GeneralSecurityException
+	{
+		KeyStore keyStore = load();
+		if (keyStore == null || !keyStore.containsAlias(alias))
+		{
+			generate(algorithm);
+			keyStore = load();
+		}
+		
+		Key key = keyStore.getKey(alias, password);
+		Certificate certificate = keyStore.getCertificate(alias);
+		if (!(key instanceof PrivateKey) || certificate == null)
+			throw new GeneralSecurityException("Entry " + alias + " of " + file + " is not a private key");
+		KeyPair pair = new KeyPair(certificate.getPublicKey(), (PrivateKey) key);
+		
+		SigAlgorithm keyAlgorithm = SigAlgorithm.forKey(pair.getPublic());
+		if (algorithmGiven && keyAlgorithm != algorithm)
+		{
+			throw new GeneralSecurityException("Key " + alias + " of " + file + " is a " + keyAlgorithm + " key, not "
+					+ algorithm);
+		}
+		return pair;
+	}
+	
+	/**
+	 * @return The keystore, or null if the file does not exist
+	 */
+	private KeyStore load() throws IOException, GeneralSecurityException
+	{
+		if (!Files.exists(file))
+			return null;
+		KeyStore keyStore = KeyStore.getInstance("PKCS12");
+		try (InputStream in = Files.newInputStream(file))
+		{
+			keyStore.load(in, password);
+		}
+		return keyStore;
+	}
+	
+	/**
+	 * Run keytool of the running JDK to add a key-pair and self-signed certificate for the alias, creating the
+	 * keystore if it does not exist.
+	 */
+	private void generate(SigAlgorithm algorithm) throws IOException
+	{
+		String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+		List<String> command = new ArrayList<>(Arrays.asList(keytool, "-genkeypair", "-alias", alias));
+		command.addAll(algorithm.keytoolOptions);
+		command.addAll(Arrays.asList("-dname", "CN=GenSig " + alias, "-validity", "3650", "-storetype", "PKCS12",
+				"-keystore", file.toString(), "-storepass:env", PASSWORD_VARIABLE, "-keypass:env", PASSWORD_VARIABLE));
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.environment().put(PASSWORD_VARIABLE, new String(password));
+		builder.redirectErrorStream(true);
+		Process process = builder.start();
+		String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+		try
+		{
+			if (process.waitFor() != 0)
+				throw new IOException("keytool failed: " + output);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while running keytool", e);
+		}
+		System.out.println("Created " + algorithm + " key " + alias + " in keystore: " + file);
+	}
+}
@@ -22,72 +22,140 @@
  *     
  *     datafile        File whose content we want to verify using this mechanism.
  * 
+ * The signature algorithm (see SigAlgorithm) is read from the header of the signature file. Signature files
+ * without header are SHA1withDSA signatures.
+ * 
  * The program writes to console the result of the verification: true / false.
  * 
+ * With -cache the result is kept in a persistent cache (see VerifyCache). Verifying the same unchanged files
+ * again gives the cached result without reading the data file.
+ * 
  * Usage:
- * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.VerSig publickeyfile signaturefile datafile
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.VerSig [-cache cachefile] publickeyfile signaturefile datafile
+ * 
+ * Manifest mode, verifies all the files listed in a manifest file in parallel (see BatchVerifier):
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.VerSig -manifest manifestfile [-key publickeyfile] [-failfast] [-threads n] [-cache cachefile]
+ * 
+ * Merkle mode, verifies a signature created by GenSig -merkle, for the full file or only a byte range of it
+ * (see MerkleSig):
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.VerSig -merkle publickeyfile signaturefile datafile [offset length]
  */
 package rathm.tests.security;
 
-import java.io.BufferedInputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.security.InvalidKeyException;
-import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 class VerSig
 {
+	/**
+	 * Read a public key saved by GenSig.
+	 * 
+	 * @param publicKeyFile
+	 *            File containing the X.509 encoded public key
+	 * @param algorithm
+	 *            Signature algorithm the key is used with
+	 * @return The public key
+	 */
+	static PublicKey readPublicKey(String publicKeyFile, SigAlgorithm algorithm)
+			throws IOException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeySpecException
+	{
+		/*
+		 * Input and convert the encoded public key bytes
+		 */
+		
+		// Read the encoded public key bytes from the public key file
+		FileInputStream keyfis = new FileInputStream(publicKeyFile);
+		byte[] encKey = new byte[keyfis.available()];
+		keyfis.read(encKey);
+		keyfis.close();
+		
+		// Build a key specification.
+		// GenSig saves the public key in its X.509 encoding, whatever the algorithm.
+		// Get a KeyFactory for the algorithm and provider used by the key, and generate a PublicKey from
+		// the key specification.
+		return algorithm.decodePublicKey(encKey);
+	}
+	
 	public static void main(String[] args)
 	{
-		if (args.length != 3)
+		if (args.length > 0 && args[0].equals("-manifest"))
+		{
+			BatchVerifier.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-merkle"))
+		{
+			MerkleSig.mainVerify(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		
+		List<String> argList = new ArrayList<>(Arrays.asList(args));
+		String cacheFile = null;
+		int cacheOption = argList.indexOf("-cache");
+		if (cacheOption >= 0 && cacheOption + 1 < argList.size())
+		{
+			cacheFile = argList.get(cacheOption + 1);
+			argList.subList(cacheOption, cacheOption + 2).clear();
+		}
+		
+		if (argList.size() != 3)
 		{
-			System.out.println("Usage: VerSig publickeyfile signaturefile datafile");
+			System.out.println("Usage: VerSig [-cache cachefile] publickeyfile signaturefile datafile");
+			System.out.println(
+					"       VerSig -manifest manifestfile [-key publickeyfile] [-failfast] [-threads n] [-cache cachefile]");
+			System.out.println("       VerSig -merkle publickeyfile signaturefile datafile [offset length]");
 		}
 		else
 		{
-			String publicKeyFile = args[0];
-			String signatureFile = args[1];
-			String dataFile = args[2];
+			String publicKeyFile = argList.get(0);
+			String signatureFile = argList.get(1);
+			String dataFile = argList.get(2);
 			
 			try
 			{
 				/*
-				 * Input and convert the encoded public key bytes
+				 * Look for the result of an earlier verification of the same, unchanged, files
 				 */
 				
-				// Read the encoded public key bytes from the public key file
-				FileInputStream keyfis = new FileInputStream(publicKeyFile);
-				byte[] encKey = new byte[keyfis.available()];
-				keyfis.read(encKey);
-				keyfis.close();
-				
-				// Build a key specification.
-				// The key was generated with the built-in DSA key-pair generator
-				// supplied by the SUN provider so we can use the X.509 standard
-				X509EncodedKeySpec pubKeySpec = new X509EncodedKeySpec(encKey);
-				
-				// Get a KeyFactory for the algorithm and provider used by the key
-				KeyFactory keyFactory = KeyFactory.getInstance("DSA", "SUN");
-				
-				// Generate a PublicKey from the key specification
-				PublicKey pubKey = keyFactory.generatePublic(pubKeySpec);
+				VerifyCache cache = null;
+				String cacheKey = null;
+				if (cacheFile != null)
+				{
+					cache = VerifyCache.open(Paths.get(cacheFile), VerifyCache.DEFAULT_MAX_ENTRIES);
+					cacheKey = VerifyCache.key(Paths.get(dataFile), Files.readAllBytes(Paths.get(signatureFile)),
+							Files.readAllBytes(Paths.get(publicKeyFile)));
+					Boolean cached = cache.get(cacheKey);
+					if (cached != null)
+					{
+						System.out.println("Signature verified: " + cached + " (cached)");
+						return;
+					}
+				}
 				
 				/*
 				 * Input the signature bytes
 				 */
 				
-				FileInputStream sigfis = new FileInputStream(signatureFile);
-				byte[] sigToVerify = new byte[sigfis.available()];
-				sigfis.read(sigToVerify);
-				sigfis.close();
+				// The header of the signature file tells which algorithm was used to generate the signature
+				// (see SignatureFile).
+				SignatureFile signature = SignatureFile.read(Paths.get(signatureFile));
+				byte[] sigToVerify = signature.signature;
+				
+				// Input and convert the encoded public key bytes
+				PublicKey pubKey = readPublicKey(publicKeyFile, signature.algorithm);
 				
 				/*
 				 * Verify the signature
@@ -95,25 +163,15 @@ class VerSig
 				
 				// Create a Signature object that uses the same signature algorithm as was used to generate
 				// the signature.
-				Signature sig = Signature.getInstance("SHA1withDSA", "SUN");
+				Signature sig = signature.algorithm.newSignature();
 				
 				// Initialize the Signature object, using the public key.
 				sig.initVerify(pubKey);
 				
 				// Supply the Signature object with the data for which a signature was generated.
-				// This is the contents of the datafile file.
-				FileInputStream datafis = new FileInputStream(dataFile);
-				BufferedInputStream bufin = new BufferedInputStream(datafis);
-				
-				byte[] buffer = new byte[1024];
-				int len;
-				while (bufin.available() != 0)
-				{
-					len = bufin.read(buffer);
-					sig.update(buffer, 0, len);
-				}
-				;
-				bufin.close();
+				// This is the contents of the datafile file, memory-mapped or read a large buffer at a time
+				// (see FileFeeder).
+				FileFeeder.update(sig, Paths.get(dataFile));
 				
 				/*
 				 * Verify the signature
@@ -122,6 +180,12 @@ class VerSig
 				boolean verifies = sig.verify(sigToVerify);
 				
 				System.out.println("Signature verified: " + verifies);
+				
+				if (cache != null)
+				{
+					cache.put(cacheKey, verifies);
+					cache.save();
+				}
 			}
 			catch (FileNotFoundException e)
 			{
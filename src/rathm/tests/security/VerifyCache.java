@@ -0,0 +1,257 @@
+/*
+ * Persistent cache of verification results
+ * ----------------------------------------
+ * 
+ * Used by VerSig (-cache option) so that a repeated verification of unchanged files does not hash the data
+ * files again.
+ * 
+ * An entry is keyed by the identity of the data file (absolute path, size, modification time, change time
+ * and inode, as far as the file system provides them) together with a SHA-256 digest of the signature file
+ * and public key file contents. If any of these change the entry no longer matches and the file is verified
+ * again. Files modified less than RACY_MILLIS before they were verified are not cached, since a later write
+ * in the same time stamp tick would not change their identity.
+ * 
+ * The cache is a text file with one entry per line, least recently used first:
+ * 
+ *     key <tab> true|false
+ * 
+ * The number of entries is bounded, the least recently used entries are evicted first.
+ * 
+ * Several verifier processes can share the same cache file. Readers only ever see a complete file because
+ * the cache is written to a temporary file which is then atomically renamed, with the permissions of the cache
+ * file it replaces (of the lock file, created with the umask, for a new cache). Writers serialize on an
+ * exclusive lock of the file cacheFile + ".lock", and merge their entries with the entries written by the
+ * other processes since the cache was loaded.
+ */
+
+package rathm.tests.security;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+class VerifyCache
+{
+	static final int DEFAULT_MAX_ENTRIES = 200_000;
+	
+	private static final long RACY_MILLIS = 2000;
+	
+	private final Path cacheFile;
+	private final int maxEntries;
+	
+	// Entries in LRU order: iteration starts with the least recently used entry
+	private final LinkedHashMap<String, Boolean> entries;
+	
+	// Entries added or used by this process, merged into the cache file on save
+	private final LinkedHashMap<String, Boolean> touched = new LinkedHashMap<>(16, 0.75f, true);
+	
+	private int hits;
+	private int misses;
+	
+	VerifyCache(Path cacheFile, int maxEntries)
+	{
+		this.cacheFile = cacheFile;
+		this.maxEntries = maxEntries;
+		this.entries = newLruMap(maxEntries);
+	}
+	
+	private static LinkedHashMap<String, Boolean> newLruMap(int maxEntries)
+	{
+		return new LinkedHashMap<String, Boolean>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest)
+			{
+				return size() > maxEntries;
+			}
+		};
+	}
+	
+	/**
+	 * Open the cache, loading the entries of the cache file if it exists.
+	 */
+	static VerifyCache open(Path cacheFile, int maxEntries) throws IOException
+	{
+		VerifyCache cache = new VerifyCache(cacheFile, maxEntries);
+		read(cacheFile, cache.entries);
+		return cache;
+	}
+	
+	private static void read(Path cacheFile, Map<String, Boolean> into) throws IOException
+	{
+		List<String> lines;
+		try
+		{
+			lines = Files.readAllLines(cacheFile, StandardCharsets.UTF_8);
+		}
+		catch (NoSuchFileException e)
+		{
+			return;
+		}
+		for (String line : lines)
+		{
+			int tab = line.lastIndexOf('\t');
+			if (tab > 0)
+				into.put(line.substring(0, tab), Boolean.valueOf(line.substring(tab + 1)));
+		}
+	}
+	
+	/**
+	 * @return Identity of a file: absolute path, size, modification time, and change time and inode as far as the
+	 *         file system provides them. It changes when the file is written or replaced, even if the modification
+	 *         time is kept or restored.
+	 */
+	static String identity(Path file) throws IOException
+	{
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		StringBuilder identity = new StringBuilder(file.toAbsolutePath().normalize().toString());
+		identity.append('|').append(attributes.size());
+		identity.append('|').append(attributes.lastModifiedTime().toInstant());
+		try
+		{
+			Map<String, Object> unix = Files.readAttributes(file, "unix:ino,ctime");
+			identity.append('|').append(unix.get("ino")).append('|').append(unix.get("ctime"));
+		}
+		catch (UnsupportedOperationException | IllegalArgumentException e)
+		{
+			// Not a unix file system, the file key (if any) identifies the file
+			identity.append('|').append(attributes.fileKey());
+		}
+		return identity.toString();
+	}
+	
+	/**
+	 * Build the cache key of a verification.
+	 * 
+	 * @param dataFile
+	 *            Verified file
+	 * @param signature
+	 *            Content of the signature file
+	 * @param encodedKey
+	 *            Content of the public key file
+	 * @return The key, or null if the file was modified too recently to be cached
+	 */
+	static String key(Path dataFile, byte[] signature, byte[] encodedKey) throws IOException
+	{
+		long modified = Files.getLastModifiedTime(dataFile).toMillis();
+		if (System.currentTimeMillis() - modified < RACY_MILLIS)
+			return null;
+		
+		StringBuilder key = new StringBuilder(identity(dataFile));
+		try
+		{
+			MessageDigest md = ProviderSelector.messageDigest("SHA-256");
+			md.update(signature);
+			md.update(encodedKey);
+			key.append('|').append(HexFormat.of().formatHex(md.digest()));
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+		return key.toString();
+	}
+	
+	/**
+	 * Get a cached verification result.
+	 * 
+	 * @return The result, or null if the verification is not in the cache
+	 */
+	synchronized Boolean get(String key)
+	{
+		Boolean verified = key == null ? null : entries.get(key);
+		if (verified == null)
+		{
+			misses++;
+			return null;
+		}
+		hits++;
+		touched.put(key, verified);
+		return verified;
+	}
+	
+	synchronized void put(String key, boolean verified)
+	{
+		if (key == null)
+			return;
+		entries.put(key, verified);
+		touched.put(key, verified);
+	}
+	
+	synchronized int hits()
+	{
+		return hits;
+	}
+	
+	synchronized int misses()
+	{
+		return misses;
+	}
+	
+	/**
+	 * Write the cache file, merging the entries used by this process with the current content of the file
+	 * (which other processes may have updated since it was loaded).
+	 */
+	synchronized void save() throws IOException
+	{
+		if (touched.isEmpty())
+			return;
+		
+		Path lockFile = Paths.get(cacheFile + ".lock");
+		try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+		{
+			// Released when the channel is closed
+			lockChannel.lock();
+			
+			LinkedHashMap<String, Boolean> merged = newLruMap(maxEntries);
+			read(cacheFile, merged);
+			// The entries used by this process are the most recently used
+			for (Map.Entry<String, Boolean> entry : touched.entrySet())
+			{
+				merged.remove(entry.getKey());
+				merged.put(entry.getKey(), entry.getValue());
+			}
+			
+			List<String> lines = new ArrayList<>(merged.size());
+			for (Map.Entry<String, Boolean> entry : merged.entrySet())
+				lines.add(entry.getKey() + '\t' + entry.getValue());
+			
+			Path parent = cacheFile.toAbsolutePath().getParent();
+			Path temp = Files.createTempFile(parent, cacheFile.getFileName().toString(), ".tmp");
+			try
+			{
+				Files.write(temp, lines, StandardCharsets.UTF_8);
+				// createTempFile makes the file private, keep the cache readable by the processes sharing it
+				if (Files.getFileStore(temp).supportsFileAttributeView(PosixFileAttributeView.class))
+				{
+					Path model = Files.exists(cacheFile) ? cacheFile : lockFile;
+					Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(model));
+				}
+				Files.move(temp, cacheFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
+			finally
+			{
+				Files.deleteIfExists(temp);
+			}
+			
+			entries.clear();
+			entries.putAll(merged);
+			touched.clear();
+		}
+	}
+}
@@ -0,0 +1,430 @@
+/*
+ * Re-sign the files of a directory tree as they change
+ * ----------------------------------------------------
+ * 
+ * Watch mode of GenSig. Instead of signing the whole tree after every build (see BatchSigner), GenSig keeps
+ * running and watches the tree with a WatchService: only the files created or modified are signed again.
+ * 
+ * A build writes a file in several steps, each one an event. The events of a file are coalesced: it is only
+ * signed once no event came for QUIET_MILLIS. The files are signed by a pool of worker threads, with at most
+ * two files per thread queued; the other changed files wait in the pending set, where more events just delay
+ * them. A file with an event is always signed again, whatever its modification time: cp -p, rsync -t, tar or
+ * reproducible builds write files with an old time. A file modified while it is being signed is signed again
+ * afterwards.
+ * 
+ * The signature files are written atomically (see SignatureFile). The identity of each signed file when it was
+ * read (size, modification and change times, inode, see VerifyCache.identity) is kept in the STATE_FILE_NAME
+ * file of the watched directory, saved every SAVE_MILLIS and on exit. On start only the files whose identity
+ * changed since their last signature are signed, without hashing the others. If GenSig.key.pub in the current
+ * directory is not the public key of the signing key, all the files are signed again: use -keystore to keep
+ * the same key from run to run.
+ * 
+ * Stop with Ctrl-C.
+ * 
+ * Usage:
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.security.GenSig -watch [-alg name] [-keystore file [-alias name] [-storepass pass]] directory [threads]
+ */
+
+package rathm.tests.security;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class WatchSigner
+{
+	// Time without events after which a changed file is signed
+	static final long QUIET_MILLIS = 200;
+	
+	// Wait before retrying pending files that could not be queued
+	private static final long RETRY_MILLIS = 20;
+	
+	// Identities of the signed files, in the watched directory
+	static final String STATE_FILE_NAME = ".gensig-watch";
+	
+	private static final long SAVE_MILLIS = 1000;
+	
+	private final BatchSigner signer;
+	private final Path publicKeyFile;
+	private final WatchService watcher;
+	private final ExecutorService workers;
+	
+	// Queued or running files, at most two per worker thread
+	private final Semaphore slots;
+	private final Set<Path> inFlight = ConcurrentHashMap.newKeySet();
+	
+	// Changed files, with the time (System.nanoTime) after which they are signed if no more event comes
+	private final Map<Path, Long> pending = new LinkedHashMap<>();
+	
+	// Identity of each signed file when it was read, by absolute path, saved to the state file
+	private final Map<String, String> signed = new ConcurrentHashMap<>();
+	private final AtomicBoolean stateChanged = new AtomicBoolean(true);
+	private Path stateFile;
+	
+	WatchSigner(BatchSigner signer, int threads) throws IOException
+	{
+		this.signer = signer;
+		this.publicKeyFile = Paths.get(GenSig.PUBLIC_KEY_FILE_NAME).toAbsolutePath();
+		this.watcher = FileSystems.getDefault().newWatchService();
+		this.workers = Executors.newFixedThreadPool(threads);
+		this.slots = new Semaphore(2 * threads);
+	}
+	
+	/**
+	 * Watch a directory and its sub-directories.
+	 * 
+	 * @return The regular files of the directories, to sign if out of date
+	 */
+	private List<Path> register(Path dir) throws IOException
+	{
+		List<Path> files = new ArrayList<>();
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attributes) throws IOException
+			{
+				try
+				{
+					d.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+					return FileVisitResult.CONTINUE;
+				}
+				catch (NoSuchFileException e)
+				{
+					// Deleted meanwhile
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+			}
+			
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException
+			{
+				if (e instanceof NoSuchFileException)
+					return FileVisitResult.CONTINUE;
+				throw e;
+			}
+			
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+			{
+				if (attributes.isRegularFile() && isSigned(file))
+					files.add(file);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return files;
+	}
+	
+	/**
+	 * @return Whether the file is one to sign, not a signature or the public key
+	 */
+	private boolean isSigned(Path file)
+	{
+		return !SignatureFile.isSignatureFile(file) && !file.toAbsolutePath().equals(publicKeyFile)
+				&& !file.getFileName().toString().equals(STATE_FILE_NAME);
+	}
+	
+	/**
+	 * Sign a file, in a worker thread.
+	 * 
+	 * @param previous
+	 *            Identities of the files signed by the previous run, to skip the file if it did not change since,
+	 *            or null to sign it
+	 */
+	private void sign(Path file, Map<String, String> previous)
+	{
+		try
+		{
+			if (!Files.isRegularFile(file))
+				return;
+			// Taken before reading: a modification during the signature changes it, and has its own event
+			String path = file.toAbsolutePath().normalize().toString();
+			String identity = VerifyCache.identity(file);
+			if (previous != null && identity.equals(previous.get(path))
+					&& Files.exists(Paths.get(file + GenSig.SIGNATURE_FILE_SUFFIX)))
+			{
+				signed.put(path, identity);
+				stateChanged.set(true);
+				return;
+			}
+			if (signer.signFile(file))
+			{
+				signed.put(path, identity);
+				stateChanged.set(true);
+				System.out.println("Signed: " + file);
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println("[ERROR] Cannot sign file: [" + file + "] " + e);
+		}
+	}
+	
+	/**
+	 * Queue a file to the workers.
+	 */
+	private void submit(Path file, Map<String, String> previous)
+	{
+		inFlight.add(file);
+		workers.execute(() -> {
+			try
+			{
+				sign(file, previous);
+			}
+			finally
+			{
+				inFlight.remove(file);
+				slots.release();
+			}
+		});
+	}
+	
+	/**
+	 * Sign the out of date files, then the changed files until interrupted.
+	 * 
+	 * @param force
+	 *            Sign all the files on start, as they were signed with another key
+	 */
+	void watch(Path root, boolean force) throws IOException, InterruptedException
+	{
+		stateFile = root.resolve(STATE_FILE_NAME);
+		Map<String, String> previous = force ? Map.of() : loadState();
+		
+		// Register before the catch-up, so the files changed meanwhile have events
+		List<Path> files = register(root);
+		System.out.println("Watching " + root + ": " + files.size() + " files"
+				+ (force ? ", signing all of them with the new key" : ", signing the changed ones"));
+		
+		ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "watch-state");
+			thread.setDaemon(true);
+			return thread;
+		});
+		saver.scheduleWithFixedDelay(this::saveState, SAVE_MILLIS, SAVE_MILLIS, TimeUnit.MILLISECONDS);
+		// Stopped with Ctrl-C
+		Runtime.getRuntime().addShutdownHook(new Thread(this::saveState, "watch-state-exit"));
+		
+		for (Path file : files)
+		{
+			slots.acquire();
+			submit(file, previous);
+		}
+		
+		try
+		{
+			while (true)
+			{
+				WatchKey key = pending.isEmpty() ? watcher.take()
+						: watcher.poll(nextDispatchMillis(), TimeUnit.MILLISECONDS);
+				// Take the whole burst of events before dispatching
+				while (key != null)
+				{
+					handle(key);
+					key = watcher.poll();
+				}
+				dispatch();
+			}
+		}
+		finally
+		{
+			watcher.close();
+			workers.shutdown();
+			saver.shutdown();
+		}
+	}
+	
+	/**
+	 * @return Identities of the files signed by the previous run, by absolute path
+	 */
+	private Map<String, String> loadState() throws IOException
+	{
+		Map<String, String> state = new HashMap<>();
+		if (!Files.exists(stateFile))
+			return state;
+		for (String line : Files.readAllLines(stateFile, StandardCharsets.UTF_8))
+		{
+			int tab = line.indexOf('\t');
+			if (tab > 0)
+				state.put(line.substring(0, tab), line.substring(tab + 1));
+		}
+		return state;
+	}
+	
+	/**
+	 * Write the identities of the signed files, if they changed since the last save. The files of the previous
+	 * run that no longer exist are dropped.
+	 */
+	private synchronized void saveState()
+	{
+		if (!stateChanged.getAndSet(false))
+			return;
+		StringBuilder content = new StringBuilder();
+		for (Map.Entry<String, String> entry : signed.entrySet())
+			content.append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+		try
+		{
+			SignatureFile.writeAtomically(stateFile, content.toString().getBytes(StandardCharsets.UTF_8));
+		}
+		catch (IOException e)
+		{
+			stateChanged.set(true);
+			System.err.println("[ERROR] Cannot save the watch state: " + e);
+		}
+	}
+	
+	private void handle(WatchKey key) throws IOException
+	{
+		Path dir = (Path) key.watchable();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(QUIET_MILLIS);
+		for (WatchEvent<?> event : key.pollEvents())
+		{
+			if (event.kind() == OVERFLOW)
+			{
+				// Events were lost, check all the files of the directory tree
+				for (Path file : register(dir))
+					pending.putIfAbsent(file, deadline);
+				continue;
+			}
+			Path path = dir.resolve((Path) event.context());
+			if (Files.isDirectory(path))
+			{
+				// Files may have been created in the new directory before it was registered
+				if (event.kind() == ENTRY_CREATE)
+				{
+					for (Path file : register(path))
+						pending.put(file, deadline);
+				}
+			}
+			else if (isSigned(path))
+			{
+				// Coalesce the events of a file: each one delays its signature
+				pending.remove(path);
+				pending.put(path, deadline);
+			}
+		}
+		// Invalid once the directory is deleted
+		key.reset();
+	}
+	
+	/**
+	 * Queue the pending files without events for QUIET_MILLIS, as long as there are free slots.
+	 */
+	private void dispatch()
+	{
+		long now = System.nanoTime();
+		for (Iterator<Map.Entry<Path, Long>> i = pending.entrySet().iterator(); i.hasNext();)
+		{
+			Map.Entry<Path, Long> entry = i.next();
+			if (entry.getValue() - now > 0 || inFlight.contains(entry.getKey()))
+				continue;
+			if (!slots.tryAcquire())
+				return;
+			i.remove();
+			submit(entry.getKey(), null);
+		}
+	}
+	
+	/**
+	 * @return Time to wait for events before the next dispatch
+	 */
+	private long nextDispatchMillis()
+	{
+		long now = System.nanoTime();
+		long wait = TimeUnit.MILLISECONDS.toNanos(QUIET_MILLIS);
+		for (long deadline : pending.values())
+			wait = Math.min(wait, deadline - now);
+		// Files past their deadline are waiting for a slot or for their running signature
+		if (wait <= 0)
+			return RETRY_MILLIS;
+		return TimeUnit.NANOSECONDS.toMillis(wait) + 1;
+	}
+	
+	/**
+	 * @param args
+	 *            Directory to watch, optionally followed by the number of worker threads, -alg name and
+	 *            -keystore options
+	 */
+	static void main(String[] args)
+	{
+		List<String> argList = new ArrayList<>(Arrays.asList(args));
+		SigningKeyStore keyStore = SigningKeyStore.removeOptions(argList);
+		SigAlgorithm algorithm;
+		int threads = Runtime.getRuntime().availableProcessors();
+		try
+		{
+			algorithm = SigAlgorithm.removeOption(argList);
+			if (argList.size() == 2)
+				threads = Integer.parseInt(argList.get(1));
+		}
+		catch (NumberFormatException e)
+		{
+			System.err.println("[ERROR] Invalid number of threads: " + e.getMessage());
+			algorithm = null;
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println("[ERROR] " + e.getMessage());
+			algorithm = null;
+		}
+		
+		if (algorithm == null || argList.size() < 1 || argList.size() > 2 || threads < 1)
+		{
+			System.err.println("Usage: GenSig -watch [-alg name] [-keystore file [-alias name] [-storepass pass]] "
+					+ "directory [threads]");
+			return;
+		}
+		
+		Path root = Paths.get(argList.get(0));
+		
+		try
+		{
+			KeyPair pair = GenSig.signingKeyPair(keyStore, algorithm);
+			Path publicKeyFile = Paths.get(GenSig.PUBLIC_KEY_FILE_NAME);
+			boolean newKey = !Files.exists(publicKeyFile)
+					|| !Arrays.equals(Files.readAllBytes(publicKeyFile), pair.getPublic().getEncoded());
+			if (newKey)
+				GenSig.savePublicKey(pair.getPublic(), GenSig.PUBLIC_KEY_FILE_NAME);
+			
+			BatchSigner signer = new BatchSigner(SigAlgorithm.forKey(pair.getPublic()), pair.getPrivate());
+			new WatchSigner(signer, threads).watch(root, newKey);
+		}
+		catch (GeneralSecurityException | IOException e)
+		{
+			System.err.println("[ERROR] Cannot watch " + root + ": " + e);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Pool of direct byte buffers
+ * ===========================
+ * Direct buffers are expensive to allocate and are only freed when they are garbage collected, so the NIO
+ * clients and servers take them from a pool when they have data to hold and give them back as soon as they are
+ * empty. An idle connection then holds no buffer at all, which keeps the memory per connection small.
+ * 
+ * A pool is not thread safe: each selector thread has its own. At most maxPooled free buffers are kept, others
+ * are left to the garbage collector.
+ * 
+ * @author rathm
+ * 
+ */
+
+package rathm.tests.ssl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+public class BufferPool
+{
+	private final int bufferSize;
+	private final int maxPooled;
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+	
+	private int allocated;
+	
+	/**
+	 * @param bufferSize
+	 *            Capacity of the buffers, e.g. SSLSession.getPacketBufferSize()
+	 * @param maxPooled
+	 *            Maximum number of free buffers kept
+	 */
+	public BufferPool(int bufferSize, int maxPooled)
+	{
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+	
+	/**
+	 * @return A cleared buffer
+	 */
+	public ByteBuffer acquire()
+	{
+		ByteBuffer buffer = free.pollFirst();
+		if (buffer == null)
+		{
+			buffer = ByteBuffer.allocateDirect(bufferSize);
+			allocated++;
+		}
+		return buffer;
+	}
+	
+	public void release(ByteBuffer buffer)
+	{
+		if (free.size() < maxPooled)
+		{
+			buffer.clear();
+			free.addFirst(buffer);
+		}
+	}
+	
+	public int getBufferSize()
+	{
+		return bufferSize;
+	}
+	
+	/**
+	 * @return Number of buffers allocated by this pool
+	 */
+	public int getAllocated()
+	{
+		return allocated;
+	}
+}
@@ -0,0 +1,404 @@
+/*
+ * Bulk HTTPS fetcher
+ * ==================
+ * Bulk mode of TestHttps: reads a list of URLs (one per line, # for comments) and fetches them concurrently with
+ * one java.net.http.HttpClient, to mirror many small resources:
+ *     - HTTP/2 is asked for, so the requests to the same origin are multiplexed as streams on a shared
+ *       connection (the client falls back to HTTP/1.1 with a connection pool when the server has no HTTP/2)
+ *     - at most -perhost requests are in flight per origin (scheme, host and port); the other URLs of that
+ *       origin wait in its queue, without blocking the URLs of the other origins
+ *     - the body of the 2xx responses is streamed to a file through a FileChannel (BodySubscribers.ofFile),
+ *       never held in memory; the body of the other responses is discarded
+ * The files are written under the output directory as <host>[_port]/<path>, with index.html for a path ending
+ * with /, and the query, if any, appended to the file name. A body is written to a new temporary file next to
+ * its file, renamed over it once complete: a previous longer file leaves no trailing bytes, and a failed
+ * transfer leaves the previous file. The throughput counts the body bytes received.
+ * 
+ * With the -timing and -metrics options of TestHttps, each URL is recorded (see TimingRecorder): the client hides
+ * its connections, so the time to first byte is from the request to its response headers, including the connect
+ * and handshake of a new connection, and the body time from the headers to the end of the body.
+ * 
+ * Writes the failed URLs, then the number of responses per status and per HTTP version, and the throughput.
+ * 
+ * Usage examples
+ * --------------
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.ssl.TestHttps -bulk [-perhost n] [-out dir]
+ *         [-timeout s] <URL_LIST_FILE | ->
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.ssl.TestHttps -bulk -perhost 32 -out /tmp/mirror urls.txt
+ * 
+ * @author rathm
+ * 
+ */
+
+package rathm.tests.ssl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class BulkFetcher
+{
+	private final HttpClient client;
+	private final Path outDir;
+	private final int perHost;
+	private final Duration timeout;
+	
+	private final Map<String, Origin> origins = new ConcurrentHashMap<>();
+	private final Map<String, LongAdder> statuses = new ConcurrentHashMap<>();
+	private final Map<HttpClient.Version, LongAdder> versions = new ConcurrentHashMap<>();
+	private final LongAdder bodyBytes = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final AtomicLong tempFiles = new AtomicLong();
+	private CountDownLatch remaining;
+	
+	/**
+	 * URLs of one origin waiting for a free slot, and the number of requests in flight
+	 */
+	private static class Origin
+	{
+		final ArrayDeque<URI> pending = new ArrayDeque<>();
+		int inFlight;
+	}
+	
+	/**
+	 * Body subscriber adding the number of bytes received to a counter, and the bytes and body time to the timing
+	 * record of the request
+	 */
+	private static class CountingSubscriber implements BodySubscriber<Path>
+	{
+		private final BodySubscriber<Path> delegate;
+		private final LongAdder counter;
+		private final RequestTiming timing;
+		private final long headEnd = System.nanoTime();
+		
+		CountingSubscriber(BodySubscriber<Path> delegate, LongAdder counter, RequestTiming timing)
+		{
+			this.delegate = delegate;
+			this.counter = counter;
+			this.timing = timing;
+		}
+		
+		@Override
+		public CompletionStage<Path> getBody()
+		{
+			return delegate.getBody();
+		}
+		
+		@Override
+		public void onSubscribe(Flow.Subscription subscription)
+		{
+			delegate.onSubscribe(subscription);
+		}
+		
+		@Override
+		public void onNext(List<ByteBuffer> item)
+		{
+			for (ByteBuffer buffer : item)
+			{
+				counter.add(buffer.remaining());
+				timing.bodyBytes += buffer.remaining();
+			}
+			delegate.onNext(item);
+		}
+		
+		@Override
+		public void onError(Throwable throwable)
+		{
+			delegate.onError(throwable);
+		}
+		
+		@Override
+		public void onComplete()
+		{
+			timing.bodyNanos = System.nanoTime() - headEnd;
+			delegate.onComplete();
+		}
+	}
+	
+	BulkFetcher(Path outDir, int perHost, Duration timeout)
+	{
+		this.outDir = outDir;
+		this.perHost = perHost;
+		this.timeout = timeout;
+		client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2)
+				.followRedirects(HttpClient.Redirect.NORMAL).connectTimeout(timeout).build();
+	}
+	
+	/**
+	 * @return The file where the body of the URL is written
+	 */
+	Path fileFor(URI uri)
+	{
+		String host = uri.getHost() + (uri.getPort() < 0 ? "" : "_" + uri.getPort());
+		String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+		if (path.endsWith("/"))
+			path += "index.html";
+		if (uri.getRawQuery() != null)
+			path += "_" + uri.getRawQuery();
+		
+		Path file = outDir.resolve(host);
+		for (String segment : path.split("/"))
+		{
+			// No segment may leave the directory of the host
+			if (!segment.isEmpty() && !segment.equals(".") && !segment.equals(".."))
+				file = file.resolve(segment.replaceAll("[^A-Za-z0-9._=%-]", "_"));
+		}
+		return file;
+	}
+	
+	/**
+	 * Queue a URL, and start it if its origin has a free slot.
+	 */
+	void submit(URI uri)
+	{
+		String key = uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+		Origin origin = origins.computeIfAbsent(key, k -> new Origin());
+		synchronized (origin)
+		{
+			if (origin.inFlight >= perHost)
+			{
+				origin.pending.add(uri);
+				return;
+			}
+			origin.inFlight++;
+		}
+		start(uri, origin);
+	}
+	
+	/**
+	 * Start a URL, then the next ones of its origin which fail before being sent.
+	 */
+	private void start(URI uri, Origin origin)
+	{
+		while (uri != null)
+		{
+			URI current = uri;
+			Path file = fileFor(current);
+			// Unique per process and request, also when the same URL is listed twice
+			Path temp = file.resolveSibling("." + file.getFileName() + "." + ProcessHandle.current().pid() + "."
+					+ tempFiles.incrementAndGet() + ".part");
+			RequestTiming timing = new RequestTiming(current.toString());
+			HttpRequest request;
+			try
+			{
+				Files.createDirectories(file.getParent());
+				request = HttpRequest.newBuilder(current).timeout(timeout).GET().build();
+			}
+			catch (IOException | IllegalArgumentException e)
+			{
+				uri = done(current, origin, null, e, file, temp, timing);
+				continue;
+			}
+			long sent = System.nanoTime();
+			BodyHandler<Path> handler = info -> {
+				timing.ttfbNanos = System.nanoTime() - sent;
+				return info.statusCode() / 100 == 2
+						? new CountingSubscriber(BodySubscribers.ofFile(temp, StandardOpenOption.CREATE_NEW,
+								StandardOpenOption.WRITE), bodyBytes, timing)
+						: BodySubscribers.replacing(null);
+			};
+			client.sendAsync(request, handler).whenComplete(
+					(response, e) -> start(done(current, origin, response, e, file, temp, timing), origin));
+			return;
+		}
+	}
+	
+	/**
+	 * Record the result of a URL, rename its complete body over its file, and free its slot.
+	 * 
+	 * @return The next URL of the origin, which takes the slot, or null
+	 */
+	private URI done(URI uri, Origin origin, HttpResponse<Path> response, Throwable e, Path file, Path temp,
+			RequestTiming timing)
+	{
+		if (e != null)
+		{
+			timing.error = (e.getCause() != null ? e.getCause() : e).toString();
+			failed.increment();
+			System.err.println("[ERROR] " + uri + ": " + (e.getCause() != null ? e.getCause() : e));
+		}
+		else
+		{
+			timing.status = response.statusCode();
+			statuses.computeIfAbsent(Integer.toString(response.statusCode()), k -> new LongAdder()).increment();
+			versions.computeIfAbsent(response.version(), k -> new LongAdder()).increment();
+			if (response.body() != null)
+			{
+				try
+				{
+					Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				}
+				catch (IOException e2)
+				{
+					timing.error = e2.toString();
+					failed.increment();
+					System.err.println("[ERROR] " + uri + ": cannot write [" + file + "] " + e2);
+				}
+			}
+			else
+				System.err.println("[ERROR] " + uri + ": status " + response.statusCode());
+		}
+		try
+		{
+			// Partial body of a failed transfer, or body not renamed
+			Files.deleteIfExists(temp);
+		}
+		catch (IOException e2)
+		{
+			System.err.println("[ERROR] Cannot delete [" + temp + "] " + e2);
+		}
+		
+		TimingRecorder.record(timing);
+		
+		URI next;
+		synchronized (origin)
+		{
+			next = origin.pending.poll();
+			if (next == null)
+				origin.inFlight--;
+		}
+		remaining.countDown();
+		return next;
+	}
+	
+	/**
+	 * Fetch the URLs and write the results.
+	 */
+	void run(List<URI> uris) throws InterruptedException
+	{
+		System.out.format("%d URLs, %d origins, at most %d requests in flight per origin, to %s%n", uris.size(),
+				uris.stream().map(u -> u.getScheme() + "://" + u.getAuthority()).distinct().count(), perHost,
+				outDir.toAbsolutePath());
+		remaining = new CountDownLatch(uris.size());
+		long start = System.nanoTime();
+		for (URI uri : uris)
+			submit(uri);
+		remaining.await();
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		
+		Map<String, Long> byStatus = new TreeMap<>();
+		statuses.forEach((status, adder) -> byStatus.put(status, adder.sum()));
+		Map<String, Long> byVersion = new TreeMap<>();
+		versions.forEach((version, adder) -> byVersion.put(version.toString(), adder.sum()));
+		System.out.println();
+		System.out.format("Responses per status: %s, per version: %s, errors: %d%n", byStatus, byVersion,
+				failed.sum());
+		System.out.format("Throughput: %.1f URLs/s, %.2f MB/s written (%d URLs in %.3f s)%n", uris.size() / elapsed,
+				bodyBytes.sum() / elapsed / 1048576, uris.size(), elapsed);
+	}
+	
+	/**
+	 * @return The URLs of the list, the lines which are empty or start with # are skipped
+	 */
+	static List<URI> readUrls(BufferedReader reader) throws IOException
+	{
+		List<URI> uris = new ArrayList<>();
+		String line;
+		while ((line = reader.readLine()) != null)
+		{
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+			try
+			{
+				URI uri = new URI(line);
+				if (uri.getHost() == null || !("https".equalsIgnoreCase(uri.getScheme())
+						|| "http".equalsIgnoreCase(uri.getScheme())))
+					throw new URISyntaxException(line, "Not an absolute http(s) URL");
+				uris.add(uri);
+			}
+			catch (URISyntaxException e)
+			{
+				System.err.println("[ERROR] Malformed URL: [" + line + "] skipped");
+			}
+		}
+		return uris;
+	}
+	
+	/**
+	 * @param args
+	 *            [-perhost n] [-out dir] [-timeout s] (URL list file | - for standard input)
+	 */
+	public static void main(String[] args)
+	{
+		int perHost = 16;
+		String out = "bulk";
+		double seconds = 30;
+		String list = null;
+		try
+		{
+			for (int i = 0; i < args.length; i++)
+			{
+				if (args[i].equals("-perhost"))
+					perHost = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-out"))
+					out = args[++i];
+				else if (args[i].equals("-timeout"))
+					seconds = Double.parseDouble(args[++i]);
+				else
+					list = args[i];
+			}
+		}
+		catch (NumberFormatException | ArrayIndexOutOfBoundsException e)
+		{
+			perHost = 0;
+		}
+		if (list == null || perHost < 1 || seconds <= 0)
+		{
+			System.err.println("[ERROR] Usage: TestHttps -bulk [-perhost n] [-out dir] [-timeout s] "
+					+ "<URL_LIST_FILE | ->");
+			System.exit(1);
+		}
+		
+		List<URI> uris;
+		try (BufferedReader reader = list.equals("-")
+				? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+				: Files.newBufferedReader(Paths.get(list), StandardCharsets.UTF_8))
+		{
+			uris = readUrls(reader);
+		}
+		catch (IOException e)
+		{
+			System.err.println("[ERROR] Error reading the URL list: [" + list + "]");
+			e.printStackTrace();
+			System.exit(1);
+			return;
+		}
+		
+		try
+		{
+			new BulkFetcher(Paths.get(out), perHost, Duration.ofMillis((long) (seconds * 1000))).run(uris);
+		}
+		catch (InterruptedException e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,408 @@
+/*
+ * Cipher suite and protocol ranking
+ * =================================
+ * Cipher-suite mode of SSLSocketHttpClient: measures the cost of each enabled protocol and cipher suite
+ * combination on this machine, against an in-process SSLServerSocket on loopback (no network, so only the
+ * cryptography and the JSSE code are measured):
+ *     handshake ms    median wall time of -handshakes full handshakes (the sessions are invalidated, so none
+ *                     is resumed)
+ *     cpu ms          median CPU time of a handshake, client and server threads added
+ *     up MB/s         -mb MB sent by the client: encrypted by the client, decrypted by the server
+ *     down MB/s       -mb MB sent by the server: encrypted by the server, decrypted by the client
+ * then writes the combinations ranked by -sort (cpu by default), and those whose handshake failed (e.g. a suite
+ * needing a kind of certificate the server does not have).
+ * 
+ * The server has an EC (P-256) and an RSA (2048 bits) certificate, so both ECDSA and RSA suites can be
+ * negotiated; the key column shows the certificate used. As client and server share the CPU, the times are those
+ * of both ends.
+ * 
+ * Usage examples
+ * --------------
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.ssl.SSLSocketHttpClient -ciphers [-protocol p]
+ *         [-handshakes n] [-mb n] [-sort cpu|handshake|throughput]
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.ssl.SSLSocketHttpClient -ciphers -protocol TLSv1.2 -mb 64
+ * 
+ * @author rathm
+ * 
+ */
+
+package rathm.tests.ssl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+public class CipherRanking implements AutoCloseable
+{
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// Handshakes done and not measured before each combination, so the JIT compiled code is measured
+	private static final int WARMUP = 3;
+	
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	
+	private final Path directory;
+	private final SSLServerSocket serverSocket;
+	private final SSLSocketFactory clientFactory;
+	// CPU time of the server side of each handshake, in the order of the connections
+	private final BlockingQueue<Long> serverCpu = new ArrayBlockingQueue<>(1024);
+	
+	/**
+	 * Measures of a protocol and cipher suite
+	 */
+	static class Result
+	{
+		final String protocol;
+		final String cipherSuite;
+		String key;
+		double handshakeMillis;
+		double cpuMillis;
+		double upMBs;
+		double downMBs;
+		String error;
+		
+		Result(String protocol, String cipherSuite)
+		{
+			this.protocol = protocol;
+			this.cipherSuite = cipherSuite;
+		}
+	}
+	
+	CipherRanking() throws IOException, GeneralSecurityException
+	{
+		directory = Files.createTempDirectory("cipher-ranking");
+		Path keyStoreFile = directory.resolve("server.p12");
+		LoopbackCertificates.generateKeyStore(keyStoreFile, "ec", "-keyalg", "EC", "-groupname", "secp256r1");
+		LoopbackCertificates.generateKeyStore(keyStoreFile, "rsa", "-keyalg", "RSA", "-keysize", "2048");
+		KeyStore keyStore = LoopbackCertificates.loadKeyStore(keyStoreFile);
+		serverSocket = (SSLServerSocket) LoopbackCertificates.serverContext(keyStore).getServerSocketFactory()
+				.createServerSocket(0, 16, InetAddress.getLoopbackAddress());
+		// Whatever the client offers, within the defaults of the JDK
+		serverSocket.setEnabledProtocols(serverSocket.getSupportedProtocols());
+		serverSocket.setEnabledCipherSuites(serverSocket.getSupportedCipherSuites());
+		
+		clientFactory = LoopbackCertificates.clientContext(keyStore).getSocketFactory();
+		
+		Thread acceptThread = new Thread(this::acceptLoop, "ranking-accept");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+	
+	private void acceptLoop()
+	{
+		while (!serverSocket.isClosed())
+		{
+			try
+			{
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				Thread thread = new Thread(() -> serve((SSLSocket) socket), "ranking-connection");
+				thread.setDaemon(true);
+				thread.start();
+			}
+			catch (IOException e)
+			{
+				if (!serverSocket.isClosed())
+					e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Server side of a connection: handshake, then for each length received from the client, read that many
+	 * bytes, acknowledge them, and send as many back.
+	 */
+	private void serve(SSLSocket socket)
+	{
+		try (SSLSocket s = socket)
+		{
+			long cpu = THREADS.getCurrentThreadCpuTime();
+			try
+			{
+				s.startHandshake();
+			}
+			finally
+			{
+				serverCpu.offer(THREADS.getCurrentThreadCpuTime() - cpu);
+			}
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			OutputStream out = s.getOutputStream();
+			out.write(0);
+			out.flush();
+			
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (true)
+			{
+				long length = in.readLong();
+				for (long remaining = length; remaining > 0; remaining -= buffer.length)
+					in.readFully(buffer, 0, (int) Math.min(buffer.length, remaining));
+				out.write(0);
+				for (long remaining = length; remaining > 0; remaining -= buffer.length)
+					out.write(buffer, 0, (int) Math.min(buffer.length, remaining));
+				out.flush();
+			}
+		}
+		catch (IOException e)
+		{
+			// Handshake failed, or client closed the connection
+		}
+	}
+	
+	/**
+	 * @return A connected socket, handshake not started, enabled for the protocol and cipher suite only
+	 */
+	private SSLSocket connect(String protocol, String cipherSuite) throws IOException
+	{
+		SSLSocket socket = (SSLSocket) clientFactory.createSocket(InetAddress.getLoopbackAddress(),
+				serverSocket.getLocalPort());
+		socket.setTcpNoDelay(true);
+		socket.setEnabledProtocols(new String[] { protocol });
+		socket.setEnabledCipherSuites(new String[] { cipherSuite });
+		return socket;
+	}
+	
+	/**
+	 * Measure a protocol and cipher suite.
+	 */
+	Result measure(String protocol, String cipherSuite, int handshakes, long bytes)
+	{
+		Result result = new Result(protocol, cipherSuite);
+		serverCpu.clear();
+		double[] wall = new double[handshakes];
+		double[] cpu = new double[handshakes];
+		try
+		{
+			for (int i = -WARMUP; i < handshakes; i++)
+			{
+				try (SSLSocket socket = connect(protocol, cipherSuite))
+				{
+					long start = System.nanoTime();
+					long startCpu = THREADS.getCurrentThreadCpuTime();
+					socket.startHandshake();
+					long clientCpu = THREADS.getCurrentThreadCpuTime() - startCpu;
+					long elapsed = System.nanoTime() - start;
+					result.key = socket.getSession().getPeerCertificates()[0].getPublicKey().getAlgorithm();
+					// The server has finished its side of the handshake when its first byte arrives
+					if (socket.getInputStream().read() < 0)
+						throw new IOException("Connection closed by the server");
+					Long server = serverCpu.poll(10, TimeUnit.SECONDS);
+					socket.getSession().invalidate();
+					if (i >= 0)
+					{
+						wall[i] = elapsed / 1e6;
+						cpu[i] = (clientCpu + (server == null ? 0 : server)) / 1e6;
+					}
+				}
+			}
+			result.handshakeMillis = median(wall);
+			result.cpuMillis = median(cpu);
+			
+			if (bytes > 0)
+			{
+				try (SSLSocket socket = connect(protocol, cipherSuite))
+				{
+					DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+					InputStream in = socket.getInputStream();
+					in.read();
+					// Short round first, so the bulk rounds run compiled code
+					transfer(out, in, Math.min(bytes, 4 * 1048576));
+					double[] seconds = transfer(out, in, bytes);
+					result.upMBs = bytes / 1048576.0 / seconds[0];
+					result.downMBs = bytes / 1048576.0 / seconds[1];
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			result.error = e.toString();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			result.error = e.toString();
+		}
+		return result;
+	}
+	
+	/**
+	 * Send bytes to the server and receive them back.
+	 * 
+	 * @return The seconds to send them (until acknowledged) and to receive them
+	 */
+	private static double[] transfer(DataOutputStream out, InputStream in, long bytes) throws IOException
+	{
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long start = System.nanoTime();
+		out.writeLong(bytes);
+		for (long remaining = bytes; remaining > 0; remaining -= buffer.length)
+			out.write(buffer, 0, (int) Math.min(buffer.length, remaining));
+		out.flush();
+		if (in.read() < 0)
+			throw new IOException("Connection closed by the server");
+		long sent = System.nanoTime();
+		for (long remaining = bytes; remaining > 0;)
+		{
+			int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (n < 0)
+				throw new IOException("Connection closed by the server");
+			remaining -= n;
+		}
+		return new double[] { (sent - start) / 1e9, (System.nanoTime() - sent) / 1e9 };
+	}
+	
+	private static double median(double[] values)
+	{
+		if (values.length == 0)
+			return 0;
+		double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+	
+	/**
+	 * @return The protocols and cipher suites a default client enables, as [protocol, suite] pairs; TLS 1.3
+	 *         suites only go with TLS 1.3 and the others only with the earlier protocols
+	 */
+	List<String[]> combinations(String onlyProtocol)
+	{
+		SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+		List<String[]> combinations = new ArrayList<>();
+		try (SSLSocket socket = (SSLSocket) factory.createSocket())
+		{
+			for (String protocol : socket.getEnabledProtocols())
+			{
+				if (onlyProtocol != null && !onlyProtocol.equals(protocol))
+					continue;
+				for (String suite : socket.getEnabledCipherSuites())
+				{
+					boolean tls13Suite = suite.startsWith("TLS_AES_") || suite.startsWith("TLS_CHACHA20_");
+					if (!suite.endsWith("_SCSV") && tls13Suite == protocol.equals("TLSv1.3"))
+						combinations.add(new String[] { protocol, suite });
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		return combinations;
+	}
+	
+	@Override
+	public void close() throws IOException
+	{
+		serverSocket.close();
+		LoopbackCertificates.deleteDirectory(directory);
+	}
+	
+	/**
+	 * @param args
+	 *            [-protocol p] [-handshakes n] [-mb n] [-sort cpu|handshake|throughput]
+	 */
+	public static void main(String[] args)
+	{
+		String protocol = null;
+		int handshakes = 20;
+		double mb = 16;
+		String sort = "cpu";
+		try
+		{
+			for (int i = 0; i < args.length; i++)
+			{
+				if (args[i].equals("-protocol"))
+					protocol = args[++i];
+				else if (args[i].equals("-handshakes"))
+					handshakes = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-mb"))
+					mb = Double.parseDouble(args[++i]);
+				else if (args[i].equals("-sort"))
+					sort = args[++i];
+				else
+					handshakes = 0;
+			}
+		}
+		catch (NumberFormatException | ArrayIndexOutOfBoundsException e)
+		{
+			handshakes = 0;
+		}
+		Comparator<Result> order;
+		if (sort.equals("cpu"))
+			order = Comparator.comparingDouble(r -> r.cpuMillis);
+		else if (sort.equals("handshake"))
+			order = Comparator.comparingDouble(r -> r.handshakeMillis);
+		else if (sort.equals("throughput"))
+			order = Comparator.comparingDouble(r -> -(r.upMBs + r.downMBs));
+		else
+			order = null;
+		if (handshakes < 1 || mb < 0 || order == null)
+		{
+			System.err.println("[ERROR] Usage: SSLSocketHttpClient -ciphers [-protocol p] [-handshakes n] [-mb n] "
+					+ "[-sort cpu|handshake|throughput]");
+			System.exit(1);
+		}
+		
+		try (CipherRanking ranking = new CipherRanking())
+		{
+			List<String[]> combinations = ranking.combinations(protocol);
+			System.out.format("%d combinations, %d handshakes and %.0f MB each way per combination%n",
+					combinations.size(), handshakes, mb);
+			// Not measured: the first combination would otherwise pay for the class loading and JIT compilation
+			if (!combinations.isEmpty())
+				ranking.measure(combinations.get(0)[0], combinations.get(0)[1], handshakes, (long) (mb * 1048576));
+			List<Result> results = new ArrayList<>();
+			List<Result> failed = new ArrayList<>();
+			for (String[] combination : combinations)
+			{
+				Result result = ranking.measure(combination[0], combination[1], handshakes, (long) (mb * 1048576));
+				(result.error == null ? results : failed).add(result);
+				System.out.print(".");
+				System.out.flush();
+			}
+			System.out.println();
+			
+			results.sort(order);
+			System.out.println();
+			System.out.format("%4s  %-8s %-45s %-4s %10s %8s %9s %9s%n", "rank", "protocol", "cipher suite", "key",
+					"handshake", "cpu", "up", "down");
+			System.out.format("%4s  %-8s %-45s %-4s %10s %8s %9s %9s%n", "", "", "", "", "ms", "ms", "MB/s", "MB/s");
+			for (int i = 0; i < results.size(); i++)
+			{
+				Result r = results.get(i);
+				System.out.format("%4d  %-8s %-45s %-4s %10.3f %8.3f %9.1f %9.1f%n", i + 1, r.protocol, r.cipherSuite,
+						r.key, r.handshakeMillis, r.cpuMillis, r.upMBs, r.downMBs);
+			}
+			if (!failed.isEmpty())
+			{
+				System.out.println();
+				System.out.println("Failed combinations");
+				System.out.println("-------------------");
+				for (Result r : failed)
+					System.out.format("%-8s %-45s %s%n", r.protocol, r.cipherSuite, r.error);
+			}
+		}
+		catch (IOException | GeneralSecurityException e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Persistent HTTP/1.1 connection over an SSLSocket
+ * ================================================
+ * Sends GET requests and reads the responses on the same connection, so several requests pay for a single TCP
+ * connect and TLS handshake.
+ * 
+ * Responses are read into a byte buffer and parsed by HttpResponseParser, which frames them as in RFC 7230
+ * section 3.3.3 (no body for 1xx, 204 and 304; chunked; Content-Length; until the end of the connection).
+ * The connection can be reused after a response unless the server sent "Connection: close" or the body was
+ * delimited by the end of the connection.
+ * 
+ * Requests can be pipelined: send several requests, then read the responses which arrive in the same order.
+ * 
+ * See HttpConnectionPool for reusing connections per host, and SSLSocketHttpClient -keepalive.
+ * 
+ * @author rathm
+ * 
+ */
+
+package rathm.tests.ssl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+public class HttpConnection implements AutoCloseable
+{
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	/**
+	 * A response: status, headers (names in lower case) and body (empty if it was written to a channel).
+	 */
+	public static class Response
+	{
+		public final String statusLine;
+		public final int status;
+		public final Map<String, String> headers;
+		public final byte[] body;
+		
+		Response(String statusLine, int status, Map<String, String> headers, byte[] body)
+		{
+			this.statusLine = statusLine;
+			this.status = status;
+			this.headers = headers;
+			this.body = body;
+		}
+	}
+	
+	final String host;
+	final int port;
+	private final SSLSocket socket;
+	private final InputStream in;
+	private final OutputStream out;
+	
+	// Bytes received and not parsed yet, between position and limit
+	private final ByteBuffer received = ByteBuffer.allocate(BUFFER_SIZE).limit(0);
+	private final HttpResponseParser parser = new HttpResponseParser();
+	
+	private boolean reusable = true;
+	private int pending;
+	
+	/**
+	 * Connect to the host and do the TLS handshake.
+	 */
+	public HttpConnection(SSLSocketFactory factory, String host, int port) throws IOException
+	{
+		this((SSLSocket) factory.createSocket(host, port), host, port);
+		// Do the handshake now, so errors are reported as exceptions (see SSLSocketHttpClient.main)
+		socket.startHandshake();
+	}
+	
+	/**
+	 * Use a connected socket, e.g. one whose handshake was timed by the caller.
+	 */
+	public HttpConnection(SSLSocket socket, String host, int port) throws IOException
+	{
+		this.host = host;
+		this.port = port;
+		this.socket = socket;
+		// Requests are written whole with flush(), no need to delay small segments
+		socket.setTcpNoDelay(true);
+		in = socket.getInputStream();
+		out = new BufferedOutputStream(socket.getOutputStream());
+	}
+	
+	public SSLSocket getSocket()
+	{
+		return socket;
+	}
+	
+	/**
+	 * @return true if more requests can be sent on this connection
+	 */
+	public boolean isReusable()
+	{
+		return reusable && !socket.isClosed();
+	}
+	
+	/**
+	 * @return Number of requests sent whose response has not been read yet
+	 */
+	public int getPending()
+	{
+		return pending;
+	}
+	
+	/**
+	 * Write a GET request to the connection buffer. Call flush() to send the buffered requests.
+	 * 
+	 * @param path
+	 *            Path of the request, e.g. /
+	 * @param close
+	 *            Whether to ask the server to close the connection after the response
+	 */
+	public void writeGet(String path, boolean close) throws IOException
+	{
+		String request = "GET " + path + " HTTP/1.1\r\nHost: " + (port == 443 ? host : host + ":" + port) + "\r\n"
+				+ (close ? "Connection: close\r\n" : "") + "\r\n";
+		out.write(request.getBytes(StandardCharsets.US_ASCII));
+		pending++;
+		if (close)
+			reusable = false;
+	}
+	
+	public void flush() throws IOException
+	{
+		out.flush();
+	}
+	
+	/**
+	 * Read more bytes from the socket into the receive buffer.
+	 * 
+	 * @return Number of bytes read, -1 at the end of the stream
+	 */
+	private int receive() throws IOException
+	{
+		received.compact();
+		int n = in.read(received.array(), received.arrayOffset() + received.position(), received.remaining());
+		if (n > 0)
+			received.position(received.position() + n);
+		received.flip();
+		return n;
+	}
+	
+	/**
+	 * Wait until the first byte of the next response is received, e.g. to measure the time to first byte.
+	 */
+	public void awaitResponse() throws IOException
+	{
+		if (!received.hasRemaining() && receive() < 0)
+			throw new EOFException("Connection closed before the response");
+	}
+	
+	/**
+	 * Read the response of the oldest pending request.
+	 */
+	public Response readResponse() throws IOException
+	{
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		Response response = readResponse(Channels.newChannel(body));
+		return new Response(response.statusLine, response.status, response.headers, body.toByteArray());
+	}
+	
+	/**
+	 * Read the response of the oldest pending request, writing its body to a channel as it is received.
+	 */
+	public Response readResponse(WritableByteChannel body) throws IOException
+	{
+		parser.reset();
+		while (!parser.parse(received, body))
+		{
+			if (receive() < 0)
+			{
+				reusable = false;
+				if (!parser.finish())
+					throw new EOFException("Connection closed before the response");
+				break;
+			}
+		}
+		pending--;
+		if (!parser.isKeepAlive())
+			reusable = false;
+		
+		Map<String, String> headers = new LinkedHashMap<>();
+		for (int i = 0; i < parser.getHeaderCount(); i++)
+			headers.merge(parser.getHeaderName(i).toLowerCase(Locale.ROOT), parser.getHeaderValue(i), (a, b) -> a + ", " + b);
+		return new Response(parser.getStatusLine(), parser.getStatus(), headers, new byte[0]);
+	}
+	
+	@Override
+	public void close() throws IOException
+	{
+		reusable = false;
+		socket.close();
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Pool of keep-alive HTTPS connections per host
+ * =============================================
+ * Connections are taken from the pool with acquire() and given back with release() once their pending responses
+ * have been read. A connection which can no longer be reused (see HttpConnection.isReusable) is closed instead
+ * of being pooled. At most maxIdlePerHost idle connections are kept for each host and port.
+ * 
+ * The number of connections opened, i.e. of TCP connects and TLS handshakes, is counted so a client can report
+ * how many requests were served per handshake.
+ * 
+ * @author rathm
+ * 
+ */
+
+package rathm.tests.ssl;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLSocketFactory;
+
+public class HttpConnectionPool implements AutoCloseable
+{
+	private final SSLSocketFactory factory;
+	private final int maxIdlePerHost;
+	
+	// Idle connections per "host:port", most recently used first
+	private final Map<String, Deque<HttpConnection>> idle = new HashMap<>();
+	
+	private final AtomicInteger opened = new AtomicInteger();
+	private final AtomicInteger reused = new AtomicInteger();
+	
+	public HttpConnectionPool(SSLSocketFactory factory, int maxIdlePerHost)
+	{
+		this.factory = factory;
+		this.maxIdlePerHost = maxIdlePerHost;
+	}
+	
+	private static String key(String host, int port)
+	{
+		return host + ":" + port;
+	}
+	
+	/**
+	 * Get an idle connection to the host, or open a new one.
+	 */
+	public HttpConnection acquire(String host, int port) throws IOException
+	{
+		synchronized (idle)
+		{
+			Deque<HttpConnection> connections = idle.get(key(host, port));
+			while (connections != null && !connections.isEmpty())
+			{
+				HttpConnection connection = connections.pollFirst();
+				if (connection.isReusable())
+				{
+					reused.incrementAndGet();
+					return connection;
+				}
+				connection.close();
+			}
+		}
+		opened.incrementAndGet();
+		return new HttpConnection(factory, host, port);
+	}
+	
+	/**
+	 * Give a connection back to the pool, or close it if it cannot be reused.
+	 */
+	public void release(HttpConnection connection) throws IOException
+	{
+		if (connection.isReusable() && connection.getPending() == 0)
+		{
+			synchronized (idle)
+			{
+				Deque<HttpConnection> connections = idle.computeIfAbsent(key(connection.host, connection.port),
+						k -> new ArrayDeque<>());
+				if (connections.size() < maxIdlePerHost)
+				{
+					connections.addFirst(connection);
+					return;
+				}
+			}
+		}
+		connection.close();
+	}
+	
+	/**
+	 * @return Number of connections opened (TLS handshakes)
+	 */
+	public int getOpened()
+	{
+		return opened.get();
+	}
+	
+	/**
+	 * @return Number of times an idle connection was reused
+	 */
+	public int getReused()
+	{
+		return reused.get();
+	}
+	
+	/**
+	 * Close the idle connections.
+	 */
+	@Override
+	public void close()
+	{
+		synchronized (idle)
+		{
+			for (Deque<HttpConnection> connections : idle.values())
+			{
+				for (HttpConnection connection : connections)
+				{
+					try
+					{
+						connection.close();
+					}
+					catch (IOException e)
+					{
+						// Closing anyway
+					}
+				}
+			}
+			idle.clear();
+		}
+	}
+}
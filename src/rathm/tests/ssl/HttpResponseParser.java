@@ -0,0 +1,511 @@
+/*
+ * Streaming HTTP/1.1 response parser on byte buffers
+ * ==================================================
+ * Parses a response as it is received, from ByteBuffers filled by the caller (heap or direct, from a stream, a
+ * channel or an SSLEngine), without decoding it to Strings:
+ *     - the status line and header lines are kept as raw bytes in a single array, reused from response to
+ *       response, with the offsets of each header name and value; Content-Length, Transfer-Encoding and
+ *       Connection are parsed from the bytes. Strings are only created if the caller asks for a header.
+ *     - the body is framed as in RFC 7230 section 3.3.3 (no body for 1xx, 204 and 304; chunked; Content-Length;
+ *       until the end of the connection) and written to a WritableByteChannel straight from the input buffer,
+ *       so binary bodies are passed through unchanged.
+ * Interim (1xx) responses are skipped.
+ * 
+ * Typical use:
+ *     parser.reset();
+ *     while (!parser.parse(buffer, sink))
+ *         if (read more into buffer fails at end of stream && !parser.finish()) error
+ * parse() stops at the end of the response, leaving the bytes of a next (pipelined) response in the buffer.
+ * 
+ * @author rathm
+ * 
+ */
+
+package rathm.tests.ssl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class HttpResponseParser
+{
+	private static final int MAX_HEAD_SIZE = 64 * 1024;
+	
+	private enum State
+	{
+		STATUS_LINE, HEADER_LINE, BODY_LENGTH, BODY_UNTIL_CLOSE, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILER, COMPLETE
+	}
+	
+	private State state = State.STATUS_LINE;
+	
+	// Status line and header lines as received, CRLF included; also holds the chunk lines while they are read
+	private byte[] head = new byte[1024];
+	private int headLength;
+	// Start in head of the line being read
+	private int lineStart;
+	
+	// Name start, name end, value start and value end in head of each header
+	private int[] headers = new int[4 * 16];
+	private int headerCount;
+	
+	private int status;
+	private int statusLineEnd;
+	// End of the status line and headers in head, once they are complete
+	private int headEnd;
+	private boolean http10;
+	private long contentLength;
+	private boolean chunked;
+	private boolean close;
+	private boolean keepAlive;
+	
+	// Bytes left in the body (Content-Length) or in the current chunk
+	private long remaining;
+	private long bodyLength;
+	
+	/**
+	 * Prepare to parse the next response.
+	 */
+	public void reset()
+	{
+		state = State.STATUS_LINE;
+		headLength = 0;
+		lineStart = 0;
+		headerCount = 0;
+		status = 0;
+		statusLineEnd = 0;
+		headEnd = 0;
+		http10 = false;
+		contentLength = -1;
+		chunked = false;
+		close = false;
+		keepAlive = false;
+		remaining = 0;
+		bodyLength = 0;
+	}
+	
+	public HttpResponseParser()
+	{
+		reset();
+	}
+	
+	/**
+	 * Parse the input until the end of the response.
+	 * 
+	 * @param in
+	 *            Received bytes, the bytes parsed are consumed
+	 * @param body
+	 *            Where to write the body, null to skip it
+	 * @return true if the response is complete, false if more input is needed
+	 */
+	public boolean parse(ByteBuffer in, WritableByteChannel body) throws IOException
+	{
+		return run(in, body, false);
+	}
+	
+	/**
+	 * Parse the input until the end of the status line and headers, e.g. to handle them before the body.
+	 * 
+	 * @return true if the headers are complete, false if more input is needed
+	 */
+	public boolean parseHead(ByteBuffer in) throws IOException
+	{
+		return run(in, null, true);
+	}
+	
+	/**
+	 * Signal the end of the input (connection closed).
+	 * 
+	 * @return true if the response is complete, false if no byte of a response was received
+	 * @throws EOFException
+	 *             If the connection was closed in the middle of a response
+	 */
+	public boolean finish() throws EOFException
+	{
+		if (state == State.BODY_UNTIL_CLOSE)
+			state = State.COMPLETE;
+		if (state == State.COMPLETE)
+			return true;
+		if (state == State.STATUS_LINE && headLength == 0)
+			return false;
+		throw new EOFException("Connection closed in the response (" + state + ")");
+	}
+	
+	private boolean run(ByteBuffer in, WritableByteChannel body, boolean headOnly) throws IOException
+	{
+		while (true)
+		{
+			switch (state)
+			{
+				case STATUS_LINE:
+					if (!readLine(in))
+						return false;
+					parseStatusLine();
+					break;
+				case HEADER_LINE:
+					if (!readLine(in))
+						return false;
+					if (lineEnd() > lineStart)
+					{
+						addHeader(lineStart, lineEnd());
+						lineStart = headLength;
+					}
+					else if (status < 200)
+					{
+						// Interim response, the final response follows
+						reset();
+					}
+					else
+						startBody();
+					break;
+				case BODY_LENGTH:
+				case CHUNK_DATA:
+					if (headOnly)
+						return true;
+					if (remaining == 0)
+					{
+						state = state == State.BODY_LENGTH ? State.COMPLETE : State.CHUNK_END;
+						break;
+					}
+					if (!in.hasRemaining())
+						return false;
+					remaining -= transfer(in, remaining, body);
+					break;
+				case BODY_UNTIL_CLOSE:
+					if (headOnly)
+						return true;
+					transfer(in, Long.MAX_VALUE, body);
+					return false;
+				case CHUNK_SIZE:
+					if (headOnly)
+						return true;
+					if (!readLine(in))
+						return false;
+					remaining = parseChunkSize(lineStart, lineEnd());
+					headLength = lineStart;
+					state = remaining == 0 ? State.TRAILER : State.CHUNK_DATA;
+					break;
+				case CHUNK_END:
+					if (!readLine(in))
+						return false;
+					if (lineEnd() != lineStart)
+						throw new IOException("Missing CRLF after chunk");
+					headLength = lineStart;
+					state = State.CHUNK_SIZE;
+					break;
+				case TRAILER:
+					if (!readLine(in))
+						return false;
+					boolean last = lineEnd() == lineStart;
+					headLength = lineStart;
+					if (last)
+						state = State.COMPLETE;
+					break;
+				case COMPLETE:
+					return true;
+			}
+		}
+	}
+	
+	/**
+	 * Copy input up to and including the next LF to head.
+	 * 
+	 * @return true if a whole line was read
+	 */
+	private boolean readLine(ByteBuffer in) throws IOException
+	{
+		int start = in.position();
+		int limit = in.limit();
+		int end = start;
+		while (end < limit && in.get(end) != '\n')
+			end++;
+		boolean found = end < limit;
+		int n = (found ? end + 1 : end) - start;
+		if (headLength + n > head.length)
+		{
+			if (headLength + n > MAX_HEAD_SIZE)
+				throw new IOException("Response header too large");
+			head = Arrays.copyOf(head, Math.min(MAX_HEAD_SIZE, Math.max(head.length * 2, headLength + n)));
+		}
+		in.get(head, headLength, n);
+		headLength += n;
+		return found;
+	}
+	
+	/**
+	 * @return End of the content of the line just read, without CRLF
+	 */
+	private int lineEnd()
+	{
+		int end = headLength - 1;
+		if (end > lineStart && head[end - 1] == '\r')
+			end--;
+		return end;
+	}
+	
+	private void parseStatusLine() throws IOException
+	{
+		int end = lineEnd();
+		// HTTP/1.1 200 Reason
+		if (end - lineStart < 12 || !startsWith(lineStart, "HTTP/") || head[lineStart + 8] != ' ')
+			throw new IOException("Invalid status line: " + new String(head, lineStart, end - lineStart,
+					StandardCharsets.ISO_8859_1));
+		http10 = head[lineStart + 5] == '1' && head[lineStart + 7] == '0';
+		status = (int) parseDecimal(lineStart + 9, lineStart + 12);
+		statusLineEnd = end;
+		lineStart = headLength;
+		state = State.HEADER_LINE;
+	}
+	
+	private void addHeader(int start, int end) throws IOException
+	{
+		int colon = start;
+		while (colon < end && head[colon] != ':')
+			colon++;
+		if (colon == end)
+			throw new IOException("Invalid header line: " + new String(head, start, end - start,
+					StandardCharsets.ISO_8859_1));
+		int nameEnd = colon;
+		while (nameEnd > start && head[nameEnd - 1] == ' ')
+			nameEnd--;
+		int valueStart = colon + 1;
+		while (valueStart < end && (head[valueStart] == ' ' || head[valueStart] == '\t'))
+			valueStart++;
+		int valueEnd = end;
+		while (valueEnd > valueStart && (head[valueEnd - 1] == ' ' || head[valueEnd - 1] == '\t'))
+			valueEnd--;
+		
+		if (headerCount * 4 == headers.length)
+			headers = Arrays.copyOf(headers, headers.length * 2);
+		int[] h = headers;
+		int i = headerCount++ * 4;
+		h[i] = start;
+		h[i + 1] = nameEnd;
+		h[i + 2] = valueStart;
+		h[i + 3] = valueEnd;
+		
+		if (equalsIgnoreCase(start, nameEnd, "content-length"))
+			contentLength = parseDecimal(valueStart, valueEnd);
+		else if (equalsIgnoreCase(start, nameEnd, "transfer-encoding"))
+			chunked = valueEnd - valueStart >= 7 && equalsIgnoreCase(valueEnd - 7, valueEnd, "chunked");
+		else if (equalsIgnoreCase(start, nameEnd, "connection"))
+		{
+			close |= containsIgnoreCase(valueStart, valueEnd, "close");
+			keepAlive |= containsIgnoreCase(valueStart, valueEnd, "keep-alive");
+		}
+	}
+	
+	private void startBody()
+	{
+		lineStart = headLength;
+		headEnd = headLength;
+		if (status == 204 || status == 304)
+		{
+			remaining = 0;
+			state = State.BODY_LENGTH;
+		}
+		else if (chunked)
+			state = State.CHUNK_SIZE;
+		else if (contentLength >= 0)
+		{
+			remaining = contentLength;
+			state = State.BODY_LENGTH;
+		}
+		else
+		{
+			close = true;
+			state = State.BODY_UNTIL_CLOSE;
+		}
+	}
+	
+	/**
+	 * Write up to max bytes of input to the body channel, without copying them.
+	 * 
+	 * @return Number of bytes consumed
+	 */
+	private long transfer(ByteBuffer in, long max, WritableByteChannel body) throws IOException
+	{
+		int n = (int) Math.min(in.remaining(), max);
+		if (body == null)
+			in.position(in.position() + n);
+		else
+		{
+			int limit = in.limit();
+			in.limit(in.position() + n);
+			try
+			{
+				while (in.hasRemaining())
+					body.write(in);
+			}
+			finally
+			{
+				in.limit(limit);
+			}
+		}
+		bodyLength += n;
+		return n;
+	}
+	
+	private long parseChunkSize(int start, int end) throws IOException
+	{
+		long size = 0;
+		int digits = 0;
+		for (int i = start; i < end && head[i] != ';' && head[i] != ' ' && head[i] != '\t'; i++, digits++)
+		{
+			int digit = Character.digit(head[i], 16);
+			if (digit < 0 || digits >= 15)
+				throw new IOException("Invalid chunk size");
+			size = size * 16 + digit;
+		}
+		if (digits == 0)
+			throw new IOException("Invalid chunk size");
+		return size;
+	}
+	
+	private long parseDecimal(int start, int end) throws IOException
+	{
+		if (start == end || end - start > 18)
+			throw new IOException("Invalid number in response header");
+		long value = 0;
+		for (int i = start; i < end; i++)
+		{
+			if (head[i] < '0' || head[i] > '9')
+				throw new IOException("Invalid number in response header");
+			value = value * 10 + head[i] - '0';
+		}
+		return value;
+	}
+	
+	private boolean startsWith(int start, String ascii)
+	{
+		for (int i = 0; i < ascii.length(); i++)
+		{
+			if (head[start + i] != ascii.charAt(i))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Compare bytes of head to a lower case ASCII string, ignoring case.
+	 */
+	private boolean equalsIgnoreCase(int start, int end, String lowerAscii)
+	{
+		if (end - start != lowerAscii.length())
+			return false;
+		for (int i = 0; i < lowerAscii.length(); i++)
+		{
+			int b = head[start + i];
+			if (b >= 'A' && b <= 'Z')
+				b += 'a' - 'A';
+			if (b != lowerAscii.charAt(i))
+				return false;
+		}
+		return true;
+	}
+	
+	private boolean containsIgnoreCase(int start, int end, String lowerAscii)
+	{
+		for (int i = start; i + lowerAscii.length() <= end; i++)
+		{
+			if (equalsIgnoreCase(i, i + lowerAscii.length(), lowerAscii))
+				return true;
+		}
+		return false;
+	}
+	
+	public boolean isComplete()
+	{
+		return state == State.COMPLETE;
+	}
+	
+	/**
+	 * @return true once the status line and headers are parsed
+	 */
+	public boolean isHeadComplete()
+	{
+		return state != State.STATUS_LINE && state != State.HEADER_LINE;
+	}
+	
+	public int getStatus()
+	{
+		return status;
+	}
+	
+	public String getStatusLine()
+	{
+		return new String(head, 0, statusLineEnd, StandardCharsets.ISO_8859_1);
+	}
+	
+	/**
+	 * @return Value of the Content-Length header, -1 if there is none
+	 */
+	public long getContentLength()
+	{
+		return contentLength;
+	}
+	
+	public boolean isChunked()
+	{
+		return chunked;
+	}
+	
+	/**
+	 * @return true if the connection can be used for another request after this response
+	 */
+	public boolean isKeepAlive()
+	{
+		return !close && (!http10 || keepAlive);
+	}
+	
+	/**
+	 * @return Number of body bytes parsed so far (after chunked decoding)
+	 */
+	public long getBodyLength()
+	{
+		return bodyLength;
+	}
+	
+	public int getHeaderCount()
+	{
+		return headerCount;
+	}
+	
+	public String getHeaderName(int i)
+	{
+		return new String(head, headers[4 * i], headers[4 * i + 1] - headers[4 * i], StandardCharsets.ISO_8859_1);
+	}
+	
+	public String getHeaderValue(int i)
+	{
+		return new String(head, headers[4 * i + 2], headers[4 * i + 3] - headers[4 * i + 2],
+				StandardCharsets.ISO_8859_1);
+	}
+	
+	/**
+	 * @param lowerCaseName
+	 *            Header name in lower case, e.g. content-type
+	 * @return Value of the first header with this name, or null
+	 */
+	public String getHeader(String lowerCaseName)
+	{
+		for (int i = 0; i < headerCount; i++)
+		{
+			if (equalsIgnoreCase(headers[4 * i], headers[4 * i + 1], lowerCaseName))
+				return getHeaderValue(i);
+		}
+		return null;
+	}
+	
+	/**
+	 * Write the status line and headers as received, up to and including the empty line.
+	 */
+	public void writeHead(WritableByteChannel out) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(head, 0, isHeadComplete() ? headEnd : headLength);
+		while (buffer.hasRemaining())
+			out.write(buffer);
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Log-linear latency histogram
+ * ============================
+ * Records latencies in nanoseconds with a fixed memory footprint and a bounded relative error, so millions of
+ * requests can be recorded and any percentile read afterwards (same idea as HdrHistogram):
+ *     - values below 2^SUB_BITS have a bucket each (exact)
+ *     - above, each power of two is split in 2^(SUB_BITS-1) linear buckets, so a value is reported within
+ *       1 / 2^(SUB_BITS-1) (1.6 %) of its real value
+ * The counts are atomic, so several threads can record into the same histogram. Histograms can be added, also
+ * through the text form of their bucket counts, to get the percentiles of several runs.
+ * 
+ * @author rathm
+ * 
+ */
+
+package rathm.tests.ssl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram
+{
+	private static final int SUB_BITS = 7;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int HALF_COUNT = SUB_COUNT / 2;
+	
+	private final AtomicLongArray counts = new AtomicLongArray(SUB_COUNT + (64 - SUB_BITS) * HALF_COUNT);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+	
+	static int index(long value)
+	{
+		if (value < SUB_COUNT)
+			return (int) value;
+		int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return SUB_COUNT + (shift - 1) * HALF_COUNT + (int) (value >>> shift) - HALF_COUNT;
+	}
+	
+	/**
+	 * @return The highest value recorded in the bucket
+	 */
+	static long highestValue(int index)
+	{
+		if (index < SUB_COUNT)
+			return index;
+		int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+		long sub = (index - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+		return ((sub + 1) << shift) - 1;
+	}
+	
+	/**
+	 * @param nanos
+	 *            Latency, negative values are recorded as 0
+	 */
+	public void record(long nanos)
+	{
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+	
+	/**
+	 * Add the values recorded by another histogram.
+	 */
+	public void add(LatencyHistogram other)
+	{
+		for (int i = 0; i < counts.length(); i++)
+		{
+			long n = other.counts.get(i);
+			if (n != 0)
+				counts.addAndGet(i, n);
+		}
+		count.add(other.getCount());
+		sum.add(other.getSum());
+		max.accumulate(other.getMax());
+	}
+	
+	/**
+	 * @return The counts of the buckets which are not empty, as "index:count" separated by commas
+	 */
+	String getBucketCounts()
+	{
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < counts.length(); i++)
+		{
+			long n = counts.get(i);
+			if (n != 0)
+				text.append(text.length() == 0 ? "" : ",").append(i).append(':').append(n);
+		}
+		return text.toString();
+	}
+	
+	/**
+	 * Add values given by the text form of their bucket counts (see getBucketCounts), their sum and maximum. A
+	 * malformed text throws a RuntimeException (NumberFormatException, IndexOutOfBoundsException).
+	 */
+	void addBucketCounts(String bucketCounts, long valueSum, long valueMax)
+	{
+		if (!bucketCounts.isEmpty())
+		{
+			for (String bucket : bucketCounts.split(","))
+			{
+				int colon = bucket.indexOf(':');
+				long n = Long.parseLong(bucket.substring(colon + 1));
+				counts.addAndGet(Integer.parseInt(bucket.substring(0, colon)), n);
+				count.add(n);
+			}
+		}
+		sum.add(valueSum);
+		max.accumulate(valueMax);
+	}
+	
+	public long getCount()
+	{
+		return count.sum();
+	}
+	
+	public long getSum()
+	{
+		return sum.sum();
+	}
+	
+	public long getMax()
+	{
+		return max.get();
+	}
+	
+	public double getMean()
+	{
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+	
+	/**
+	 * @param percentile
+	 *            e.g. 99.9
+	 * @return The value below or at which this percentage of the values are, 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile)
+	{
+		long n = count.sum();
+		if (n == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++)
+		{
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(highestValue(i), getMax());
+		}
+		return getMax();
+	}
+}
@@ -0,0 +1,350 @@
+/*
+ * HTTPS load generator
+ * ====================
+ * Load-generator mode of SSLSocketHttpClient: runs concurrent clients doing the GET requests of SSLSocketHttpClient
+ * against a host for a fixed duration or number of requests, and writes latency percentiles and throughput.
+ * 
+ * Schedule:
+ *     -rate r     open model: the requests are started on a fixed schedule of r requests per second, shared by all
+ *                 clients, whatever the latency of the previous requests. The response time of a request is
+ *                 measured from the time it was scheduled, not from the time a client was free to send it, so a
+ *                 server stall shows in the percentiles instead of silently lowering the request rate
+ *                 ("coordinated omission"). There must be enough clients for rate * latency requests in flight.
+ *     no -rate    closed model: each client sends its next request as soon as it has the previous response.
+ * 
+ * For each request are recorded, in log-linear histograms (see LatencyHistogram):
+ *     connect     TCP connect (only for new connections)
+ *     handshake   TLS handshake (only for new connections)
+ *     ttfb        from sending the request to the first byte of the response
+ *     total       from the start of the request to the end of the response (service time)
+ *     response    from the scheduled start of the request to the end of the response (open model only)
+ * By default each request uses a new connection, as SSLSocketHttpClient does; with -keepalive each client keeps its
+ * connection (see HttpConnection). With the -timing and -metrics options of SSLSocketHttpClient, each request is
+ * also recorded (see TimingRecorder).
+ * 
+ * The clients run on virtual threads when the Java runtime has them (Java 21 and later), otherwise on platform
+ * threads.
+ * 
+ * With -loopback the requests go to an in-process NioHttpsServer, so no network is needed; the path then
+ * selects the response, e.g. /1024 for a body of 1024 bytes or /1024?delay=20 to add 20 ms of server latency.
+ * 
+ * Usage examples
+ * --------------
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.ssl.SSLSocketHttpClient -load [-port p] [-clients n]
+ *         [-rate requests/s] [-duration s | -requests n] [-keepalive] (-loopback | <HOST>) [PATH]
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.ssl.SSLSocketHttpClient -load -clients 50 -rate 200 -duration 30 -keepalive -loopback /1024
+ * 
+ * @author rathm
+ * 
+ */
+
+package rathm.tests.ssl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+public class LoadGenerator
+{
+	// Errors written to console, the others are only counted
+	private static final int MAX_ERRORS_SHOWN = 10;
+	
+	private final SSLSocketFactory factory;
+	private final String host;
+	private final int port;
+	private final String path;
+	private final boolean keepAlive;
+	private final double rate;
+	
+	final LatencyHistogram connect = new LatencyHistogram();
+	final LatencyHistogram handshake = new LatencyHistogram();
+	final LatencyHistogram ttfb = new LatencyHistogram();
+	final LatencyHistogram total = new LatencyHistogram();
+	final LatencyHistogram response = new LatencyHistogram();
+	
+	private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+	private final LongAdder bodyBytes = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	
+	// Index of the next request to start
+	private final AtomicLong next = new AtomicLong();
+	
+	LoadGenerator(SSLSocketFactory factory, String host, int port, String path, boolean keepAlive, double rate)
+	{
+		this.factory = factory;
+		this.host = host;
+		this.port = port;
+		this.path = path;
+		this.keepAlive = keepAlive;
+		this.rate = rate;
+	}
+	
+	/**
+	 * Executor running one client per task: virtual threads when available (Java 21 and later).
+	 */
+	static ExecutorService newClientExecutor(int clients)
+	{
+		try
+		{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			return Executors.newFixedThreadPool(clients);
+		}
+	}
+	
+	/**
+	 * Send requests until the end time or the request count is reached.
+	 * 
+	 * @param start
+	 *            Time (System.nanoTime) of the first scheduled request
+	 * @param end
+	 *            Time after which no request is started
+	 * @param requests
+	 *            Number of requests to do in all, 0 for no limit
+	 */
+	void client(long start, long end, long requests)
+	{
+		InetSocketAddress address = new InetSocketAddress(host, port);
+		String url = "https://" + (port == 443 ? host : host + ":" + port) + path;
+		HttpConnection connection = null;
+		while (true)
+		{
+			long i = next.getAndIncrement();
+			if (requests > 0 && i >= requests)
+				break;
+			long scheduled = rate > 0 ? start + (long) (i * 1e9 / rate) : System.nanoTime();
+			if (scheduled >= end)
+				break;
+			long now;
+			while ((now = System.nanoTime()) < scheduled)
+				LockSupport.parkNanos(scheduled - now);
+			
+			long begin = System.nanoTime();
+			RequestTiming timing = new RequestTiming(url);
+			try
+			{
+				if (connection == null || !connection.isReusable())
+				{
+					if (connection != null)
+						connection.close();
+					connection = null;
+					SSLSocket socket = (SSLSocket) factory.createSocket();
+					try
+					{
+						socket.connect(address);
+						long connected = System.nanoTime();
+						timing.connectNanos = connected - begin;
+						connect.record(timing.connectNanos);
+						socket.startHandshake();
+						timing.handshake(System.nanoTime() - connected, socket.getSession());
+						handshake.record(timing.tlsNanos);
+						connection = new HttpConnection(socket, host, port);
+					}
+					finally
+					{
+						if (connection == null)
+							socket.close();
+					}
+				}
+				
+				long sent = System.nanoTime();
+				connection.writeGet(path, !keepAlive);
+				connection.flush();
+				connection.awaitResponse();
+				long firstByte = System.nanoTime();
+				timing.ttfbNanos = firstByte - sent;
+				ttfb.record(timing.ttfbNanos);
+				HttpConnection.Response result = connection.readResponse();
+				long done = System.nanoTime();
+				timing.bodyNanos = done - firstByte;
+				timing.bodyBytes = result.body.length;
+				timing.status = result.status;
+				TimingRecorder.record(timing);
+				total.record(done - begin);
+				if (rate > 0)
+					response.record(done - scheduled);
+				
+				statuses.computeIfAbsent(result.status, k -> new LongAdder()).increment();
+				bodyBytes.add(result.body.length);
+				if (!keepAlive)
+				{
+					connection.close();
+					connection = null;
+				}
+			}
+			catch (IOException | RuntimeException e)
+			{
+				timing.error = e.toString();
+				TimingRecorder.record(timing);
+				errors.increment();
+				if (errors.sum() <= MAX_ERRORS_SHOWN)
+					System.err.println("[ERROR] " + e);
+				try
+				{
+					if (connection != null)
+						connection.close();
+				}
+				catch (IOException e2)
+				{
+					// Closed anyway
+				}
+				connection = null;
+			}
+		}
+		
+		try
+		{
+			if (connection != null)
+				connection.close();
+		}
+		catch (IOException e)
+		{
+			// Closed anyway
+		}
+	}
+	
+	/**
+	 * Run the clients and write the results.
+	 */
+	void run(int clients, double seconds, long requests) throws InterruptedException
+	{
+		ExecutorService executor = newClientExecutor(clients);
+		boolean virtual = !(executor instanceof ThreadPoolExecutor);
+		System.out.format("%d clients on %s, %s, %s%n", clients,
+				virtual ? "virtual threads" : "platform threads (virtual threads need Java 21)",
+				rate > 0 ? String.format("open model at %.1f requests/s", rate) : "closed model",
+				requests > 0 ? requests + " requests" : seconds + " s");
+		
+		long start = System.nanoTime() + 10_000_000;
+		long end = requests > 0 ? Long.MAX_VALUE : start + (long) (seconds * 1e9);
+		for (int i = 0; i < clients; i++)
+			executor.execute(() -> client(start, end, requests));
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		
+		System.out.println();
+		System.out.format("%-10s %9s %10s %10s %10s %10s %10s %10s%n", "(ms)", "count", "mean", "p50", "p90", "p99",
+				"p99.9", "max");
+		print("connect", connect);
+		print("handshake", handshake);
+		print("ttfb", ttfb);
+		print("total", total);
+		if (rate > 0)
+			print("response", response);
+		
+		long completed = total.getCount();
+		Map<Integer, Long> byStatus = new TreeMap<>();
+		statuses.forEach((status, adder) -> byStatus.put(status, adder.sum()));
+		System.out.println();
+		System.out.format("Responses per status: %s, errors: %d%n", byStatus, errors.sum());
+		System.out.format("Throughput: %.1f requests/s, %.2f MB/s body (%d requests in %.3f s)%n", completed / elapsed,
+				bodyBytes.sum() / elapsed / 1048576, completed, elapsed);
+	}
+	
+	private static void print(String name, LatencyHistogram histogram)
+	{
+		System.out.format("%-10s %9d %10.3f %10.3f %10.3f %10.3f %10.3f %10.3f%n", name, histogram.getCount(),
+				histogram.getMean() / 1e6, histogram.getPercentile(50) / 1e6, histogram.getPercentile(90) / 1e6,
+				histogram.getPercentile(99) / 1e6, histogram.getPercentile(99.9) / 1e6, histogram.getMax() / 1e6);
+	}
+	
+	/**
+	 * @param args
+	 *            [-port p] [-clients n] [-rate requests/s] [-duration s | -requests n] [-keepalive] (-loopback |
+	 *            host) [path]
+	 */
+	public static void main(String[] args)
+	{
+		int port = 443;
+		int clients = 16;
+		double rate = 0;
+		double seconds = 10;
+		long requests = 0;
+		boolean keepAlive = false;
+		boolean loopback = false;
+		String host = null;
+		String path = "/";
+		try
+		{
+			for (int i = 0; i < args.length; i++)
+			{
+				if (args[i].equals("-port"))
+					port = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-clients"))
+					clients = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-rate"))
+					rate = Double.parseDouble(args[++i]);
+				else if (args[i].equals("-duration"))
+					seconds = Double.parseDouble(args[++i]);
+				else if (args[i].equals("-requests"))
+					requests = Long.parseLong(args[++i]);
+				else if (args[i].equals("-keepalive"))
+					keepAlive = true;
+				else if (args[i].equals("-loopback"))
+					loopback = true;
+				else if (host == null && !loopback)
+					host = args[i];
+				else
+					path = args[i];
+			}
+		}
+		catch (NumberFormatException | ArrayIndexOutOfBoundsException e)
+		{
+			clients = 0;
+		}
+		if ((host == null) == !loopback || clients < 1)
+		{
+			System.err.println("[ERROR] Usage: SSLSocketHttpClient -load [-port p] [-clients n] [-rate requests/s] "
+					+ "[-duration s | -requests n] [-keepalive] (-loopback | <HOST>) [PATH]");
+			System.exit(1);
+		}
+		
+		NioHttpsServer server = null;
+		try
+		{
+			SSLSocketFactory factory;
+			if (loopback)
+			{
+				server = new NioHttpsServer(0);
+				factory = server.clientContext().getSocketFactory();
+				host = "localhost";
+				port = server.getPort();
+			}
+			else
+				factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+			
+			new LoadGenerator(factory, host, port, path, keepAlive, rate).run(clients, seconds, requests);
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			try
+			{
+				if (server != null)
+					server.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+}
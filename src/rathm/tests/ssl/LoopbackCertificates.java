@@ -0,0 +1,121 @@
+/*
+ * Certificates and SSL contexts of the loopback test servers
+ * ==========================================================
+ * Generates a key-pair and self-signed certificate for localhost (CN=localhost, subject alternative names
+ * localhost and 127.0.0.1) with keytool into a PKCS12 keystore of password STORE_PASSWORD, and builds the server
+ * SSLContext using it and a client SSLContext trusting it, so the servers and clients of this package can run
+ * offline. Other programs can trust such a keystore with:
+ *     -Djavax.net.ssl.trustStore=<keystore> -Djavax.net.ssl.trustStorePassword=changeit
+ * 
+ * @author rathm
+ * 
+ */
+
+package rathm.tests.ssl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+public class LoopbackCertificates
+{
+	public static final String STORE_PASSWORD = "changeit";
+	
+	private LoopbackCertificates()
+	{
+	}
+	
+	/**
+	 * Run keytool of the running JDK to generate a key-pair and self-signed certificate for localhost, added to
+	 * the keystore if it exists.
+	 * 
+	 * @param keyOptions
+	 *            keytool options of the key, e.g. "-keyalg", "RSA", "-keysize", "2048"
+	 */
+	static void generateKeyStore(Path file, String alias, String... keyOptions) throws IOException
+	{
+		String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+		List<String> command = new ArrayList<>(Arrays.asList(keytool, "-genkeypair", "-alias", alias));
+		command.addAll(Arrays.asList(keyOptions));
+		command.addAll(Arrays.asList("-dname", "CN=localhost", "-ext", "san=dns:localhost,ip:127.0.0.1", "-validity",
+				"2", "-storetype", "PKCS12", "-keystore", file.toString(), "-storepass", STORE_PASSWORD, "-keypass",
+				STORE_PASSWORD));
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectErrorStream(true);
+		Process process = builder.start();
+		String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+		try
+		{
+			if (process.waitFor() != 0)
+				throw new IOException("keytool failed: " + output);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while running keytool", e);
+		}
+	}
+	
+	/**
+	 * @return The PKCS12 keystore of the file, password STORE_PASSWORD
+	 */
+	static KeyStore loadKeyStore(Path file) throws IOException, GeneralSecurityException
+	{
+		KeyStore keyStore = KeyStore.getInstance("PKCS12");
+		try (InputStream in = Files.newInputStream(file))
+		{
+			keyStore.load(in, STORE_PASSWORD.toCharArray());
+		}
+		return keyStore;
+	}
+	
+	/**
+	 * @return A server SSLContext using the keys of the keystore
+	 */
+	static SSLContext serverContext(KeyStore keyStore) throws GeneralSecurityException
+	{
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(keyStore, STORE_PASSWORD.toCharArray());
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(kmf.getKeyManagers(), null, null);
+		return context;
+	}
+	
+	/**
+	 * @return A client SSLContext which trusts the certificates of the keystore
+	 */
+	static SSLContext clientContext(KeyStore keyStore) throws GeneralSecurityException
+	{
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(keyStore);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, tmf.getTrustManagers(), null);
+		return context;
+	}
+	
+	/**
+	 * Delete a directory and its content, e.g. the temporary directory of a keystore.
+	 */
+	static void deleteDirectory(Path directory) throws IOException
+	{
+		try (Stream<Path> files = Files.walk(directory))
+		{
+			for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+				Files.deleteIfExists(file);
+		}
+	}
+}
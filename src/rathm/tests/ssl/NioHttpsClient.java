@@ -0,0 +1,673 @@
+/*
+ * Non-blocking HTTPS client for many concurrent connections
+ * =========================================================
+ * Opens many HTTPS connections to a host at once, e.g. to health-check a fleet, without one thread per
+ * connection: each connection is a non-blocking SocketChannel driven by an SSLEngine (wrap / unwrap), and the
+ * channels are multiplexed on one Selector per core. The handshake tasks of the SSLEngine run on the selector
+ * threads.
+ * 
+ * Each connection does -requests GET requests of the path, one after the other on the same (keep-alive)
+ * connection. With -hold the connections are then kept open for that many seconds, to see how many idle TLS
+ * connections a client (or server) can keep; otherwise they are closed after their last response.
+ * 
+ * Memory per connection is kept small: the network and application buffers are direct buffers taken from a pool
+ * (see BufferPool) only while they hold data, so an idle connection holds no buffer, only its SSLEngine and
+ * channel. Responses are framed by HttpResponseParser (Content-Length, chunked or the end of the connection) and
+ * their body is skipped without being copied.
+ * 
+ * Writes the progress every second: connections opened, handshakes, responses, errors; and with -hold the heap
+ * used while all connections are open. With -timing and -metrics each request is recorded (see TimingRecorder):
+ * the connect and handshake with the first request of its connection, then the time to first byte and the body.
+ * 
+ * Many connections need as many file descriptors: raise the limit first, e.g. ulimit -n 20000
+ * The server certificate is checked with the default trust store, and its host name with the HTTPS rules.
+ * 
+ * Usage examples
+ * --------------
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.ssl.NioHttpsClient [-port p] [-connections n]
+ *         [-selectors n] [-rate connects/s] [-requests n] [-hold seconds] [-timing <FILE | ->] [-metrics <FILE>]
+ *         <HOST> [PATH]
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.ssl.NioHttpsClient -connections 10000 -hold 30 blogs.oracle.com /
+ * 
+ * @author rathm
+ * 
+ */
+
+package rathm.tests.ssl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+
+public class NioHttpsClient
+{
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	
+	// Free buffers kept per selector thread
+	private static final int MAX_POOLED_BUFFERS = 256;
+	
+	// Errors written to console, the others are only counted
+	private static final int MAX_ERRORS_SHOWN = 10;
+	
+	private final String host;
+	private final String url;
+	private final InetSocketAddress address;
+	private final SSLContext context;
+	private final byte[] request;
+	private final int requestsPerConnection;
+	private final boolean hold;
+	private final int bufferSize;
+	
+	final AtomicInteger connected = new AtomicInteger();
+	final AtomicInteger open = new AtomicInteger();
+	final AtomicInteger handshakes = new AtomicInteger();
+	final AtomicInteger responses = new AtomicInteger();
+	final AtomicInteger notOk = new AtomicInteger();
+	final AtomicInteger completed = new AtomicInteger();
+	final AtomicInteger errors = new AtomicInteger();
+	
+	NioHttpsClient(String host, int port, String path, int requestsPerConnection, boolean hold, SSLContext context)
+	{
+		this.host = host;
+		this.url = "https://" + (port == 443 ? host : host + ":" + port) + path;
+		this.address = new InetSocketAddress(host, port);
+		this.context = context;
+		this.requestsPerConnection = requestsPerConnection;
+		this.hold = hold;
+		this.request = ("GET " + path + " HTTP/1.1\r\nHost: " + (port == 443 ? host : host + ":" + port) + "\r\n\r\n")
+				.getBytes(StandardCharsets.US_ASCII);
+		SSLSession session = context.createSSLEngine().getSession();
+		this.bufferSize = Math.max(session.getPacketBufferSize(), session.getApplicationBufferSize());
+	}
+	
+	/**
+	 * A selector with the connections it drives.
+	 */
+	class SelectorThread extends Thread
+	{
+		final Selector selector;
+		final BufferPool pool = new BufferPool(bufferSize, MAX_POOLED_BUFFERS);
+		private final ConcurrentLinkedQueue<Connection> added = new ConcurrentLinkedQueue<>();
+		private volatile boolean closing;
+		
+		SelectorThread(int index) throws IOException
+		{
+			super("NioHttpsClient-selector-" + index);
+			selector = Selector.open();
+		}
+		
+		void add(Connection connection)
+		{
+			added.add(connection);
+			selector.wakeup();
+		}
+		
+		/**
+		 * Close all connections and stop.
+		 */
+		void shutdown()
+		{
+			closing = true;
+			selector.wakeup();
+		}
+		
+		@Override
+		public void run()
+		{
+			try
+			{
+				while (!closing)
+				{
+					selector.select(1000);
+					Connection connection;
+					while ((connection = added.poll()) != null)
+						connection.start();
+					
+					for (Iterator<SelectionKey> keys = selector.selectedKeys().iterator(); keys.hasNext();)
+					{
+						SelectionKey key = keys.next();
+						keys.remove();
+						connection = (Connection) key.attachment();
+						try
+						{
+							if (!key.isValid())
+								continue;
+							if (key.isConnectable())
+								connection.onConnectable();
+							else
+							{
+								if (key.isWritable())
+									connection.onWritable();
+								if (key.isValid() && key.isReadable())
+									connection.drive();
+							}
+						}
+						catch (IOException | RuntimeException e)
+						{
+							connection.fail(e);
+						}
+					}
+				}
+				
+				for (SelectionKey key : selector.keys())
+					((Connection) key.attachment()).close(true);
+				selector.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * State of one connection, only used by its selector thread.
+	 */
+	class Connection
+	{
+		private final SelectorThread thread;
+		private final SSLEngine engine;
+		private SocketChannel channel;
+		private SelectionKey key;
+		
+		// Network data received but not unwrapped yet, and wrapped but not sent yet; null when empty
+		private ByteBuffer netIn;
+		private ByteBuffer netOut;
+		// Request not wrapped yet
+		private ByteBuffer outgoing;
+		private boolean underflow;
+		private boolean handshaken;
+		private boolean closed;
+		
+		private int requestsSent;
+		private final HttpResponseParser parser = new HttpResponseParser();
+		
+		// Record of the current request when the requests are timed, else null (also between two requests)
+		private RequestTiming timing;
+		private long started;
+		private long sent;
+		private long firstByte;
+		
+		Connection(SelectorThread thread)
+		{
+			this.thread = thread;
+			engine = context.createSSLEngine(host, address.getPort());
+			engine.setUseClientMode(true);
+			SSLParameters parameters = engine.getSSLParameters();
+			parameters.setEndpointIdentificationAlgorithm("HTTPS");
+			engine.setSSLParameters(parameters);
+		}
+		
+		void start()
+		{
+			if (TimingRecorder.isEnabled())
+				timing = new RequestTiming(url);
+			started = System.nanoTime();
+			try
+			{
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				if (channel.connect(address))
+				{
+					key = channel.register(thread.selector, SelectionKey.OP_READ, this);
+					connected();
+				}
+				else
+					key = channel.register(thread.selector, SelectionKey.OP_CONNECT, this);
+			}
+			catch (IOException | RuntimeException e)
+			{
+				fail(e);
+			}
+		}
+		
+		void onConnectable() throws IOException
+		{
+			channel.finishConnect();
+			key.interestOps(SelectionKey.OP_READ);
+			connected();
+		}
+		
+		private void connected() throws IOException
+		{
+			long now = System.nanoTime();
+			if (timing != null)
+				timing.connectNanos = now - started;
+			started = now;
+			connected.incrementAndGet();
+			open.incrementAndGet();
+			engine.beginHandshake();
+			drive();
+		}
+		
+		void onWritable() throws IOException
+		{
+			if (!flush() || (outgoing != null && !wrap(outgoing)))
+				return;
+			drive();
+		}
+		
+		/**
+		 * Make as much progress as possible with the data available: handshake, send the request, receive
+		 * responses.
+		 */
+		void drive() throws IOException
+		{
+			while (!closed)
+			{
+				switch (engine.getHandshakeStatus())
+				{
+					case NEED_TASK:
+						Runnable task;
+						while ((task = engine.getDelegatedTask()) != null)
+							task.run();
+						break;
+					case NEED_WRAP:
+						if (!wrap(EMPTY))
+							return;
+						break;
+					case NEED_UNWRAP:
+					case NEED_UNWRAP_AGAIN:
+						if (!unwrap())
+							return;
+						break;
+					default:
+						if (!handshaken)
+						{
+							handshaken = true;
+							handshakes.incrementAndGet();
+							if (timing != null)
+								timing.handshake(System.nanoTime() - started, engine.getSession());
+							sendRequest();
+						}
+						else if (!unwrap())
+							return;
+				}
+			}
+		}
+		
+		private void sendRequest() throws IOException
+		{
+			requestsSent++;
+			if (TimingRecorder.isEnabled() && timing == null)
+				timing = new RequestTiming(url);
+			sent = System.nanoTime();
+			firstByte = 0;
+			outgoing = ByteBuffer.wrap(request);
+			wrap(outgoing);
+		}
+		
+		/**
+		 * Wrap data and send it.
+		 * 
+		 * @return false if the data could not all be sent yet (OP_WRITE is then set) or the engine is closed
+		 */
+		private boolean wrap(ByteBuffer source) throws IOException
+		{
+			do
+			{
+				if (netOut == null)
+					netOut = thread.pool.acquire();
+				SSLEngineResult result = engine.wrap(source, netOut);
+				if (!flush())
+					return false;
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+					return false;
+			}
+			while (source.hasRemaining());
+			if (source == outgoing)
+				outgoing = null;
+			return true;
+		}
+		
+		/**
+		 * Write the wrapped data to the channel.
+		 * 
+		 * @return true if all was written
+		 */
+		private boolean flush() throws IOException
+		{
+			if (netOut == null)
+				return true;
+			netOut.flip();
+			channel.write(netOut);
+			netOut.compact();
+			if (netOut.position() > 0)
+			{
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return false;
+			}
+			thread.pool.release(netOut);
+			netOut = null;
+			if ((key.interestOps() & SelectionKey.OP_WRITE) != 0)
+				key.interestOps(SelectionKey.OP_READ);
+			return true;
+		}
+		
+		/**
+		 * Unwrap the data received, reading from the channel when there is not a whole TLS record.
+		 * 
+		 * @return false if no progress can be made until more data is received, or the connection is closed
+		 */
+		private boolean unwrap() throws IOException
+		{
+			if (netIn == null)
+				netIn = thread.pool.acquire();
+			if (netIn.position() == 0 || underflow)
+			{
+				int n = channel.read(netIn);
+				if (n < 0)
+				{
+					endOfStream();
+					return false;
+				}
+				if (n == 0)
+				{
+					if (netIn.position() == 0)
+					{
+						thread.pool.release(netIn);
+						netIn = null;
+					}
+					return false;
+				}
+			}
+			
+			ByteBuffer appIn = thread.pool.acquire();
+			netIn.flip();
+			SSLEngineResult result = engine.unwrap(netIn, appIn);
+			netIn.compact();
+			if (netIn.position() == 0)
+			{
+				thread.pool.release(netIn);
+				netIn = null;
+			}
+			underflow = result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW;
+			
+			appIn.flip();
+			try
+			{
+				if (appIn.hasRemaining())
+					onData(appIn);
+			}
+			finally
+			{
+				thread.pool.release(appIn);
+			}
+			
+			switch (result.getStatus())
+			{
+				case CLOSED:
+					endOfStream();
+					return false;
+				case BUFFER_OVERFLOW:
+					throw new IOException("Application buffer too small: " + appIn.capacity());
+				default:
+					return !closed;
+			}
+		}
+		
+		/**
+		 * Frame the responses in the decrypted data and skip their body.
+		 */
+		private void onData(ByteBuffer data) throws IOException
+		{
+			if (timing != null && firstByte == 0)
+			{
+				firstByte = System.nanoTime();
+				timing.ttfbNanos = firstByte - sent;
+			}
+			while (data.hasRemaining() && !closed)
+			{
+				if (requestsSent == 0 || parser.isComplete())
+					throw new IOException("Unexpected data after the response");
+				if (parser.parse(data, null))
+					onResponse();
+			}
+		}
+		
+		private void onResponse() throws IOException
+		{
+			responses.incrementAndGet();
+			int status = parser.getStatus();
+			if (timing != null)
+			{
+				timing.bodyNanos = System.nanoTime() - firstByte;
+				timing.bodyBytes = parser.getBodyLength();
+				timing.status = status;
+				TimingRecorder.record(timing);
+				timing = null;
+			}
+			if (status < 200 || status >= 300)
+				notOk.incrementAndGet();
+			
+			if (requestsSent < requestsPerConnection && parser.isKeepAlive())
+			{
+				parser.reset();
+				sendRequest();
+			}
+			else
+			{
+				completed.incrementAndGet();
+				if (!hold || !parser.isKeepAlive())
+					close(true);
+			}
+		}
+		
+		private void endOfStream() throws IOException
+		{
+			if (!parser.isComplete() && parser.finish())
+				onResponse();
+			if (!closed && requestsSent < requestsPerConnection)
+				throw new EOFException("Connection closed by server");
+			close(false);
+		}
+		
+		/**
+		 * Close the connection.
+		 * 
+		 * @param notify
+		 *            Whether to send a TLS close_notify alert first
+		 */
+		void close(boolean notify)
+		{
+			if (closed || channel == null)
+				return;
+			closed = true;
+			try
+			{
+				if (notify && channel.isConnected())
+				{
+					engine.closeOutbound();
+					wrap(EMPTY);
+				}
+			}
+			catch (IOException | RuntimeException e)
+			{
+				// Closing anyway
+			}
+			try
+			{
+				if (channel.isConnected())
+					open.decrementAndGet();
+				channel.close();
+			}
+			catch (IOException e)
+			{
+				// Closed anyway
+			}
+			if (netIn != null)
+				thread.pool.release(netIn);
+			if (netOut != null)
+				thread.pool.release(netOut);
+			netIn = netOut = null;
+		}
+		
+		void fail(Exception e)
+		{
+			if (timing != null)
+			{
+				timing.error = e.toString();
+				TimingRecorder.record(timing);
+				timing = null;
+			}
+			if (errors.incrementAndGet() <= MAX_ERRORS_SHOWN)
+				System.err.println("[ERROR] " + e);
+			close(false);
+		}
+	}
+	
+	private void printProgress(long start)
+	{
+		System.out.format("%7.1f s  connected %6d, open %6d, handshakes %6d, responses %7d (not 2xx %d), errors %d%n",
+				(System.nanoTime() - start) / 1e9, connected.get(), open.get(), handshakes.get(), responses.get(),
+				notOk.get(), errors.get());
+	}
+	
+	/**
+	 * Open the connections, wait until they are done (and held), then close them.
+	 */
+	void run(int connections, int selectors, int rate, int holdSeconds) throws IOException, InterruptedException
+	{
+		List<SelectorThread> threads = new ArrayList<>();
+		for (int i = 0; i < selectors; i++)
+		{
+			SelectorThread thread = new SelectorThread(i);
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+		
+		long start = System.nanoTime();
+		long lastProgress = start;
+		for (int i = 0; i < connections; i++)
+		{
+			// Spread the connects so the server's listen backlog does not overflow
+			long due = start + (long) (i * 1e9 / rate);
+			long now;
+			while ((now = System.nanoTime()) < due)
+				Thread.sleep(Math.max(1, (due - now) / 1_000_000));
+			if (now - lastProgress >= 1_000_000_000L)
+			{
+				printProgress(start);
+				lastProgress = now;
+			}
+			SelectorThread thread = threads.get(i % selectors);
+			thread.add(new Connection(thread));
+		}
+		
+		while (completed.get() + errors.get() < connections)
+		{
+			Thread.sleep(100);
+			if (System.nanoTime() - lastProgress >= 1_000_000_000L)
+			{
+				printProgress(start);
+				lastProgress = System.nanoTime();
+			}
+		}
+		printProgress(start);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		
+		if (holdSeconds > 0)
+		{
+			System.gc();
+			Runtime runtime = Runtime.getRuntime();
+			long used = runtime.totalMemory() - runtime.freeMemory();
+			int allocated = 0;
+			for (SelectorThread thread : threads)
+				allocated += thread.pool.getAllocated();
+			System.out.format("Holding %d open connections for %d s, heap used %.1f MB (%.1f KB per connection), "
+					+ "%d direct buffers of %d bytes allocated%n", open.get(), holdSeconds, used / 1048576.0,
+					used / 1024.0 / Math.max(1, open.get()), allocated, bufferSize);
+			Thread.sleep(holdSeconds * 1000L);
+		}
+		
+		for (SelectorThread thread : threads)
+			thread.shutdown();
+		for (SelectorThread thread : threads)
+			thread.join();
+		
+		System.out.format("%d connections, %d handshakes, %d responses, %d errors in %.3f s: %.1f handshakes/s, "
+				+ "%.1f responses/s%n", connections, handshakes.get(), responses.get(), errors.get(), seconds,
+				handshakes.get() / seconds, responses.get() / seconds);
+	}
+	
+	/**
+	 * @param args
+	 *            [-port p] [-connections n] [-selectors n] [-rate connects/s] [-requests n] [-hold seconds]
+	 *            [-timing file] [-metrics file] host [path]
+	 */
+	public static void main(String[] args)
+	{
+		args = TimingRecorder.removeOptions(args);
+		int port = 443;
+		int connections = 100;
+		int selectors = Runtime.getRuntime().availableProcessors();
+		int rate = 1000;
+		int requests = 1;
+		int holdSeconds = 0;
+		String host = null;
+		String path = "/";
+		try
+		{
+			for (int i = 0; i < args.length; i++)
+			{
+				if (args[i].equals("-port"))
+					port = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-connections"))
+					connections = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-selectors"))
+					selectors = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-rate"))
+					rate = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-requests"))
+					requests = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-hold"))
+					holdSeconds = Integer.parseInt(args[++i]);
+				else if (host == null)
+					host = args[i];
+				else
+					path = args[i];
+			}
+		}
+		catch (NumberFormatException | ArrayIndexOutOfBoundsException e)
+		{
+			host = null;
+		}
+		if (host == null || requests < 1 || rate < 1 || selectors < 1)
+		{
+			System.err.println("[ERROR] Usage: NioHttpsClient [-port p] [-connections n] [-selectors n] "
+					+ "[-rate connects/s] [-requests n] [-hold seconds] [-timing <FILE | ->] [-metrics <FILE>] "
+					+ "<HOST> [PATH]");
+			System.exit(1);
+		}
+		
+		try
+		{
+			NioHttpsClient client = new NioHttpsClient(host, port, path, requests, holdSeconds > 0,
+					SSLContext.getDefault());
+			client.run(connections, selectors, rate, holdSeconds);
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
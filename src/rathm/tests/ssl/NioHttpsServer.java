@@ -0,0 +1,944 @@
+/*
+ * Embedded non-blocking HTTPS test server
+ * =======================================
+ * HTTPS server for offline load tests and benchmarks of the clients of this package, fast enough not to be the
+ * bottleneck on loopback: the connections are non-blocking SocketChannels driven by an SSLEngine (as in
+ * NioHttpsClient), multiplexed on a small pool of selector threads (one per core by default), an accept thread
+ * handing the new connections out in turn. The bodies are slices of a shared read-only buffer, wrapped by the
+ * SSLEngine without being copied, and several TLS records are written per system call.
+ * 
+ * The server key-pair and self-signed certificate for localhost are generated at startup (see
+ * LoopbackCertificates); clientContext() returns an SSLContext which trusts it, and other programs can trust it with:
+ *     -Djavax.net.ssl.trustStore=<keystore> -Djavax.net.ssl.trustStorePassword=changeit
+ * 
+ * Requests (GET only, HTTP/1.1 keep-alive and pipelining, "Connection: close" honoured):
+ *     /<n>                 body of n bytes with Content-Length; a single "Range: bytes=first-last" (or first-,
+ *                          or -suffix) is served with 206 Partial Content, or 416 Range Not Satisfiable
+ *     /chunked/<n>         body of n bytes with chunked encoding, in chunks of chunk=<bytes> (default 16384)
+ *     /drip/<n>            body of n bytes with Content-Length, sent piece=<bytes> (default 1) at a time every
+ *                          interval=<ms> (default 100), for slow-server tests
+ *     /...                 any other path responds with a short text body
+ * delay=<ms> delays the start of the response (default -delay), e.g. /1024?delay=50 to simulate a 50 ms
+ * back-end. The body bytes are the same for the same offset, whatever the path and range.
+ * 
+ * Writes every second, when it changed: the connections open, the requests and the body throughput.
+ * 
+ * Usage examples
+ * --------------
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.ssl.NioHttpsServer [-port p] [-selectors n] [-delay ms]
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.ssl.NioHttpsServer -port 8443 -delay 20
+ * 
+ * @author rathm
+ * 
+ */
+
+package rathm.tests.ssl;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLSession;
+
+public class NioHttpsServer implements AutoCloseable
+{
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	private static final ByteBuffer CRLF = ByteBuffer.wrap("\r\n".getBytes(StandardCharsets.US_ASCII))
+			.asReadOnlyBuffer();
+	private static final ByteBuffer LAST_CHUNK = ByteBuffer.wrap("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII))
+			.asReadOnlyBuffer();
+	
+	// Bodies are slices of this pattern, not a multiple of 26 long so misplaced ranges show. A heap buffer: the
+	// ciphers work on arrays, a direct source would be copied first.
+	private static final ByteBuffer PATTERN;
+	static
+	{
+		ByteBuffer pattern = ByteBuffer.allocate(64 * 1024);
+		for (int i = 0; i < pattern.capacity(); i++)
+			pattern.put((byte) ('a' + i % 26));
+		PATTERN = pattern.flip().asReadOnlyBuffer();
+	}
+	
+	// Free buffers kept per selector thread
+	private static final int MAX_POOLED_BUFFERS = 256;
+	// TLS records wrapped before writing to the channel
+	private static final int RECORDS_PER_WRITE = 4;
+	private static final int MAX_REQUEST_SIZE = 16 * 1024;
+	private static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+	
+	// Errors written to console, the others are only counted
+	private static final int MAX_ERRORS_SHOWN = 10;
+	
+	private final Path directory;
+	private final Path keyStoreFile;
+	private final KeyStore keyStore;
+	private final SSLContext context;
+	private final ServerSocketChannel serverChannel;
+	private final SelectorThread[] selectors;
+	private final Thread acceptThread;
+	private final long defaultDelayMillis;
+	private final int packetSize;
+	private final int bufferSize;
+	
+	final AtomicInteger open = new AtomicInteger();
+	final LongAdder requests = new LongAdder();
+	final LongAdder bodyBytes = new LongAdder();
+	final LongAdder errors = new LongAdder();
+	
+	/**
+	 * Generate the server certificate and start accepting connections.
+	 * 
+	 * @param port
+	 *            Port to listen on (loopback only), 0 for any free port
+	 * @param selectorCount
+	 *            Number of selector threads
+	 * @param delayMillis
+	 *            Delay before each response, unless the request has a delay parameter
+	 */
+	public NioHttpsServer(int port, int selectorCount, long delayMillis) throws IOException, GeneralSecurityException
+	{
+		defaultDelayMillis = delayMillis;
+		serverChannel = ServerSocketChannel.open();
+		// What is created before a failure (e.g. the port is in use) is closed or deleted
+		Path temp = null;
+		SelectorThread[] threads = new SelectorThread[selectorCount];
+		try
+		{
+			serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+			temp = Files.createTempDirectory("nio-https");
+			keyStoreFile = temp.resolve("server.p12");
+			LoopbackCertificates.generateKeyStore(keyStoreFile, "localhost", "-keyalg", "EC", "-groupname",
+					"secp256r1");
+			keyStore = LoopbackCertificates.loadKeyStore(keyStoreFile);
+			context = LoopbackCertificates.serverContext(keyStore);
+			SSLSession session = context.createSSLEngine().getSession();
+			packetSize = session.getPacketBufferSize();
+			bufferSize = Math.max(packetSize, session.getApplicationBufferSize());
+			
+			for (int i = 0; i < threads.length; i++)
+			{
+				threads[i] = new SelectorThread(i);
+				threads[i].setDaemon(true);
+				threads[i].start();
+			}
+		}
+		catch (IOException | GeneralSecurityException | RuntimeException e)
+		{
+			serverChannel.close();
+			for (SelectorThread thread : threads)
+			{
+				if (thread != null)
+					thread.shutdown();
+			}
+			if (temp != null)
+				LoopbackCertificates.deleteDirectory(temp);
+			throw e;
+		}
+		directory = temp;
+		selectors = threads;
+		acceptThread = new Thread(this::acceptLoop, "NioHttpsServer-accept");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+	
+	/**
+	 * Server with a selector thread per core and no delay.
+	 */
+	public NioHttpsServer(int port) throws IOException, GeneralSecurityException
+	{
+		this(port, Runtime.getRuntime().availableProcessors(), 0);
+	}
+	
+	public int getPort()
+	{
+		return serverChannel.socket().getLocalPort();
+	}
+	
+	/**
+	 * @return The PKCS12 keystore holding the server key and certificate, password STORE_PASSWORD of
+	 *         LoopbackCertificates
+	 */
+	public Path getKeyStoreFile()
+	{
+		return keyStoreFile;
+	}
+	
+	/**
+	 * @return A client SSLContext which trusts the server certificate
+	 */
+	public SSLContext clientContext() throws GeneralSecurityException
+	{
+		return LoopbackCertificates.clientContext(keyStore);
+	}
+	
+	private void acceptLoop()
+	{
+		int next = 0;
+		while (serverChannel.isOpen())
+		{
+			try
+			{
+				SocketChannel channel = serverChannel.accept();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				SelectorThread thread = selectors[next++ % selectors.length];
+				thread.add(new Connection(thread, channel));
+			}
+			catch (IOException e)
+			{
+				if (serverChannel.isOpen())
+					e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * A selector with the connections it drives, and their timers (delays and slow drip).
+	 */
+	class SelectorThread extends Thread
+	{
+		final Selector selector;
+		final BufferPool pool = new BufferPool(bufferSize, MAX_POOLED_BUFFERS);
+		// Output buffers, large enough for several TLS records
+		final BufferPool outPool = new BufferPool(packetSize * RECORDS_PER_WRITE, MAX_POOLED_BUFFERS);
+		private final ConcurrentLinkedQueue<Connection> added = new ConcurrentLinkedQueue<>();
+		private final PriorityQueue<Connection> timers = new PriorityQueue<>(
+				(a, b) -> Long.signum(a.wakeAt - b.wakeAt));
+		private volatile boolean closing;
+		
+		SelectorThread(int index) throws IOException
+		{
+			super("NioHttpsServer-selector-" + index);
+			selector = Selector.open();
+		}
+		
+		void add(Connection connection)
+		{
+			added.add(connection);
+			selector.wakeup();
+		}
+		
+		/**
+		 * Drive the connection again at its wakeAt time.
+		 */
+		void schedule(Connection connection)
+		{
+			timers.add(connection);
+		}
+		
+		void shutdown()
+		{
+			closing = true;
+			selector.wakeup();
+		}
+		
+		@Override
+		public void run()
+		{
+			try
+			{
+				while (!closing)
+				{
+					Connection connection = timers.peek();
+					long timeout = connection == null ? 0
+							: Math.max(1, (connection.wakeAt - System.nanoTime() + 999_999) / 1_000_000);
+					selector.select(timeout);
+					while ((connection = added.poll()) != null)
+						connection.start();
+					
+					for (Iterator<SelectionKey> keys = selector.selectedKeys().iterator(); keys.hasNext();)
+					{
+						SelectionKey key = keys.next();
+						keys.remove();
+						connection = (Connection) key.attachment();
+						try
+						{
+							if (key.isValid())
+								connection.drive();
+						}
+						catch (IOException | RuntimeException e)
+						{
+							connection.fail(e);
+						}
+					}
+					
+					long now = System.nanoTime();
+					while ((connection = timers.peek()) != null && connection.wakeAt - now <= 0)
+					{
+						timers.poll();
+						try
+						{
+							connection.drive();
+						}
+						catch (IOException | RuntimeException e)
+						{
+							connection.fail(e);
+						}
+					}
+				}
+				
+				for (SelectionKey key : selector.keys())
+					((Connection) key.attachment()).close(false);
+				selector.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * State of one connection, only used by its selector thread.
+	 */
+	class Connection
+	{
+		private final SelectorThread thread;
+		private final SocketChannel channel;
+		private final SSLEngine engine;
+		private SelectionKey key;
+		
+		// Network data received but not unwrapped yet, and wrapped but not sent yet; null when empty
+		private ByteBuffer netIn;
+		private ByteBuffer netOut;
+		private boolean underflow;
+		private boolean closed;
+		
+		// Requests received and not answered yet (pipelining). The complete requests are taken before unwrapping
+		// more, so it holds at most a partial request of MAX_REQUEST_SIZE bytes and a TLS record.
+		private final ByteBuffer received = ByteBuffer.allocate(MAX_REQUEST_SIZE + bufferSize);
+		
+		// Response being sent
+		private boolean responding;
+		private boolean closeAfter;
+		// Data to wrap next, null if none
+		private ByteBuffer[] segments;
+		private ByteBuffer head;
+		private boolean chunked;
+		private boolean lastChunkSent;
+		private long bodyOffset;
+		private long bodyRemaining;
+		private int chunkSize;
+		// Slow drip: bytes per piece and nanoseconds between pieces, 0 if not dripping
+		private int piece;
+		private long intervalNanos;
+		// Time (System.nanoTime) before which nothing more is sent, 0 if none
+		long wakeAt;
+		
+		Connection(SelectorThread thread, SocketChannel channel)
+		{
+			this.thread = thread;
+			this.channel = channel;
+			engine = context.createSSLEngine();
+			engine.setUseClientMode(false);
+		}
+		
+		void start()
+		{
+			try
+			{
+				key = channel.register(thread.selector, SelectionKey.OP_READ, this);
+				open.incrementAndGet();
+				engine.beginHandshake();
+				drive();
+			}
+			catch (IOException | RuntimeException e)
+			{
+				fail(e);
+			}
+		}
+		
+		/**
+		 * Make as much progress as possible: handshake, read requests, send responses.
+		 */
+		void drive() throws IOException
+		{
+			if (!flush())
+				return;
+			while (!closed)
+			{
+				switch (engine.getHandshakeStatus())
+				{
+					case NEED_TASK:
+						Runnable task;
+						while ((task = engine.getDelegatedTask()) != null)
+							task.run();
+						break;
+					case NEED_WRAP:
+						if (!wrap(new ByteBuffer[] { EMPTY }) || !flush())
+							return;
+						break;
+					case NEED_UNWRAP:
+					case NEED_UNWRAP_AGAIN:
+						if (!unwrap())
+							return;
+						break;
+					default:
+						if (responding)
+						{
+							if (!pump())
+								return;
+						}
+						else if (!nextRequest() && !unwrap())
+							return;
+				}
+			}
+		}
+		
+		/**
+		 * Start the response to the next request received, if it is complete.
+		 * 
+		 * @return false if no complete request was received
+		 */
+		private boolean nextRequest() throws IOException
+		{
+			byte[] bytes = received.array();
+			int end = -1;
+			int limit = Math.min(received.position(), MAX_REQUEST_SIZE);
+			for (int i = 3; i < limit; i++)
+			{
+				if (bytes[i] == '\n' && bytes[i - 1] == '\r' && bytes[i - 2] == '\n' && bytes[i - 3] == '\r')
+				{
+					end = i + 1;
+					break;
+				}
+			}
+			if (end < 0)
+			{
+				if (limit == MAX_REQUEST_SIZE)
+					throw new IOException("Request header larger than " + MAX_REQUEST_SIZE + " bytes");
+				return false;
+			}
+			String header = new String(bytes, 0, end, StandardCharsets.ISO_8859_1);
+			received.flip().position(end);
+			received.compact();
+			
+			String lower = header.toLowerCase(Locale.ROOT);
+			String[] requestLine = header.substring(0, header.indexOf('\r')).split(" ");
+			closeAfter = lower.contains("\r\nconnection: close") || (requestLine.length > 2
+					&& requestLine[2].equals("HTTP/1.0") && !lower.contains("\r\nconnection: keep-alive"));
+			startResponse(requestLine, lower);
+			return true;
+		}
+		
+		/**
+		 * @param lower
+		 *            Request header in lower case
+		 */
+		private void startResponse(String[] requestLine, String lower)
+		{
+			requests.increment();
+			responding = true;
+			chunked = false;
+			lastChunkSent = false;
+			bodyOffset = 0;
+			bodyRemaining = 0;
+			piece = 0;
+			String status = "200 OK";
+			String text = null;
+			// Header lines added after Content-Length
+			String extra = "";
+			long delay = defaultDelayMillis;
+			try
+			{
+				if (requestLine.length < 3 || !requestLine[0].equals("GET"))
+				{
+					status = requestLine.length < 3 ? "400 Bad Request" : "405 Method Not Allowed";
+					text = status + "\n";
+					closeAfter = true;
+				}
+				else
+				{
+					String path = requestLine[1];
+					String query = "";
+					int q = path.indexOf('?');
+					if (q >= 0)
+					{
+						query = path.substring(q + 1);
+						path = path.substring(0, q);
+					}
+					delay = parameter(query, "delay", delay);
+					if (path.startsWith("/chunked/"))
+					{
+						chunked = true;
+						bodyRemaining = Long.parseLong(path.substring("/chunked/".length()));
+						chunkSize = (int) Math.max(1, parameter(query, "chunk", DEFAULT_CHUNK_SIZE));
+					}
+					else if (path.startsWith("/drip/"))
+					{
+						bodyRemaining = Long.parseLong(path.substring("/drip/".length()));
+						piece = (int) Math.max(1, parameter(query, "piece", 1));
+						intervalNanos = parameter(query, "interval", 100) * 1_000_000;
+					}
+					else
+					{
+						long length = -1;
+						try
+						{
+							length = Long.parseLong(path.substring(1));
+						}
+						catch (NumberFormatException e)
+						{
+							text = "Hello from NioHttpsServer\n";
+						}
+						if (length >= 0)
+						{
+							bodyRemaining = length;
+							extra = "\r\nAccept-Ranges: bytes";
+							long[] range = range(lower, length);
+							if (range != null && range[0] > range[1])
+							{
+								status = "416 Range Not Satisfiable";
+								extra += "\r\nContent-Range: bytes */" + length;
+								bodyRemaining = 0;
+							}
+							else if (range != null)
+							{
+								status = "206 Partial Content";
+								extra += "\r\nContent-Range: bytes " + range[0] + "-" + range[1] + "/" + length;
+								bodyOffset = range[0];
+								bodyRemaining = range[1] + 1 - range[0];
+							}
+						}
+					}
+				}
+			}
+			catch (NumberFormatException e)
+			{
+				status = "400 Bad Request";
+				text = status + "\n";
+				extra = "";
+				bodyRemaining = 0;
+				chunked = false;
+				piece = 0;
+			}
+			
+			StringBuilder response = new StringBuilder(160).append("HTTP/1.1 ").append(status).append("\r\n");
+			response.append("Content-Type: ").append(text == null ? "application/octet-stream" : "text/plain");
+			if (chunked)
+				response.append("\r\nTransfer-Encoding: chunked");
+			else
+				response.append("\r\nContent-Length: ").append(text == null ? bodyRemaining : text.length());
+			response.append(extra);
+			response.append(closeAfter ? "\r\nConnection: close\r\n\r\n" : "\r\n\r\n");
+			if (text != null)
+				response.append(text);
+			head = ByteBuffer.wrap(response.toString().getBytes(StandardCharsets.ISO_8859_1));
+			segments = null;
+			wakeAt = delay > 0 ? System.nanoTime() + delay * 1_000_000 : 0;
+		}
+		
+		/**
+		 * Parse the single range of a "Range: bytes=first-last" (or first-, or -suffix) request header.
+		 * 
+		 * @param length
+		 *            Length of the body
+		 * @return The first and last bytes of the range within the body, first > last if it cannot be satisfied;
+		 *         null without a Range header
+		 */
+		private long[] range(String lower, long length)
+		{
+			int start = lower.indexOf("\r\nrange: bytes=");
+			if (start < 0)
+				return null;
+			start += "\r\nrange: bytes=".length();
+			String spec = lower.substring(start, lower.indexOf('\r', start)).trim();
+			int dash = spec.indexOf('-');
+			long first;
+			long last = length - 1;
+			try
+			{
+				if (dash == 0)
+					first = Math.max(0, length - Long.parseLong(spec.substring(1)));
+				else
+				{
+					first = Long.parseLong(spec.substring(0, dash));
+					if (dash < spec.length() - 1)
+						last = Math.min(last, Long.parseLong(spec.substring(dash + 1)));
+				}
+			}
+			catch (NumberFormatException | StringIndexOutOfBoundsException e)
+			{
+				return new long[] { 0, -1 };
+			}
+			return first >= length ? new long[] { 0, -1 } : new long[] { first, last };
+		}
+		
+		/**
+		 * @return The value of a numeric query parameter, or the default value
+		 */
+		private long parameter(String query, String name, long defaultValue)
+		{
+			for (String pair : query.split("&"))
+			{
+				if (pair.startsWith(name + "="))
+					return Long.parseLong(pair.substring(name.length() + 1));
+			}
+			return defaultValue;
+		}
+		
+		/**
+		 * Send the response as far as possible.
+		 * 
+		 * @return true if the response is sent, false if waiting for the channel or a timer
+		 */
+		private boolean pump() throws IOException
+		{
+			while (true)
+			{
+				if (segments != null)
+				{
+					if (!wrap(segments))
+						return false;
+					segments = null;
+				}
+				if (wakeAt != 0)
+				{
+					if (!flush())
+						return false;
+					if (wakeAt - System.nanoTime() > 0)
+					{
+						setInterest(0);
+						thread.schedule(this);
+						return false;
+					}
+					wakeAt = 0;
+				}
+				segments = nextSegments();
+				if (segments == null)
+				{
+					if (!flush())
+						return false;
+					responding = false;
+					head = null;
+					if (closeAfter)
+					{
+						close(true);
+						return false;
+					}
+					return true;
+				}
+			}
+		}
+		
+		/**
+		 * @return The next data of the response to wrap, null at the end of the response
+		 */
+		private ByteBuffer[] nextSegments()
+		{
+			List<ByteBuffer> next = new ArrayList<>(4);
+			if (head.hasRemaining())
+				next.add(head);
+			if (bodyRemaining > 0)
+			{
+				long n = bodyRemaining;
+				if (chunked)
+					n = Math.min(n, chunkSize);
+				else if (piece > 0)
+				{
+					n = Math.min(n, piece);
+					// The next piece waits for the interval
+					if (n < bodyRemaining)
+						wakeAt = System.nanoTime() + intervalNanos;
+				}
+				else
+					n = Math.min(n, PATTERN.capacity());
+				if (chunked)
+					next.add(ByteBuffer.wrap((Long.toHexString(n) + "\r\n").getBytes(StandardCharsets.US_ASCII)));
+				addBody(next, n);
+				if (chunked)
+					next.add(CRLF.duplicate());
+			}
+			else if (chunked && !lastChunkSent)
+			{
+				next.add(LAST_CHUNK.duplicate());
+				lastChunkSent = true;
+			}
+			return next.isEmpty() ? null : next.toArray(new ByteBuffer[0]);
+		}
+		
+		/**
+		 * Add the slices of the pattern for the next n bytes of the body.
+		 */
+		private void addBody(List<ByteBuffer> next, long n)
+		{
+			bodyBytes.add(n);
+			bodyRemaining -= n;
+			while (n > 0)
+			{
+				int offset = (int) (bodyOffset % PATTERN.capacity());
+				int length = (int) Math.min(n, PATTERN.capacity() - offset);
+				next.add(PATTERN.duplicate().position(offset).limit(offset + length));
+				bodyOffset += length;
+				n -= length;
+			}
+		}
+		
+		/**
+		 * Wrap all the data into the output buffer, writing it to the channel when it is full.
+		 * 
+		 * @return false if the channel cannot take more data yet (the data not wrapped is kept in the sources)
+		 */
+		private boolean wrap(ByteBuffer[] sources) throws IOException
+		{
+			while (true)
+			{
+				if (netOut == null)
+					netOut = thread.outPool.acquire();
+				if (netOut.remaining() < packetSize)
+				{
+					if (!flush())
+						return false;
+					continue;
+				}
+				SSLEngineResult result = engine.wrap(sources, netOut);
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+					throw new IOException("SSLEngine closed");
+				boolean remaining = false;
+				for (ByteBuffer source : sources)
+					remaining |= source.hasRemaining();
+				if (!remaining)
+					return true;
+			}
+		}
+		
+		/**
+		 * Write the wrapped data to the channel.
+		 * 
+		 * @return true if all was written
+		 */
+		private boolean flush() throws IOException
+		{
+			if (netOut == null)
+				return true;
+			netOut.flip();
+			channel.write(netOut);
+			netOut.compact();
+			if (netOut.position() > 0)
+			{
+				setInterest(SelectionKey.OP_WRITE);
+				return false;
+			}
+			thread.outPool.release(netOut);
+			netOut = null;
+			return true;
+		}
+		
+		private void setInterest(int ops)
+		{
+			if (key.interestOps() != ops)
+				key.interestOps(ops);
+		}
+		
+		/**
+		 * Unwrap the data received into the request buffer, reading from the channel when there is not a whole
+		 * TLS record.
+		 * 
+		 * @return false if no progress can be made until more data is received, or the connection is closed
+		 */
+		private boolean unwrap() throws IOException
+		{
+			if (netIn == null)
+				netIn = thread.pool.acquire();
+			if (netIn.position() == 0 || underflow)
+			{
+				int n = channel.read(netIn);
+				if (n < 0)
+				{
+					close(false);
+					return false;
+				}
+				if (n == 0)
+				{
+					if (netIn.position() == 0)
+					{
+						thread.pool.release(netIn);
+						netIn = null;
+					}
+					setInterest(SelectionKey.OP_READ);
+					return false;
+				}
+			}
+			
+			ByteBuffer appIn = thread.pool.acquire();
+			netIn.flip();
+			SSLEngineResult result = engine.unwrap(netIn, appIn);
+			netIn.compact();
+			if (netIn.position() == 0)
+			{
+				thread.pool.release(netIn);
+				netIn = null;
+			}
+			underflow = result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW;
+			
+			appIn.flip();
+			try
+			{
+				// Only when the client sends more during a new handshake than MAX_REQUEST_SIZE after the requests
+				// not answered yet
+				if (appIn.remaining() > received.remaining())
+					throw new IOException("Requests received faster than answered during a handshake");
+				received.put(appIn);
+			}
+			finally
+			{
+				thread.pool.release(appIn);
+			}
+			
+			switch (result.getStatus())
+			{
+				case CLOSED:
+					close(true);
+					return false;
+				case BUFFER_OVERFLOW:
+					throw new IOException("Application buffer too small: " + appIn.capacity());
+				default:
+					return !closed;
+			}
+		}
+		
+		void fail(Exception e)
+		{
+			errors.increment();
+			if (errors.sum() <= MAX_ERRORS_SHOWN)
+				System.err.println("[ERROR] " + e);
+			close(false);
+		}
+		
+		/**
+		 * Close the connection.
+		 * 
+		 * @param notify
+		 *            Whether to send a TLS close_notify alert first
+		 */
+		void close(boolean notify)
+		{
+			if (closed)
+				return;
+			closed = true;
+			try
+			{
+				if (notify && key != null)
+				{
+					engine.closeOutbound();
+					wrap(new ByteBuffer[] { EMPTY });
+					flush();
+				}
+			}
+			catch (IOException | RuntimeException e)
+			{
+				// Closing anyway
+			}
+			try
+			{
+				channel.close();
+			}
+			catch (IOException e)
+			{
+				// Closed anyway
+			}
+			if (netIn != null)
+				thread.pool.release(netIn);
+			if (netOut != null)
+				thread.outPool.release(netOut);
+			netIn = null;
+			netOut = null;
+			if (key != null)
+				open.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Stop accepting connections, close the connections and delete the keystore.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		serverChannel.close();
+		for (SelectorThread thread : selectors)
+			thread.shutdown();
+		LoopbackCertificates.deleteDirectory(directory);
+	}
+	
+	/**
+	 * @param args
+	 *            [-port p] [-selectors n] [-delay ms]
+	 */
+	public static void main(String[] args)
+	{
+		int port = 0;
+		int selectorCount = Runtime.getRuntime().availableProcessors();
+		long delay = 0;
+		try
+		{
+			for (int i = 0; i < args.length; i++)
+			{
+				if (args[i].equals("-port"))
+					port = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-selectors"))
+					selectorCount = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-delay"))
+					delay = Long.parseLong(args[++i]);
+				else
+					selectorCount = 0;
+			}
+		}
+		catch (NumberFormatException | ArrayIndexOutOfBoundsException e)
+		{
+			selectorCount = 0;
+		}
+		if (selectorCount < 1 || delay < 0)
+		{
+			System.err.println("[ERROR] Usage: NioHttpsServer [-port p] [-selectors n] [-delay ms]");
+			System.exit(1);
+		}
+		
+		try (NioHttpsServer server = new NioHttpsServer(port, selectorCount, delay))
+		{
+			System.out.println("Listening on https://localhost:" + server.getPort() + "/ with " + selectorCount
+					+ " selector threads");
+			System.out.println("Trust store: -Djavax.net.ssl.trustStore=" + server.getKeyStoreFile()
+					+ " -Djavax.net.ssl.trustStorePassword=" + LoopbackCertificates.STORE_PASSWORD);
+			long lastRequests = 0;
+			long lastBytes = 0;
+			while (true)
+			{
+				Thread.sleep(1000);
+				long requests = server.requests.sum();
+				long bytes = server.bodyBytes.sum();
+				if (requests != lastRequests)
+				{
+					System.out.format("%d open, %d requests/s, %.1f MB/s body, %d errors%n", server.open.get(),
+							requests - lastRequests, (bytes - lastBytes) / 1048576.0, server.errors.sum());
+				}
+				lastRequests = requests;
+				lastBytes = bytes;
+			}
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
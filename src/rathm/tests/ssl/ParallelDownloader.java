@@ -0,0 +1,468 @@
+/*
+ * Parallel ranged HTTPS download
+ * ==============================
+ * Download mode of TestHttps, for large resources where one connection is limited by its own throughput (TCP
+ * window, per-connection shaping by the server):
+ *     - a first GET with "Range: bytes=0-0" probes whether the server supports ranges and gives the length
+ *     - if it does, the resource is split in ranges of -rangesize MB which are fetched by -connections threads,
+ *       each with its own (keep-alive) connection; each range is written directly at its offset of the output
+ *       file, allocated to its full length first, with positional FileChannel.write (no reassembly in memory)
+ *     - if it does not, the body of the probe response is written as a single stream
+ * 
+ * The ranges done are recorded in a sidecar state file (<file>.download), written after the range data is
+ * forced to disk. When a download is interrupted or some ranges failed, running the same command again resumes
+ * it: only the missing ranges are fetched, provided the URL, length, range size and validator (ETag or
+ * Last-Modified) have not changed. The ranges are fetched with If-Range, so a resource changed meanwhile is
+ * detected instead of mixing two versions. The state file is deleted when the download is complete.
+ * 
+ * With the -timing and -metrics options of TestHttps, the probe and each attempt of a range are recorded (see
+ * TimingRecorder): the time to first byte is from the request to the response headers, including the connect and
+ * handshake of a new connection.
+ * 
+ * Usage examples
+ * --------------
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.ssl.TestHttps -download [-connections n]
+ *         [-rangesize MB] [-out file] <URL>
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.ssl.TestHttps -download -connections 8 -out jdk.tar.gz https://.../jdk.tar.gz
+ * 
+ * @author rathm
+ * 
+ */
+
+package rathm.tests.ssl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ParallelDownloader
+{
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// Attempts per range, each resuming where the previous one stopped
+	private static final int ATTEMPTS = 3;
+	
+	private final URL url;
+	private final Path file;
+	private final Path stateFile;
+	private final int connections;
+	private final long rangeSize;
+	
+	private long length;
+	// ETag (strong only) or Last-Modified of the resource, null if none
+	private String validator;
+	private int rangeCount;
+	// Ranges written and forced to disk
+	private final BitSet done = new BitSet();
+	private final LongAdder received = new LongAdder();
+	
+	ParallelDownloader(URL url, Path file, int connections, long rangeSize)
+	{
+		this.url = url;
+		this.file = file;
+		this.stateFile = Paths.get(file + ".download");
+		this.connections = connections;
+		this.rangeSize = rangeSize;
+	}
+	
+	/**
+	 * Probe the resource, then download it by ranges or as a single stream.
+	 * 
+	 * @return true if the file is complete
+	 */
+	boolean run() throws IOException, InterruptedException
+	{
+		RequestTiming timing = new RequestTiming(url.toString());
+		HttpURLConnection probe = (HttpURLConnection) url.openConnection();
+		probe.setRequestProperty("Range", "bytes=0-0");
+		long sent = System.nanoTime();
+		int code;
+		try
+		{
+			code = probe.getResponseCode();
+		}
+		catch (IOException e)
+		{
+			timing.error = e.toString();
+			TimingRecorder.record(timing);
+			throw e;
+		}
+		long headEnd = System.nanoTime();
+		timing.ttfbNanos = headEnd - sent;
+		timing.status = code;
+		String etag = probe.getHeaderField("ETag");
+		validator = etag != null && !etag.startsWith("W/") ? etag : probe.getHeaderField("Last-Modified");
+		
+		if (code == HttpURLConnection.HTTP_PARTIAL)
+		{
+			String contentRange = probe.getHeaderField("Content-Range");
+			int slash = contentRange == null ? -1 : contentRange.lastIndexOf('/');
+			if (slash < 0 || contentRange.endsWith("*"))
+				throw new IOException("No total length in Content-Range: " + contentRange);
+			length = Long.parseLong(contentRange.substring(slash + 1).trim());
+			try (InputStream in = probe.getInputStream())
+			{
+				timing.bodyBytes = in.transferTo(OutputStream.nullOutputStream());
+			}
+			timing.bodyNanos = System.nanoTime() - headEnd;
+			TimingRecorder.record(timing);
+			return downloadRanges();
+		}
+		if (code == HttpURLConnection.HTTP_OK)
+		{
+			System.out.println("Ranges not supported, downloading as a single stream");
+			try
+			{
+				return downloadSingle(probe, timing);
+			}
+			catch (IOException e)
+			{
+				timing.error = e.toString();
+				throw e;
+			}
+			finally
+			{
+				timing.bodyNanos = System.nanoTime() - headEnd;
+				TimingRecorder.record(timing);
+			}
+		}
+		TimingRecorder.record(timing);
+		probe.disconnect();
+		throw new IOException("HTTP " + code + " " + probe.getResponseMessage());
+	}
+	
+	private boolean downloadSingle(HttpURLConnection connection, RequestTiming timing) throws IOException
+	{
+		Files.deleteIfExists(stateFile);
+		long start = System.nanoTime();
+		long position;
+		try (InputStream in = connection.getInputStream();
+				FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			position = copy(in, channel, 0, Long.MAX_VALUE);
+		}
+		timing.bodyBytes = position;
+		long expected = connection.getContentLengthLong();
+		if (expected >= 0 && position != expected)
+			throw new EOFException("Received " + position + " of " + expected + " bytes");
+		printRate(position, System.nanoTime() - start);
+		return true;
+	}
+	
+	private boolean downloadRanges() throws IOException, InterruptedException
+	{
+		rangeCount = (int) ((length + rangeSize - 1) / rangeSize);
+		boolean resumed = loadState();
+		System.out.format("Ranges supported: %.1f MB in %d ranges of %.1f MB over %d connections%n", length / 1048576.0,
+				rangeCount, rangeSize / 1048576.0, connections);
+		if (resumed)
+			System.out.format("Resuming: %d of %d ranges already downloaded%n", done.cardinality(), rangeCount);
+		else
+			saveState();
+		
+		long start = System.nanoTime();
+		List<Future<?>> results = new ArrayList<>();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE))
+		{
+			if (!resumed)
+			{
+				// Allocate the file to its full length, so each range can be written at its offset
+				channel.truncate(0);
+				if (length > 0)
+					channel.write(ByteBuffer.allocate(1), length - 1);
+			}
+			
+			ExecutorService executor = Executors.newFixedThreadPool(connections);
+			for (int i = done.nextClearBit(0); i < rangeCount; i = done.nextClearBit(i + 1))
+			{
+				int range = i;
+				results.add(executor.submit(() ->
+				{
+					fetchRange(channel, range);
+					return null;
+				}));
+			}
+			executor.shutdown();
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS))
+			{
+				System.out.format("  %.1f MB received, %d of %d ranges done%n", received.sum() / 1048576.0,
+						cardinality(), rangeCount);
+			}
+		}
+		
+		int failed = 0;
+		for (Future<?> result : results)
+		{
+			try
+			{
+				result.get();
+			}
+			catch (ExecutionException e)
+			{
+				failed++;
+				System.err.println("[ERROR] " + e.getCause());
+			}
+		}
+		printRate(received.sum(), System.nanoTime() - start);
+		if (failed > 0)
+		{
+			System.err.println("[ERROR] " + failed + " ranges failed, run the same command again to resume from "
+					+ stateFile);
+			return false;
+		}
+		Files.delete(stateFile);
+		return true;
+	}
+	
+	/**
+	 * Fetch a range and write it at its offset, retrying from the last byte written.
+	 */
+	private void fetchRange(FileChannel channel, int range) throws IOException
+	{
+		long first = range * rangeSize;
+		long end = Math.min(length, first + rangeSize);
+		long position = first;
+		IOException failure = null;
+		for (int attempt = 0; attempt < ATTEMPTS; attempt++)
+		{
+			RequestTiming timing = new RequestTiming(url.toString());
+			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+			connection.setRequestProperty("Range", "bytes=" + position + "-" + (end - 1));
+			if (validator != null)
+				connection.setRequestProperty("If-Range", validator);
+			long sent = System.nanoTime();
+			int code;
+			try
+			{
+				code = connection.getResponseCode();
+			}
+			catch (IOException e)
+			{
+				timing.error = e.toString();
+				TimingRecorder.record(timing);
+				failure = e;
+				continue;
+			}
+			long headEnd = System.nanoTime();
+			timing.ttfbNanos = headEnd - sent;
+			timing.status = code;
+			if (code != HttpURLConnection.HTTP_PARTIAL)
+			{
+				// Not worth retrying: a 200 means the resource changed (If-Range), and its body is not read
+				TimingRecorder.record(timing);
+				connection.disconnect();
+				throw new IOException("Range " + range + ": HTTP " + code + " instead of 206, resource changed?");
+			}
+			String contentRange = connection.getHeaderField("Content-Range");
+			if (contentRange == null || !contentRange.startsWith("bytes " + position + "-"))
+			{
+				TimingRecorder.record(timing);
+				connection.disconnect();
+				throw new IOException("Range " + range + ": unexpected Content-Range " + contentRange);
+			}
+			
+			long from = position;
+			try (InputStream in = connection.getInputStream())
+			{
+				position = copy(in, channel, position, end);
+				timing.bodyBytes = position - from;
+				if (position < end)
+					throw new EOFException("Range " + range + ": " + (end - position) + " bytes missing");
+				markDone(channel, range);
+				return;
+			}
+			catch (IOException e)
+			{
+				timing.error = e.toString();
+				failure = e;
+			}
+			finally
+			{
+				timing.bodyNanos = System.nanoTime() - headEnd;
+				TimingRecorder.record(timing);
+			}
+		}
+		throw failure;
+	}
+	
+	/**
+	 * Copy a stream to the channel from a position, without changing the position of the channel.
+	 * 
+	 * @return The position after the last byte written
+	 */
+	private long copy(InputStream in, FileChannel channel, long position, long end) throws IOException
+	{
+		byte[] bytes = new byte[BUFFER_SIZE];
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		int n;
+		while (position < end && (n = in.read(bytes, 0, (int) Math.min(bytes.length, end - position))) >= 0)
+		{
+			buffer.clear().limit(n);
+			while (buffer.hasRemaining())
+				position += channel.write(buffer, position);
+			received.add(n);
+		}
+		return position;
+	}
+	
+	private synchronized void markDone(FileChannel channel, int range) throws IOException
+	{
+		// The state must not record data which could still be lost
+		channel.force(false);
+		done.set(range);
+		saveState();
+	}
+	
+	private synchronized int cardinality()
+	{
+		return done.cardinality();
+	}
+	
+	/**
+	 * @return true if the state file is for the same resource, and the output file is there
+	 */
+	private boolean loadState() throws IOException
+	{
+		if (!Files.exists(stateFile) || !Files.exists(file) || Files.size(file) != length)
+			return false;
+		Properties state = new Properties();
+		try (Reader reader = Files.newBufferedReader(stateFile, StandardCharsets.UTF_8))
+		{
+			state.load(reader);
+		}
+		if (!url.toString().equals(state.getProperty("url"))
+				|| !Long.toString(length).equals(state.getProperty("length"))
+				|| !Long.toString(rangeSize).equals(state.getProperty("rangeSize"))
+				|| !String.valueOf(validator).equals(state.getProperty("validator")))
+		{
+			System.out.println("State file " + stateFile + " is for another resource or version, starting again");
+			return false;
+		}
+		String ranges = state.getProperty("done", "");
+		for (int i = 0; i < ranges.length() && i < rangeCount; i++)
+			if (ranges.charAt(i) == '1')
+				done.set(i);
+		return true;
+	}
+	
+	/**
+	 * Write the state file, replacing the previous one atomically.
+	 */
+	private void saveState() throws IOException
+	{
+		Properties state = new Properties();
+		state.setProperty("url", url.toString());
+		state.setProperty("length", Long.toString(length));
+		state.setProperty("rangeSize", Long.toString(rangeSize));
+		state.setProperty("validator", String.valueOf(validator));
+		StringBuilder ranges = new StringBuilder(rangeCount);
+		for (int i = 0; i < rangeCount; i++)
+			ranges.append(done.get(i) ? '1' : '0');
+		state.setProperty("done", ranges.toString());
+		
+		Path temp = Paths.get(stateFile + ".tmp");
+		try (OutputStream out = Files.newOutputStream(temp))
+		{
+			state.store(out, "Download state of " + file.getFileName());
+		}
+		Files.move(temp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	private void printRate(long bytes, long nanos)
+	{
+		System.out.format("%.1f MB in %.3f s: %.2f MB/s, written to %s%n", bytes / 1048576.0, nanos / 1e9,
+				bytes / 1048576.0 / (nanos / 1e9), file.toAbsolutePath());
+	}
+	
+	/**
+	 * @param args
+	 *            [-connections n] [-rangesize MB] [-out file] URL
+	 */
+	public static void main(String[] args)
+	{
+		int connections = 4;
+		double rangeMB = 8;
+		String out = null;
+		String strUrl = null;
+		try
+		{
+			for (int i = 0; i < args.length; i++)
+			{
+				if (args[i].equals("-connections"))
+					connections = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-rangesize"))
+					rangeMB = Double.parseDouble(args[++i]);
+				else if (args[i].equals("-out"))
+					out = args[++i];
+				else
+					strUrl = args[i];
+			}
+		}
+		catch (NumberFormatException | ArrayIndexOutOfBoundsException e)
+		{
+			connections = 0;
+		}
+		if (strUrl == null || connections < 1 || rangeMB * 1048576 < 1)
+		{
+			System.err.println("[ERROR] Usage: TestHttps -download [-connections n] [-rangesize MB] [-out file] <URL>");
+			System.exit(1);
+		}
+		
+		URL url = null;
+		try
+		{
+			url = new URL(strUrl);
+		}
+		catch (MalformedURLException e)
+		{
+			System.err.println("[ERROR] Malformed URL: [" + strUrl + "]");
+			e.printStackTrace();
+			System.exit(1);
+		}
+		if (out == null)
+		{
+			String path = url.getPath();
+			out = path.substring(path.lastIndexOf('/') + 1);
+			if (out.isEmpty())
+				out = "download";
+		}
+		
+		try
+		{
+			ParallelDownloader downloader = new ParallelDownloader(url, Paths.get(out), connections,
+					(long) (rangeMB * 1048576));
+			if (!downloader.run())
+				System.exit(2);
+		}
+		catch (IOException | InterruptedException e)
+		{
+			System.err.println("[ERROR] Error downloading URL: [" + strUrl + "]");
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Timing record of an HTTPS request
+ * =================================
+ * Time spent by a request in each phase, so slow requests can be explained without -Djavax.net.debug (which
+ * writes so much that it changes the timings it should explain):
+ *     dns         resolution of the host name
+ *     connect     TCP connect
+ *     tls         TLS handshake, with the negotiated protocol and cipher suite
+ *     ttfb        from the request sent to the first byte of the response
+ *     body        from the end of the response headers to the end of the body, with the body bytes
+ * The phases not done by a request (e.g. connect and tls on a reused connection) are -1.
+ * 
+ * toJson() writes the record as one JSON object on one line (JSON lines), and TimingMetrics sums the records as
+ * counters. The modes give their records to TimingRecorder, which writes them.
+ * 
+ * @author rathm
+ * 
+ */
+
+package rathm.tests.ssl;
+
+import java.util.Locale;
+
+import javax.net.ssl.SSLSession;
+
+public class RequestTiming
+{
+	final String url;
+	// Start of the request, milliseconds since the epoch
+	final long start = System.currentTimeMillis();
+	
+	String address;
+	long dnsNanos = -1;
+	long connectNanos = -1;
+	long tlsNanos = -1;
+	String protocol;
+	String cipherSuite;
+	long ttfbNanos = -1;
+	long bodyNanos = -1;
+	long bodyBytes;
+	int status;
+	String error;
+	
+	public RequestTiming(String url)
+	{
+		this.url = url;
+	}
+	
+	/**
+	 * Record the handshake and the protocol and cipher suite it negotiated.
+	 */
+	void handshake(long nanos, SSLSession session)
+	{
+		tlsNanos = nanos;
+		protocol = session.getProtocol();
+		cipherSuite = session.getCipherSuite();
+	}
+	
+	/**
+	 * @return The record as a JSON object on one line, durations in milliseconds
+	 */
+	public String toJson()
+	{
+		StringBuilder json = new StringBuilder(384);
+		json.append("{\"start\":").append(start);
+		json.append(",\"url\":").append(quote(url));
+		json.append(",\"address\":").append(quote(address));
+		json.append(",\"dns_ms\":").append(millis(dnsNanos));
+		json.append(",\"connect_ms\":").append(millis(connectNanos));
+		json.append(",\"tls_ms\":").append(millis(tlsNanos));
+		json.append(",\"protocol\":").append(quote(protocol));
+		json.append(",\"cipher_suite\":").append(quote(cipherSuite));
+		json.append(",\"ttfb_ms\":").append(millis(ttfbNanos));
+		json.append(",\"body_ms\":").append(millis(bodyNanos));
+		json.append(",\"body_bytes\":").append(bodyBytes);
+		json.append(",\"status\":").append(status);
+		json.append(",\"error\":").append(quote(error));
+		return json.append('}').toString();
+	}
+	
+	private static String millis(long nanos)
+	{
+		return nanos < 0 ? "-1" : String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+	
+	/**
+	 * @return The JSON string of the text, or null
+	 */
+	static String quote(String text)
+	{
+		if (text == null)
+			return "null";
+		StringBuilder quoted = new StringBuilder(text.length() + 2).append('"');
+		for (int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			if (c == '"' || c == '\\')
+				quoted.append('\\').append(c);
+			else if (c < 0x20)
+				quoted.append(String.format("\\u%04x", (int) c));
+			else
+				quoted.append(c);
+		}
+		return quoted.append('"').toString();
+	}
+}
@@ -6,11 +6,41 @@
  * Equivalent of browsing to: https://blogs.oracle.com
  * 
  * Usage:
- *     java rathm.tests.ssl.SSLSocketHttpClient <HOST>
+ *     java rathm.tests.ssl.SSLSocketHttpClient [-timing <FILE | ->] [-metrics <FILE>] <HOST>
  *     NOTE: the HOST must use https
  * Example:
  *     java rathm.tests.ssl.SSLSocketHttpClient blogs.oracle.com
  *     This is equivalent to browsing: https://blogs.oracle.com
+ * With -timing the time of each phase of the request (DNS, connect, TLS handshake, time to first byte, body) is
+ * appended to a file as a JSON line (see RequestTiming), "-" for the standard error; with -metrics it is added to
+ * Prometheus counters (see TimingMetrics). Both options are accepted by all the modes below, which then record
+ * each of their requests (see TimingRecorder).
+ * 
+ * Keep-alive mode: polls a path with several requests per connection instead of one connection per request.
+ * Responses are framed by Content-Length or chunked encoding (see HttpConnection), connections are reused from
+ * a pool (see HttpConnectionPool), and with -pipeline n, n requests are sent before their responses are read.
+ * Writes the number of responses per status, of connections (TLS handshakes) and the request rate.
+ *     java rathm.tests.ssl.SSLSocketHttpClient -keepalive [-port p] [-requests n] [-pipeline n] <HOST> [PATH]
+ * Example:
+ *     java rathm.tests.ssl.SSLSocketHttpClient -keepalive -requests 100 -pipeline 10 blogs.oracle.com /
+ * 
+ * Session resumption mode: opens several connections one after the other with an SSLContext whose client
+ * session cache size and timeout can be set, so the later connections resume the session of the first one
+ * (TLS 1.2 session id, or TLS 1.3 session ticket). Writes for each connection whether it resumed, and the
+ * handshake time and CPU time; then the average of the full and resumed handshakes. With -full each session
+ * is invalidated after use, so every handshake is a full one (for comparison).
+ *     java rathm.tests.ssl.SSLSocketHttpClient -resume [-port p] [-connections n] [-cachesize n] [-timeout s]
+ *             [-protocol TLSv1.2|TLSv1.3] [-full] <HOST>
+ * 
+ * Load generator mode: concurrent clients for a duration or number of requests, at a fixed rate, with latency
+ * percentiles of connect, handshake, time to first byte and total (see LoadGenerator):
+ *     java rathm.tests.ssl.SSLSocketHttpClient -load [-port p] [-clients n] [-rate requests/s]
+ *             [-duration s | -requests n] [-keepalive] (-loopback | <HOST>) [PATH]
+ * 
+ * Cipher-suite mode: ranks the enabled protocol and cipher suite combinations by handshake time, handshake CPU
+ * time and bulk throughput, measured against an in-process server on loopback (see CipherRanking):
+ *     java rathm.tests.ssl.SSLSocketHttpClient -ciphers [-protocol p] [-handshakes n] [-mb n]
+ *             [-sort cpu|handshake|throughput]
  * 
  * ---------- Original demo copyright notice ----------
  * Copyright (c) 1994, 2004, Oracle and/or its affiliates. All rights reserved.
@@ -52,12 +82,24 @@
 
 package rathm.tests.ssl;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
 
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
@@ -104,30 +146,321 @@ public class SSLSocketHttpClient
 		}
 	}
 	
+	/**
+	 * Send requests for a path over keep-alive connections, optionally pipelined.
+	 * 
+	 * @param args
+	 *            [-port p] [-requests n] [-pipeline n] host [path]
+	 */
+	static void keepAlive(String[] args)
+	{
+		int port = 443;
+		int requests = 10;
+		int pipeline = 1;
+		String host = null;
+		String path = "/";
+		try
+		{
+			for (int i = 0; i < args.length; i++)
+			{
+				if (args[i].equals("-port"))
+					port = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-requests"))
+					requests = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-pipeline"))
+					pipeline = Math.max(1, Integer.parseInt(args[++i]));
+				else if (host == null)
+					host = args[i];
+				else
+					path = args[i];
+			}
+		}
+		catch (NumberFormatException | ArrayIndexOutOfBoundsException e)
+		{
+			host = null;
+		}
+		if (host == null)
+		{
+			System.err.println("[ERROR] Usage: SSLSocketHttpClient -keepalive [-port p] [-requests n] [-pipeline n] <HOST> [PATH]");
+			System.exit(1);
+		}
+		
+		SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+		String url = "https://" + (port == 443 ? host : host + ":" + port) + path;
+		Map<Integer, Integer> statuses = new TreeMap<>();
+		long bodyBytes = 0;
+		int done = 0;
+		int failures = 0;
+		long start = System.nanoTime();
+		try (HttpConnectionPool pool = new HttpConnectionPool(factory, 1))
+		{
+			while (done < requests)
+			{
+				HttpConnection connection = pool.acquire(host, port);
+				int batch = Math.min(pipeline, requests - done);
+				int read = 0;
+				RequestTiming timing = new RequestTiming(url);
+				try
+				{
+					for (int i = 0; i < batch; i++)
+						connection.writeGet(path, false);
+					connection.flush();
+					long sent = System.nanoTime();
+					connection.awaitResponse();
+					timing.ttfbNanos = System.nanoTime() - sent;
+					
+					/*
+					 * If the server closes the connection after one of the responses, the requests still pending
+					 * are sent again on a new connection. The time to first byte is only known for the first
+					 * response of a batch, the others were received with it or behind it.
+					 */
+					while (read < batch && (read == 0 || connection.isReusable()))
+					{
+						long begin = System.nanoTime();
+						HttpConnection.Response response = connection.readResponse();
+						timing.bodyNanos = System.nanoTime() - begin;
+						timing.bodyBytes = response.body.length;
+						timing.status = response.status;
+						TimingRecorder.record(timing);
+						timing = new RequestTiming(url);
+						statuses.merge(response.status, 1, Integer::sum);
+						bodyBytes += response.body.length;
+						read++;
+					}
+					failures = 0;
+				}
+				catch (IOException e)
+				{
+					// A pooled connection may have been closed by the server while idle: retry once on a new one
+					connection.close();
+					if (read == 0 && ++failures > 1)
+					{
+						timing.error = e.toString();
+						TimingRecorder.record(timing);
+						throw e;
+					}
+				}
+				done += read;
+				pool.release(connection);
+			}
+			
+			double seconds = (System.nanoTime() - start) / 1e9;
+			printString("Responses per status", statuses.toString());
+			printString("Body bytes", Long.toString(bodyBytes));
+			printString("Connections opened (TLS handshakes)",
+					pool.getOpened() + String.format(" (%.1f requests per connection)", (double) done / pool.getOpened()));
+			printString("Requests per second", String.format("%.1f (%d requests in %.3f s, pipeline %d)", done / seconds,
+					done, seconds, pipeline));
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Open connections one after the other, resuming the TLS session, and report the handshake cost of each.
+	 * 
+	 * @param args
+	 *            [-port p] [-connections n] [-cachesize n] [-timeout s] [-protocol name] [-full] host
+	 */
+	static void resume(String[] args)
+	{
+		int port = 443;
+		int connections = 5;
+		int cacheSize = -1;
+		int timeout = -1;
+		String protocol = null;
+		boolean full = false;
+		String host = null;
+		try
+		{
+			for (int i = 0; i < args.length; i++)
+			{
+				if (args[i].equals("-port"))
+					port = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-connections"))
+					connections = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-cachesize"))
+					cacheSize = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-timeout"))
+					timeout = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-protocol"))
+					protocol = args[++i];
+				else if (args[i].equals("-full"))
+					full = true;
+				else
+					host = args[i];
+			}
+		}
+		catch (NumberFormatException | ArrayIndexOutOfBoundsException e)
+		{
+			host = null;
+		}
+		if (host == null)
+		{
+			System.err.println("[ERROR] Usage: SSLSocketHttpClient -resume [-port p] [-connections n] [-cachesize n] "
+					+ "[-timeout s] [-protocol TLSv1.2|TLSv1.3] [-full] <HOST>");
+			System.exit(1);
+		}
+		
+		try
+		{
+			/*
+			 * A context of our own, rather than the default one, so its session cache can be tuned (0 means no
+			 * limit) without changing other users of the default context.
+			 */
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(null, null, null);
+			SSLSessionContext sessionContext = context.getClientSessionContext();
+			if (cacheSize >= 0)
+				sessionContext.setSessionCacheSize(cacheSize);
+			if (timeout >= 0)
+				sessionContext.setSessionTimeout(timeout);
+			printString("Client session cache", "size " + sessionContext.getSessionCacheSize() + ", timeout "
+					+ sessionContext.getSessionTimeout() + " s");
+			
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			SSLSocketFactory factory = context.getSocketFactory();
+			long[] nanos = new long[2];
+			long[] cpuNanos = new long[2];
+			int[] counts = new int[2];
+			
+			System.out.println("\nHandshakes");
+			System.out.println("------------------------------------------");
+			for (int i = 0; i < connections; i++)
+			{
+				RequestTiming timing = new RequestTiming("https://" + (port == 443 ? host : host + ":" + port) + "/");
+				SSLSocket socket = (SSLSocket) factory.createSocket();
+				long connectStart = System.nanoTime();
+				socket.connect(new InetSocketAddress(host, port));
+				timing.connectNanos = System.nanoTime() - connectStart;
+				if (protocol != null)
+					socket.setEnabledProtocols(new String[] { protocol });
+				
+				long startMillis = System.currentTimeMillis();
+				long start = System.nanoTime();
+				long startCpu = threads.getCurrentThreadCpuTime();
+				socket.startHandshake();
+				long handshakeCpu = threads.getCurrentThreadCpuTime() - startCpu;
+				long handshake = System.nanoTime() - start;
+				
+				/*
+				 * A resumed session keeps the creation time of the session it resumes: the same session object for
+				 * TLS 1.2, a new session (with a new id) for a TLS 1.3 ticket. A full handshake creates its session
+				 * after the handshake started.
+				 */
+				SSLSession session = socket.getSession();
+				boolean resumed = session.getCreationTime() < startMillis;
+				timing.handshake(handshake, session);
+				
+				/*
+				 * A request is done before closing: TLS 1.3 servers send the session tickets after the handshake,
+				 * and the client only receives them when it reads from the connection.
+				 */
+				int status;
+				try (HttpConnection connection = new HttpConnection(socket, host, port))
+				{
+					connection.writeGet("/", true);
+					connection.flush();
+					long sent = System.nanoTime();
+					connection.awaitResponse();
+					long firstByte = System.nanoTime();
+					timing.ttfbNanos = firstByte - sent;
+					HttpConnection.Response response = connection.readResponse();
+					timing.bodyNanos = System.nanoTime() - firstByte;
+					timing.bodyBytes = response.body.length;
+					status = timing.status = response.status;
+				}
+				TimingRecorder.record(timing);
+				if (full)
+					session.invalidate();
+				
+				int kind = resumed ? 1 : 0;
+				nanos[kind] += handshake;
+				cpuNanos[kind] += handshakeCpu;
+				counts[kind]++;
+				System.out.format("%3d) %-8s handshake %8.2f ms, CPU %8.2f ms, %s %s, status %d%n", i + 1,
+						resumed ? "resumed" : "full", handshake / 1e6, handshakeCpu / 1e6, session.getProtocol(),
+						session.getCipherSuite(), status);
+			}
+			
+			System.out.println("\nAverage handshake");
+			System.out.println("------------------------------------------");
+			for (int kind = 0; kind < 2; kind++)
+			{
+				if (counts[kind] > 0)
+					System.out.format("%-8s %3d connections, %8.2f ms, CPU %8.2f ms%n", kind == 1 ? "resumed" : "full",
+							counts[kind], nanos[kind] / 1e6 / counts[kind], cpuNanos[kind] / 1e6 / counts[kind]);
+			}
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
 	/**
 	 * @param args
-	 *            Host to test (e.g. www.verisign.com)
+	 *            [-timing file] [-metrics file] host to test (e.g. www.verisign.com), or -keepalive, -resume,
+	 *            -load or -ciphers followed by their options (see keepAlive, resume, LoadGenerator and
+	 *            CipherRanking)
 	 */
 	public static void main(String[] args)
 	{
-		String host = "";
+		args = TimingRecorder.removeOptions(args);
+		if (args.length > 0 && args[0].equals("-keepalive"))
+		{
+			keepAlive(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-resume"))
+		{
+			resume(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-load"))
+		{
+			LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-ciphers"))
+		{
+			CipherRanking.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		
+		String host = null;
 		
 		// Verify arguments
-		if (args.length == 1)
+		for (int i = 0; i < args.length; i++)
 		{
-			host = args[0];
+			if (host == null)
+				host = args[i];
 		}
-		else
+		if (host == null)
 		{
 			System.err.println("[ERROR] Missing mandatory argument: host to test");
 			System.exit(1);
 		}
 		
+		RequestTiming timing = new RequestTiming("https://" + host + "/");
 		try
 		{
 			SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
 			
-			SSLSocket socket = (SSLSocket) factory.createSocket(host, 443);
+			/*
+			 * Resolve, connect and handshake separately, to time each phase (see RequestTiming)
+			 */
+			long begin = System.nanoTime();
+			InetAddress address = InetAddress.getByName(host);
+			long resolved = System.nanoTime();
+			timing.dnsNanos = resolved - begin;
+			timing.address = address.getHostAddress();
+			Socket plain = new Socket();
+			plain.connect(new InetSocketAddress(address, 443));
+			timing.connectNanos = System.nanoTime() - resolved;
+			SSLSocket socket = (SSLSocket) factory.createSocket(plain, host, 443, true);
 			
 			/*
 			 * Show attributes supported by the Java implementation, and those attributes enabled for this socket 
@@ -172,9 +505,11 @@ public class SSLSocketHttpClient
 			 * code.  The only way to tell there was an error is to call
 			 * PrintWriter.checkError().
 			 */
+			long handshakeStart = System.nanoTime();
 			socket.startHandshake();
 			
 			SSLSession session = socket.getSession();
+			timing.handshake(System.nanoTime() - handshakeStart, session);
 			
 			/*
 			 * Show attributes of this SSL session
@@ -197,6 +532,7 @@ public class SSLSocketHttpClient
 			out.println("Connection: close");
 			out.println();
 			out.flush();
+			long sent = System.nanoTime();
 			
 			/*
 			 * Make sure there were no surprises
@@ -210,16 +546,49 @@ public class SSLSocketHttpClient
 			System.out.println("\nResponse from server");
 			System.out.println("--------------------");
 			
-			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			
-			String inputLine;
 			/*
-			 * This loop will exit only if the server closes the connection after sending the response.
-			 * Because of this, I send the "Connection: close" header in the request (see above) which tells the server I 
-			 * cannot handle more than one document per connection. 
+			 * The response is parsed as bytes (see HttpResponseParser): the status line and headers are written as
+			 * received, then the body is copied to the console without charset decoding, so binary bodies are not
+			 * altered. The end of the body is found from its Content-Length or chunked encoding, or else when the server
+			 * closes the connection (we sent "Connection: close" anyway).
 			 */
-			while ((inputLine = in.readLine()) != null)
-				System.out.println(inputLine);
+			InputStream in = socket.getInputStream();
+			WritableByteChannel console = Channels.newChannel(System.out);
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			HttpResponseParser parser = new HttpResponseParser();
+			boolean complete = false;
+			long headEnd = 0;
+			while (!complete)
+			{
+				int n = in.read(buffer.array(), buffer.position(), buffer.remaining());
+				if (n < 0)
+				{
+					if (!parser.finish())
+						System.err.println("[ERROR] Connection closed without response");
+					break;
+				}
+				if (timing.ttfbNanos < 0)
+					timing.ttfbNanos = System.nanoTime() - sent;
+				buffer.position(buffer.position() + n);
+				buffer.flip();
+				if (!parser.isHeadComplete() && parser.parseHead(buffer))
+				{
+					headEnd = System.nanoTime();
+					parser.writeHead(console);
+				}
+				if (parser.isHeadComplete())
+					complete = parser.parse(buffer, console);
+				buffer.compact();
+			}
+			System.out.flush();
+			if (parser.isComplete())
+			{
+				timing.bodyNanos = System.nanoTime() - headEnd;
+				timing.bodyBytes = parser.getBodyLength();
+				timing.status = parser.getStatus();
+			}
+			else
+				timing.error = "Incomplete response";
 			
 			in.close();
 			out.close();
@@ -227,7 +596,9 @@ public class SSLSocketHttpClient
 		}
 		catch (Exception e)
 		{
+			timing.error = e.toString();
 			e.printStackTrace();
 		}
+		TimingRecorder.record(timing);
 	}
 }
@@ -14,17 +14,30 @@
  * --------------
  * java -Djavax.net.debug=ssl:handshake:verbose -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.ssl.TestHttps https://blogs.oracle.com/java-platform-group/entry/diagnosing_tls_ssl_and_https | less
  * 
+ * Timing without the debug output: -timing appends the time of each phase (DNS, connect, TLS handshake, time to
+ * first byte, body) as a JSON line to a file ("-" for the standard error), -metrics adds them to Prometheus
+ * counters (see RequestTiming and TimingMetrics). The bulk and download modes also take both options, and record
+ * each of their requests (see TimingRecorder)
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.ssl.TestHttps [-timing <FILE | ->] [-metrics <FILE>] <URL>
+ * 
+ * Bulk mode: fetches the URLs of a list concurrently over HTTP/2 into files (see BulkFetcher)
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.ssl.TestHttps -bulk [-perhost n] [-out dir] [-timeout s] <URL_LIST_FILE | ->
+ * 
+ * Download mode: downloads a large resource by ranges over parallel connections, resumable (see ParallelDownloader)
+ * java -cp ~rathm/workspace_tests/Tests/bin/ rathm.tests.ssl.TestHttps -download [-connections n] [-rangesize MB] [-out file] <URL>
+ * 
  * @author rathm
  *
  */
 
 package rathm.tests.ssl;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Arrays;
 
 import javax.net.ssl.HttpsURLConnection;
 
@@ -32,22 +45,38 @@ public class TestHttps
 {
 	
 	/**
-	 * @param args URL to test
+	 * @param args [-timing file] [-metrics file] URL to test, or -bulk or -download followed by their options (see BulkFetcher and
+	 *            ParallelDownloader)
 	 */
 	public static void main(String[] args)
 	{
-		String strUrl = "";
+		args = TimingRecorder.removeOptions(args);
+		if (args.length > 0 && args[0].equals("-bulk"))
+		{
+			BulkFetcher.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-download"))
+		{
+			ParallelDownloader.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		
+		String strUrl = null;
 		
 		// Verify arguments
-		if (args.length == 1)
+		for (int i = 0; i < args.length; i++)
 		{
-			strUrl = args[0];
+			if (strUrl == null)
+				strUrl = args[i];
 		}
-		else
+		if (strUrl == null)
 		{
 			System.err.println("[ERROR] Missing mandatory argument: URL to test");
 			System.exit(1);
 		}
+		boolean timed = TimingRecorder.isEnabled();
+		RequestTiming timing = new RequestTiming(strUrl);
 
 		// Convert argument to URL
 		URL url = null;
@@ -63,35 +92,61 @@ public class TestHttps
 		}
 
 		// Open connection to URL
+		// When timed, the host name is resolved first (the connection then finds it in the JVM cache), and the
+		// connect and handshake are timed by the socket factory (see TimedSSLSocketFactory).
 		HttpsURLConnection conn = null;
 		try
 		{
 			conn = (HttpsURLConnection) url.openConnection();
+			if (timed)
+			{
+				long begin = System.nanoTime();
+				InetAddress.getAllByName(url.getHost());
+				timing.dnsNanos = System.nanoTime() - begin;
+				conn.setSSLSocketFactory(new TimedSSLSocketFactory(conn.getSSLSocketFactory(), timing,
+						System.nanoTime()));
+			}
 			conn.connect();
 		}
 		catch (IOException e)
 		{
 			System.err.println("[ERROR] Error getting or opening connection to URL: [" + strUrl + "]");
 			e.printStackTrace();
+			timing.error = e.toString();
+			TimingRecorder.record(timing);
 			System.exit(1);
 		}
 
 		// Read all content from URL
-		try (BufferedReader br = new BufferedReader(new InputStreamReader(conn.getInputStream())))
+		// The body (already de-chunked by HttpsURLConnection) is copied to the console as bytes, not decoded and
+		// re-encoded line by line, so binary content is not altered.
+		// The request is sent by getResponseCode, which returns once the response headers are read: this is the
+		// time to first byte, plus the reading of the headers.
+		long sent = System.nanoTime();
+		try
 		{
-			System.out.println("Data read from URL: [" + strUrl + "]");
-			System.out.println("----------------------------------------------------------------------------------------");
+			timing.status = conn.getResponseCode();
+			long headEnd = System.nanoTime();
+			timing.ttfbNanos = headEnd - sent;
+			try (InputStream in = conn.getInputStream())
+			{
+				System.out.println("Data read from URL: [" + strUrl + "]");
+				System.out.println("----------------------------------------------------------------------------------------");
 
-			String line;
-			while ((line = br.readLine()) != null)
-				System.out.println(line);
+				timing.bodyBytes = in.transferTo(System.out);
+				System.out.flush();
+			}
+			timing.bodyNanos = System.nanoTime() - headEnd;
 		}
 		catch (IOException e)
 		{
 			System.err.println("[ERROR] Error reading from URL: [" + strUrl + "]");
 			e.printStackTrace();
+			timing.error = e.toString();
+			TimingRecorder.record(timing);
 			System.exit(1);
 		}
+		TimingRecorder.record(timing);
 	}
 	
 }
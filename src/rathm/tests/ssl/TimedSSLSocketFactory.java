@@ -0,0 +1,93 @@
+/*
+ * SSLSocketFactory recording the TCP connect and TLS handshake times
+ * ==================================================================
+ * HttpsURLConnection does not tell how long its connect and handshake took. It connects a plain socket, then
+ * layers the TLS socket over it with createSocket(Socket, host, port, autoClose): this factory is then called
+ * just after the TCP connect, and does the handshake itself to time it (the handshake of HttpsURLConnection
+ * then has nothing left to do).
+ * 
+ * As the handshake is done before HttpsURLConnection sets its parameters, the host name is checked here with
+ * the HTTPS rules (endpoint identification), as HttpsURLConnection does with its default HostnameVerifier.
+ * 
+ * A connection reused by HttpsURLConnection (keep-alive) does not call the factory, its times stay -1.
+ * 
+ * @author rathm
+ * 
+ */
+
+package rathm.tests.ssl;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+class TimedSSLSocketFactory extends SSLSocketFactory
+{
+	private final SSLSocketFactory factory;
+	private final RequestTiming timing;
+	// Time (System.nanoTime) the TCP connect started
+	private final long connectStart;
+	
+	TimedSSLSocketFactory(SSLSocketFactory factory, RequestTiming timing, long connectStart)
+	{
+		this.factory = factory;
+		this.timing = timing;
+		this.connectStart = connectStart;
+	}
+	
+	@Override
+	public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException
+	{
+		long connected = System.nanoTime();
+		timing.connectNanos = connected - connectStart;
+		timing.address = s.getInetAddress().getHostAddress();
+		SSLSocket socket = (SSLSocket) factory.createSocket(s, host, port, autoClose);
+		SSLParameters parameters = socket.getSSLParameters();
+		parameters.setEndpointIdentificationAlgorithm("HTTPS");
+		socket.setSSLParameters(parameters);
+		socket.startHandshake();
+		timing.handshake(System.nanoTime() - connected, socket.getSession());
+		return socket;
+	}
+	
+	@Override
+	public Socket createSocket(String host, int port) throws IOException
+	{
+		return factory.createSocket(host, port);
+	}
+	
+	@Override
+	public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException
+	{
+		return factory.createSocket(host, port, localHost, localPort);
+	}
+	
+	@Override
+	public Socket createSocket(InetAddress host, int port) throws IOException
+	{
+		return factory.createSocket(host, port);
+	}
+	
+	@Override
+	public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+			throws IOException
+	{
+		return factory.createSocket(address, port, localAddress, localPort);
+	}
+	
+	@Override
+	public String[] getDefaultCipherSuites()
+	{
+		return factory.getDefaultCipherSuites();
+	}
+	
+	@Override
+	public String[] getSupportedCipherSuites()
+	{
+		return factory.getSupportedCipherSuites();
+	}
+}
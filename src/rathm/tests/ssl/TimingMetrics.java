@@ -0,0 +1,255 @@
+/*
+ * Counters of the HTTPS request timings
+ * =====================================
+ * Sums RequestTiming records: the requests per status, the errors, the body bytes, the handshakes per protocol
+ * and cipher suite, and for each phase its count, total time and percentiles (see LatencyHistogram). A process
+ * records all its requests into one instance (see TimingRecorder).
+ * 
+ * save() merges the counters into a metrics file in the Prometheus text format, so they can be scraped e.g. by
+ * the textfile collector of the node exporter:
+ *     https_client_phase_seconds{phase="tls",quantile="0.99"} 0.012
+ *     https_client_phase_seconds_sum{phase="tls"} 0.345
+ *     https_client_phase_seconds_count{phase="tls"} 25
+ *     https_client_requests_total{status="200"} 25
+ * The file holds the counters of all the processes saved to it, not only of the last one. Quantiles cannot be
+ * added, so the counters and the bucket counts of the histograms are kept in the state file <file>.state (not
+ * read by the collector, which only reads *.prom files): a process adds its counters to the state, then writes
+ * the metrics file from it. The processes sharing the file serialize on an exclusive lock of <file>.lock, and
+ * both files are replaced atomically, with the permissions of the file they replace, so a scraper never reads
+ * half a file.
+ * 
+ * @author rathm
+ * 
+ */
+
+package rathm.tests.ssl;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+public class TimingMetrics
+{
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+	
+	private final Map<String, LatencyHistogram> phases = new LinkedHashMap<>();
+	private final Map<String, LongAdder> requests = new ConcurrentHashMap<>();
+	private final Map<String, LongAdder> handshakes = new ConcurrentHashMap<>();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder bodyBytes = new LongAdder();
+	
+	public TimingMetrics()
+	{
+		for (String phase : new String[] { "dns", "connect", "tls", "ttfb", "body" })
+			phases.put(phase, new LatencyHistogram());
+	}
+	
+	public void add(RequestTiming timing)
+	{
+		record("dns", timing.dnsNanos);
+		record("connect", timing.connectNanos);
+		record("tls", timing.tlsNanos);
+		record("ttfb", timing.ttfbNanos);
+		record("body", timing.bodyNanos);
+		bodyBytes.add(timing.bodyBytes);
+		if (timing.error != null)
+			errors.increment();
+		else
+			requests.computeIfAbsent(Integer.toString(timing.status), k -> new LongAdder()).increment();
+		if (timing.protocol != null)
+		{
+			handshakes.computeIfAbsent("protocol=\"" + timing.protocol + "\",cipher_suite=\"" + timing.cipherSuite
+					+ "\"", k -> new LongAdder()).increment();
+		}
+	}
+	
+	private void record(String phase, long nanos)
+	{
+		if (nanos >= 0)
+			phases.get(phase).record(nanos);
+	}
+	
+	/**
+	 * Add the counters of other metrics.
+	 */
+	public void add(TimingMetrics other)
+	{
+		other.phases.forEach((phase, histogram) -> phases.get(phase).add(histogram));
+		other.requests.forEach((status, count) -> requests.computeIfAbsent(status, k -> new LongAdder())
+				.add(count.sum()));
+		other.handshakes.forEach((labels, count) -> handshakes.computeIfAbsent(labels, k -> new LongAdder())
+				.add(count.sum()));
+		errors.add(other.errors.sum());
+		bodyBytes.add(other.bodyBytes.sum());
+	}
+	
+	/**
+	 * Write the counters in the Prometheus text format.
+	 */
+	public void write(PrintWriter out)
+	{
+		out.println("# HELP https_client_phase_seconds Time spent in each phase of the HTTPS requests");
+		out.println("# TYPE https_client_phase_seconds summary");
+		for (Map.Entry<String, LatencyHistogram> phase : phases.entrySet())
+		{
+			LatencyHistogram histogram = phase.getValue();
+			for (double quantile : QUANTILES)
+			{
+				out.format(Locale.ROOT, "https_client_phase_seconds{phase=\"%s\",quantile=\"%s\"} %.9f%n",
+						phase.getKey(), quantile, histogram.getPercentile(quantile * 100) / 1e9);
+			}
+			out.format(Locale.ROOT, "https_client_phase_seconds_sum{phase=\"%s\"} %.9f%n", phase.getKey(),
+					histogram.getSum() / 1e9);
+			out.format(Locale.ROOT, "https_client_phase_seconds_count{phase=\"%s\"} %d%n", phase.getKey(),
+					histogram.getCount());
+		}
+		
+		out.println("# HELP https_client_requests_total Responses received, per status");
+		out.println("# TYPE https_client_requests_total counter");
+		new TreeMap<>(requests).forEach((status, count) -> out.format(Locale.ROOT,
+				"https_client_requests_total{status=\"%s\"} %d%n", status, count.sum()));
+		out.println("# HELP https_client_errors_total Requests failed without a response");
+		out.println("# TYPE https_client_errors_total counter");
+		out.format(Locale.ROOT, "https_client_errors_total %d%n", errors.sum());
+		out.println("# HELP https_client_body_bytes_total Bytes of the response bodies");
+		out.println("# TYPE https_client_body_bytes_total counter");
+		out.format(Locale.ROOT, "https_client_body_bytes_total %d%n", bodyBytes.sum());
+		out.println("# HELP https_client_handshakes_total TLS handshakes, per protocol and cipher suite");
+		out.println("# TYPE https_client_handshakes_total counter");
+		new TreeMap<>(handshakes).forEach((labels, count) -> out.format(Locale.ROOT,
+				"https_client_handshakes_total{%s} %d%n", labels, count.sum()));
+		out.flush();
+	}
+	
+	/**
+	 * Write the counters and bucket counts, one per line, the fields separated by tabs:
+	 * 
+	 *     phase      name   sum   max   bucket counts (see LatencyHistogram.getBucketCounts)
+	 *     requests   status   count
+	 *     handshakes   labels   count
+	 *     errors     count
+	 *     body_bytes   count
+	 */
+	private void writeState(PrintWriter out)
+	{
+		phases.forEach((phase, histogram) -> out.format(Locale.ROOT, "phase\t%s\t%d\t%d\t%s%n", phase,
+				histogram.getSum(), histogram.getMax(), histogram.getBucketCounts()));
+		requests.forEach((status, count) -> out.format(Locale.ROOT, "requests\t%s\t%d%n", status, count.sum()));
+		handshakes.forEach((labels, count) -> out.format(Locale.ROOT, "handshakes\t%s\t%d%n", labels, count.sum()));
+		out.format(Locale.ROOT, "errors\t%d%n", errors.sum());
+		out.format(Locale.ROOT, "body_bytes\t%d%n", bodyBytes.sum());
+		out.flush();
+	}
+	
+	/**
+	 * Add the counters of a state file written by writeState, if it exists.
+	 */
+	private void readState(Path stateFile) throws IOException
+	{
+		List<String> lines;
+		try
+		{
+			lines = Files.readAllLines(stateFile, StandardCharsets.UTF_8);
+		}
+		catch (NoSuchFileException e)
+		{
+			return;
+		}
+		try
+		{
+			for (String line : lines)
+			{
+				String[] fields = line.split("\t", -1);
+				switch (fields[0])
+				{
+					case "phase":
+						LatencyHistogram histogram = phases.get(fields[1]);
+						if (histogram != null)
+							histogram.addBucketCounts(fields[4], Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+						break;
+					case "requests":
+						requests.computeIfAbsent(fields[1], k -> new LongAdder()).add(Long.parseLong(fields[2]));
+						break;
+					case "handshakes":
+						handshakes.computeIfAbsent(fields[1], k -> new LongAdder()).add(Long.parseLong(fields[2]));
+						break;
+					case "errors":
+						errors.add(Long.parseLong(fields[1]));
+						break;
+					case "body_bytes":
+						bodyBytes.add(Long.parseLong(fields[1]));
+						break;
+					default:
+						// Written by a later version
+				}
+			}
+		}
+		catch (RuntimeException e)
+		{
+			throw new IOException("Invalid metrics state file: " + stateFile, e);
+		}
+	}
+	
+	/**
+	 * Add the counters to those of a metrics file (see the state file above), and write it.
+	 */
+	public void save(Path file) throws IOException
+	{
+		Path lockFile = Paths.get(file + ".lock");
+		Path stateFile = Paths.get(file + ".state");
+		try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+		{
+			// Released when the channel is closed
+			lockChannel.lock();
+			
+			TimingMetrics merged = new TimingMetrics();
+			merged.readState(stateFile);
+			merged.add(this);
+			replace(stateFile, lockFile, merged::writeState);
+			replace(file, lockFile, merged::write);
+		}
+	}
+	
+	/**
+	 * Replace a file atomically by a temporary file of the same directory.
+	 * 
+	 * @param model
+	 *            File whose permissions are given to a new file
+	 */
+	private static void replace(Path file, Path model, Consumer<PrintWriter> content) throws IOException
+	{
+		Path parent = file.toAbsolutePath().getParent();
+		Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+		try
+		{
+			try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(temp, StandardCharsets.UTF_8)))
+			{
+				content.accept(out);
+			}
+			// createTempFile makes the file private, keep the file readable by the scraper
+			if (Files.getFileStore(temp).supportsFileAttributeView(PosixFileAttributeView.class))
+				Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(Files.exists(file) ? file : model));
+			Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally
+		{
+			Files.deleteIfExists(temp);
+		}
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * Recorder of the HTTPS request timings of a process
+ * ==================================================
+ * Every request of every mode of SSLSocketHttpClient, TestHttps and NioHttpsClient (single request, keep-alive,
+ * session resumption, load generator, bulk, download, non-blocking client) gives its RequestTiming record to this
+ * process-wide recorder, enabled by the options:
+ *     -timing <FILE | ->   each record is appended as a JSON line to the file, "-" for the standard error
+ *     -metrics <FILE>      the records are summed in one TimingMetrics for the whole process, whatever the number
+ *                          of requests and threads, which is added to the counters of the file when the process
+ *                          exits (see TimingMetrics.save)
+ * The options are taken from anywhere in the command line, before or after the mode, by removeOptions.
+ * 
+ * @author rathm
+ * 
+ */
+
+package rathm.tests.ssl;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class TimingRecorder
+{
+	private static volatile boolean enabled;
+	private static String metricsFile;
+	
+	// JSON lines output, null without -timing; the standard error for "-"
+	private static Writer timingOut;
+	private static boolean timingToStandardError;
+	
+	// Records not saved to the metrics file yet: recorded under the read lock, swapped under the write lock
+	private static final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private static TimingMetrics unsaved = new TimingMetrics();
+	
+	private TimingRecorder()
+	{
+	}
+	
+	/**
+	 * Take the -timing and -metrics options from the command line, and start recording if there is one. The
+	 * records are saved when the process exits.
+	 * 
+	 * @return The other arguments
+	 */
+	static String[] removeOptions(String[] args)
+	{
+		String timingFile = null;
+		List<String> others = new ArrayList<>(Arrays.asList(args));
+		for (int i = 0; i + 1 < others.size();)
+		{
+			if (others.get(i).equals("-timing"))
+				timingFile = others.get(i + 1);
+			else if (others.get(i).equals("-metrics"))
+				metricsFile = others.get(i + 1);
+			else
+			{
+				i++;
+				continue;
+			}
+			others.subList(i, i + 2).clear();
+		}
+		
+		if (timingFile != null)
+		{
+			if (timingFile.equals("-"))
+				timingToStandardError = true;
+			else
+			{
+				try
+				{
+					timingOut = Files.newBufferedWriter(Paths.get(timingFile), StandardCharsets.UTF_8,
+							StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+				}
+				catch (IOException e)
+				{
+					System.err.println("[ERROR] Cannot open the timing file: [" + timingFile + "] " + e);
+					System.exit(1);
+				}
+			}
+		}
+		if (timingFile != null || metricsFile != null)
+		{
+			enabled = true;
+			Runtime.getRuntime().addShutdownHook(new Thread(TimingRecorder::save, "timing-recorder"));
+		}
+		return others.toArray(new String[0]);
+	}
+	
+	/**
+	 * @return Whether the requests are timed, the modes may skip building their records otherwise
+	 */
+	static boolean isEnabled()
+	{
+		return enabled;
+	}
+	
+	/**
+	 * Record a request, from any thread.
+	 */
+	static void record(RequestTiming timing)
+	{
+		if (!enabled)
+			return;
+		if (timingToStandardError)
+			System.err.println(timing.toJson());
+		else if (timingOut != null)
+		{
+			String line = timing.toJson() + "\n";
+			synchronized (timingOut)
+			{
+				try
+				{
+					timingOut.write(line);
+				}
+				catch (IOException e)
+				{
+					System.err.println("[ERROR] Error writing the timing: " + e);
+				}
+			}
+		}
+		if (metricsFile != null)
+		{
+			lock.readLock().lock();
+			try
+			{
+				unsaved.add(timing);
+			}
+			finally
+			{
+				lock.readLock().unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Flush the JSON lines, and add the records not saved yet to the metrics file.
+	 */
+	static synchronized void save()
+	{
+		try
+		{
+			if (timingOut != null)
+			{
+				synchronized (timingOut)
+				{
+					timingOut.flush();
+				}
+			}
+			if (metricsFile != null)
+			{
+				TimingMetrics metrics;
+				lock.writeLock().lock();
+				try
+				{
+					metrics = unsaved;
+					unsaved = new TimingMetrics();
+				}
+				finally
+				{
+					lock.writeLock().unlock();
+				}
+				metrics.save(Paths.get(metricsFile));
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println("[ERROR] Error writing the timing");
+			e.printStackTrace();
+		}
+	}
+}